@@ -21,6 +21,8 @@ package pb.model;
 
 import java.util.List;
 
+import pb.persistence.AdmissionStatistics;
+
 /**
  * This is the Service for the Favorite Model, which will contain the logic of
  * this application
@@ -102,7 +104,8 @@ public interface FavoriteModel {
 	 * @param voteFor
 	 * @throws FavoriteModelException
 	 *             when the candidate has not enough credit to give a vote, the
-	 *             exception is thrown
+	 *             exception is thrown. The cause is OVERLOADED when the vote
+	 *             could not be admitted in time.
 	 */
 	void voteForCandidate(int voter, int voteFor) throws FavoriteModelException;
 
@@ -112,7 +115,13 @@ public interface FavoriteModel {
 	 * @param candidateId
 	 * @return
 	 * @throws FavoriteModelException
-	 *             thrown when a malfunction occurs.
+	 *             thrown when a malfunction occurs, with the cause OVERLOADED
+	 *             when the call could not be admitted in time.
 	 */
 	List<Voting> getVotings(int candidateId) throws FavoriteModelException;
+
+	/**
+	 * @return the counters of admitted and rejected calls
+	 */
+	AdmissionStatistics getAdmissionStatistics();
 }
@@ -33,7 +33,7 @@ public class FavoriteModelException extends Exception {
 	protected final Cause cause;
 
 	public static enum Cause {
-		UNKNOWN, NOT_ENOUGH_CREDIT, SERVER_NOT_AVAILABLE, ALLREADY_PAIRED
+		UNKNOWN, NOT_ENOUGH_CREDIT, SERVER_NOT_AVAILABLE, ALLREADY_PAIRED, OVERLOADED
 	}
 
 	/**
@@ -92,6 +92,18 @@ public class FavoriteModelException extends Exception {
 		this.cause = cause;
 	}
 
+	/**
+	 * Constructor setting the cause for the exception together with the
+	 * exception that lead to it
+	 * 
+	 * @param cause
+	 * @param throwable
+	 */
+	public FavoriteModelException(final Cause cause, final Throwable throwable) {
+		super(throwable);
+		this.cause = cause;
+	}
+
 	/**
 	 * Standard Constructor setting the cause for the exception and adds a more
 	 * detailed message to it-
@@ -21,9 +21,9 @@ package pb.model.impl;
 
 import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -37,13 +37,16 @@ import org.osgi.service.component.ComponentContext;
 
 import pb.model.FavoriteModel;
 import pb.model.FavoriteModelException;
+import pb.persistence.AdaptiveAdmission;
+import pb.persistence.AdmissionStatistics;
 import pb.persistence.PbStorage;
+import pb.persistence.PbStorage.VoteResult;
+import pb.persistence.StorageOverloadException;
 import pb.persistence.avatar.Images;
 import pb.persistence.entity.Candidate;
 import pb.persistence.entity.Candidate.Gender;
 import pb.persistence.entity.Credit;
-import pb.persistence.entity.Vote;
-import pb.persistence.entity.VotePK;
+import pb.persistence.entity.VotingPair;
 
 /**
  * The Favorite Mdoel service contains the logic of the game. It stores the
@@ -58,12 +61,19 @@ import pb.persistence.entity.VotePK;
 public class FavoritModelImpl implements FavoriteModel {
 
 	protected PbStorage storage = null;
-	protected ReentrantLock mutex = new ReentrantLock();
-	protected Semaphore storageSem = new Semaphore(0);
-	protected int maxParallel = 10;
+	protected static final int lockStripes = 64;
+	protected LockStripes locks = new LockStripes(lockStripes);
+	protected static final int initialAdmissionLimit = 10;
+	protected static final int defaultAdmissionLimitMin = 1;
+	protected static final int defaultAdmissionLimitMax = 100;
+	protected final AdaptiveAdmission admission = new AdaptiveAdmission(initialAdmissionLimit,
+			defaultAdmissionLimitMin, defaultAdmissionLimitMax);
 	protected static final int defaultNumberOfCandidates = 400;
 	protected static final int defaultStartCredits = 25;
 	protected static final int defaultMaxLikes = 3;
+	protected static final int maxVoteAttempts = 5;
+	protected static final int seedBatchSize = 1000;
+	protected static final int defaultAdmissionTimeout = 500;
 
 	@Property(intValue = defaultNumberOfCandidates)
 	public static final String NUMBER_OF_CANDIDATES_NAME = "NumberOfCandidates";
@@ -77,9 +87,20 @@ public class FavoritModelImpl implements FavoriteModel {
 	public static final String MAX_LIKES_NAME = "MaxLikes";
 	protected int maxLikes = defaultMaxLikes;
 
+	@Property(intValue = defaultAdmissionTimeout)
+	public static final String ADMISSION_TIMEOUT_NAME = "AdmissionTimeout";
+	protected int admissionTimeout = defaultAdmissionTimeout;
+
+	@Property(intValue = defaultAdmissionLimitMin)
+	public static final String ADMISSION_LIMIT_MIN_NAME = "AdmissionLimitMin";
+
+	@Property(intValue = defaultAdmissionLimitMax)
+	public static final String ADMISSION_LIMIT_MAX_NAME = "AdmissionLimitMax";
+
 	/**
 	 * Activate method creating the database with all candidate objects and
-	 * fills their credits
+	 * fills their credits. Candidates already in a persistent database are
+	 * kept, only the missing ids are seeded.
 	 * 
 	 * @param context
 	 */
@@ -90,23 +111,67 @@ public class FavoritModelImpl implements FavoriteModel {
 				defaultNumberOfCandidates);
 		startCredit = readInteger(props, START_CREDITS_NAME, defaultStartCredits);
 		maxLikes = readInteger(props, MAX_LIKES_NAME, defaultMaxLikes);
+		admissionTimeout = readInteger(props, ADMISSION_TIMEOUT_NAME, defaultAdmissionTimeout);
+		admission.configure(readInteger(props, ADMISSION_LIMIT_MIN_NAME, defaultAdmissionLimitMin),
+				readInteger(props, ADMISSION_LIMIT_MAX_NAME, defaultAdmissionLimitMax));
 		try {
-			for (int i = 0; i < numberOfCandidates; ++i) {
+			// web clients get ids from a sequence, the seeded range can have gaps
+			seedCandidates(0, numberOfCandidates);
+			numberOfCandidates = Math.max(numberOfCandidates, storage.getCandidateCount());
+		} catch (final Exception e) {
+			Log.error("Error initiaing DataBase", e);
+		}
+	}
+
+	/**
+	 * Stores a fresh candidate with the default avatar and the start credit for
+	 * each id in the given range that isn't stored yet, reading the stored ids
+	 * and writing the new candidates seedBatchSize ids at a time.
+	 * 
+	 * @param from
+	 *            first id to create, included
+	 * @param to
+	 *            last id to create, excluded
+	 * @throws StorageOverloadException
+	 *             when the stored ids can't be read
+	 */
+	protected void seedCandidates(final int from, final int to) {
+		final List<Candidate> candidates = new ArrayList<>(seedBatchSize);
+		final List<Credit> credits = new ArrayList<>(seedBatchSize);
+		int seeded = 0;
+		int start = from;
+		while (start < to) {
+			final int end = start + Math.min(seedBatchSize, to - start);
+			final List<Integer> ids = storage.getCandidateIds(start, end);
+			if (ids == null) {
+				// seeding blindly would overwrite the stored candidates
+				throw new StorageOverloadException("Can't read the candidate ids from " + start);
+			}
+			final Set<Integer> stored = new HashSet<>(ids);
+			for (int i = start; i < end; ++i) {
+				if (stored.contains(i)) {
+					continue;
+				}
 				// We have a 50 Percent chance to guess right, let's use it.
 				Candidate candidate;
 				if (Math.random() > 0.5) {
-					candidate = new Candidate(i, Images.getFemaleAvatar(), "", 18, "",
-							Gender.FEMALE);
+					candidate = new Candidate(i, Images.getFemaleAvatar(), "", 18, "", Gender.FEMALE);
 				} else {
 					candidate = new Candidate(i, Images.getMaleAvatar(), "", 18, "", Gender.MALE);
 				}
-				storage.storeCandidate(candidate);
-				final Credit credit = new Credit(i, startCredit);
-				storage.storeCredit(credit);
+				candidates.add(candidate);
+				credits.add(new Credit(i, startCredit));
 			}
-		} catch (final Exception e) {
-			Log.error("Error initiaing DataBase", e);
+			if (!candidates.isEmpty()) {
+				storage.storeCandidates(candidates);
+				storage.storeCredits(credits);
+				seeded += candidates.size();
+				candidates.clear();
+				credits.clear();
+			}
+			start = end;
 		}
+		Log.info("Seeded %d candidates with ids from %d to %d", seeded, from, to);
 	}
 
 	/**
@@ -122,46 +187,45 @@ public class FavoritModelImpl implements FavoriteModel {
 		final int modifiedNumberOfCandidates = readInteger(props, NUMBER_OF_CANDIDATES_NAME,
 				defaultNumberOfCandidates);
 		final int modifiedStartCredit = readInteger(props, START_CREDITS_NAME, defaultStartCredits);
+		admissionTimeout = readInteger(props, ADMISSION_TIMEOUT_NAME, defaultAdmissionTimeout);
+		admission.configure(readInteger(props, ADMISSION_LIMIT_MIN_NAME, defaultAdmissionLimitMin),
+				readInteger(props, ADMISSION_LIMIT_MAX_NAME, defaultAdmissionLimitMax));
 
 		if (modifiedNumberOfCandidates > numberOfCandidates) {
 			try {
-				for (int i = numberOfCandidates; i < modifiedNumberOfCandidates; ++i) {
-					// We have a 50 Percent chance to guess right, let's use it.
-					Candidate candidate;
-					if (Math.random() > 0.5) {
-						candidate = new Candidate(i, Images.getFemaleAvatar(), "", 18, "",
-								Gender.FEMALE);
-					} else {
-						candidate = new Candidate(i, Images.getMaleAvatar(), "", 18, "",
-								Gender.MALE);
-					}
-					storage.storeCandidate(candidate);
-					final Credit credit = new Credit(i, startCredit);
-					storage.storeCredit(credit);
-				}
+				seedCandidates(numberOfCandidates, modifiedNumberOfCandidates);
 				numberOfCandidates = modifiedNumberOfCandidates;
 			} catch (final Exception e) {
 				Log.error("Error Extending DataBase", e);
 			}
 		}
 		if (modifiedStartCredit > startCredit) {
-			final int diff = modifiedStartCredit - startCredit;
-			for (int i = 0; i < numberOfCandidates; ++i) {
-				mutex.lock();
-				try {
-					final Credit credit = storage.getCredit(i);
-					credit.setCredit(credit.getCredit() + diff);
-					storage.storeCredit(credit);
-				} catch (final Throwable e) {
-					Log.error("Error Extending DataBase", e);
-				} finally {
-					mutex.unlock();
-				}
-			}
+			addCredits(modifiedStartCredit - startCredit);
 			startCredit = modifiedStartCredit;
 		}
 	}
 
+	/**
+	 * Adds the given amount of credits to every candidate
+	 * 
+	 * @param diff
+	 *            the number of credits to add
+	 */
+	protected void addCredits(final int diff) {
+		for (int i = 0; i < numberOfCandidates; ++i) {
+			final int stripes[] = locks.lock(creditKey(i));
+			try {
+				final Credit credit = storage.getCredit(i);
+				credit.setCredit(credit.getCredit() + diff);
+				storage.storeCredit(credit);
+			} catch (final Throwable e) {
+				Log.error("Error Extending DataBase", e);
+			} finally {
+				locks.unlock(stripes);
+			}
+		}
+	}
+
 	/**
 	 * Reads an integer Value from the dictionary
 	 * 
@@ -189,6 +253,31 @@ public class FavoritModelImpl implements FavoriteModel {
 		return ret;
 	}
 
+	/**
+	 * @param candidateId
+	 *            id of a candidate
+	 * @return the lock key guarding the credit of the candidate
+	 */
+	protected static long creditKey(final int candidateId) {
+		return candidateId;
+	}
+
+	/**
+	 * The key is the same for both directions of a vote, it guards the two
+	 * vote rows between the candidates.
+	 * 
+	 * @param voter
+	 *            id of the one candidate
+	 * @param voteFor
+	 *            id of the other candidate
+	 * @return the lock key guarding the votes between the two candidates
+	 */
+	protected static long pairKey(final int voter, final int voteFor) {
+		final long low = Math.min(voter, voteFor);
+		final long high = Math.max(voter, voteFor);
+		return ((low + 1) << 32) | (high & 0xFFFFFFFFL);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -196,65 +285,104 @@ public class FavoritModelImpl implements FavoriteModel {
 	 */
 	@Override
 	public void voteForCandidate(final int voter, final int voteFor) throws FavoriteModelException {
-		if (storageSem.tryAcquire()) {
-			mutex.lock();
+		admit();
+		try {
+			final int stripes[] = locks.lock(pairKey(voter, voteFor), creditKey(voter),
+					creditKey(voteFor));
 			try {
-				final Credit credit = storage.getCredit(voter);
-				final Candidate rCandidate = storage.getCandidate(voteFor);
+				checkVoteResult(voteWithRetry(voter, voteFor), voter, voteFor);
+			} finally {
+				locks.unlock(stripes);
+			}
+		} catch (final StorageOverloadException e) {
+			throw new FavoriteModelException(FavoriteModelException.Cause.OVERLOADED, e);
+		} finally {
+			admission.leave();
+		}
+	}
 
-				if (credit.getCredit() <= 0) {
-					throw new FavoriteModelException(FavoriteModelException.Cause.NOT_ENOUGH_CREDIT);
-				}
-				if (rCandidate == null) {
-					throw new FavoriteModelException(FavoriteModelException.Cause.UNKNOWN);
-				} else {
-					if (!rCandidate.isAvailable()) {
-						throw new FavoriteModelException(
-								FavoriteModelException.Cause.ALLREADY_PAIRED);
-					}
+	/**
+	 * Waits up to AdmissionTimeout ms for a storage slot. The number of slots
+	 * adapts to the latency of the storage. Every admitted call must leave the
+	 * admission afterwards.
+	 * 
+	 * @throws FavoriteModelException
+	 *             SERVER_NOT_AVAILABLE when no storage is bound, OVERLOADED
+	 *             with a StorageOverloadException as cause when no slot freed
+	 *             up in time
+	 */
+	protected void admit() throws FavoriteModelException {
+		if (storage == null) {
+			throw new FavoriteModelException(FavoriteModelException.Cause.SERVER_NOT_AVAILABLE);
+		}
+		if (!admission.enter(admissionTimeout)) {
+			Log.debug("Model call rejected, %s", admission);
+			throw new FavoriteModelException(FavoriteModelException.Cause.OVERLOADED,
+					new StorageOverloadException("No model slot free within " + admissionTimeout
+							+ " ms"));
+		}
+	}
 
-					final VotePK pk = new VotePK(voter, voteFor);
-					final VotePK rpk = new VotePK(voteFor, voter);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.FavoriteModel#getAdmissionStatistics()
+	 */
+	@Override
+	public AdmissionStatistics getAdmissionStatistics() {
+		return admission;
+	}
 
-					Vote vote = storage.getVote(pk);
-					Vote rVote = storage.getVote(rpk);
-					if (vote == null) {
-						vote = new Vote(voter, voteFor);
-					}
-					if (rVote == null) {
-						rVote = new Vote(voteFor, voter);
-					}
-					if (vote.getLikes() < maxLikes) {
-						vote.setLikes(vote.getLikes() + 1);
-						credit.setCredit(credit.getCredit() - 1);
-					}
-					// Check for Partner found
-					if ((vote.getLikes() == maxLikes) && (rVote.getLikes() == maxLikes)) {
-						final Credit rCredit = storage.getCredit(voteFor);
-						final Candidate candidate = storage.getCandidate(voter);
+	/**
+	 * Votes on the storage and repeats the vote as long as it conflicts with a
+	 * concurrent writer, e.g. another model instance on the same database.
+	 * 
+	 * @param voter
+	 *            the id of the candidate who votes
+	 * @param voteFor
+	 *            the id of the candidate that is voted for
+	 * @return the outcome of the last attempt
+	 */
+	protected VoteResult voteWithRetry(final int voter, final int voteFor) {
+		VoteResult result = storage.vote(voter, voteFor, maxLikes);
+		for (int attempt = 1; (result == VoteResult.CONFLICT) && (attempt < maxVoteAttempts);
+				++attempt) {
+			Log.debug("Repeating conflicting vote from %d for %d", voter, voteFor);
+			result = storage.vote(voter, voteFor, maxLikes);
+		}
+		return result;
+	}
 
-						storage.removeAllVotes(voter);
-						storage.removeAllVotes(voteFor);
-						credit.setCredit(0);
-						rCredit.setCredit(0);
-						candidate.setAvailable(false);
-						rCandidate.setAvailable(false);
-						storage.storeCredit(rCredit);
-						storage.storeCandidate(candidate);
-						storage.storeCandidate(rCandidate);
-					}
-					storage.storeVote(vote);
-					storage.storeVote(rVote);
-					storage.storeCredit(credit);
-				}
-			} catch (final FavoriteModelException fme) {
-				throw (fme);
-			} catch (final Exception thr) {
-				Log.error("Error occured while voting", thr);
-			} finally {
-				mutex.unlock();
-				storageSem.release();
-			}
+	/**
+	 * Translates the outcome of a vote into the exception the caller expects.
+	 * 
+	 * @param result
+	 *            the outcome of the vote
+	 * @param voter
+	 *            the id of the candidate who voted
+	 * @param voteFor
+	 *            the id of the candidate that was voted for
+	 * @throws FavoriteModelException
+	 *             when the vote was rejected
+	 */
+	protected void checkVoteResult(final VoteResult result, final int voter, final int voteFor)
+			throws FavoriteModelException {
+		switch (result) {
+		case NOT_ENOUGH_CREDIT:
+			throw new FavoriteModelException(FavoriteModelException.Cause.NOT_ENOUGH_CREDIT);
+		case UNKNOWN_CANDIDATE:
+			throw new FavoriteModelException(FavoriteModelException.Cause.UNKNOWN);
+		case ALREADY_PAIRED:
+			throw new FavoriteModelException(FavoriteModelException.Cause.ALLREADY_PAIRED);
+		case CONFLICT:
+			Log.error("Vote from %d for %d still conflicts after %d attempts", voter, voteFor,
+					maxVoteAttempts);
+			break;
+		case FAILED:
+			Log.error("Error occured while voting from %d for %d", voter, voteFor);
+			break;
+		default:
+			break;
 		}
 	}
 
@@ -266,28 +394,23 @@ public class FavoritModelImpl implements FavoriteModel {
 	@Override
 	public List<Voting> getVotings(final int candidateId) throws FavoriteModelException {
 		final List<Voting> ret = new ArrayList<>();
-		if (storageSem.tryAcquire()) {
-			try {
-				final List<Vote> votes = storage.getVotesByCandidateId(candidateId);
-				for (final Vote vote : votes) {
-					final Voting voting = new Voting(vote.getVoteFor(), vote.getLikes());
-					final VotePK pk = new VotePK(vote.getVoteFor(), candidateId);
-					final Vote rVote = storage.getVote(pk);
-					if (rVote == null) {
-						voting.setOtherLikes(0);
-					} else {
-						voting.setOtherLikes(rVote.getLikes());
-					}
-					if ((voting.getOwnLikes() == maxLikes) && (voting.getOtherLikes() == maxLikes)) {
-						voting.setPair(true);
-					} else {
-						voting.setPair(false);
-					}
-					ret.add(voting);
+		admit();
+		try {
+			final List<VotingPair> pairs = storage.getVotingPairs(candidateId);
+			for (final VotingPair pair : pairs) {
+				final Voting voting = new Voting(pair.getVoteFor(), pair.getLikes());
+				voting.setOtherLikes(pair.getOtherLikes());
+				if ((voting.getOwnLikes() == maxLikes) && (voting.getOtherLikes() == maxLikes)) {
+					voting.setPair(true);
+				} else {
+					voting.setPair(false);
 				}
-			} finally {
-				storageSem.release();
+				ret.add(voting);
 			}
+		} catch (final StorageOverloadException e) {
+			throw new FavoriteModelException(FavoriteModelException.Cause.OVERLOADED, e);
+		} finally {
+			admission.leave();
 		}
 		return ret;
 	}
@@ -300,7 +423,7 @@ public class FavoritModelImpl implements FavoriteModel {
 	 */
 	protected void bind(final PbStorage storage) {
 		this.storage = storage;
-		storageSem.release(maxParallel);
+		admission.open();
 	}
 
 	/**
@@ -312,7 +435,7 @@ public class FavoritModelImpl implements FavoriteModel {
 	protected void unbind(final PbStorage storage) {
 		try {
 			if (storage.equals(this.storage)) {
-				storageSem.acquire(maxParallel);
+				admission.close();
 				this.storage = null;
 			}
 		} catch (final InterruptedException e) {
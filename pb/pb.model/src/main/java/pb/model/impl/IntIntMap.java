@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.model.impl;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from int keys to int values, without boxing. It uses open addressing
+ * with linear probing. The map is not thread safe, users must synchronize the
+ * access.
+ * 
+ * @author oliver
+ */
+public class IntIntMap {
+
+	protected static final int FREE = Integer.MIN_VALUE;
+	protected static final int minCapacity = 4;
+
+	protected int keys[];
+	protected int values[];
+	protected int size = 0;
+
+	public IntIntMap() {
+		super();
+		keys = new int[minCapacity];
+		values = new int[minCapacity];
+		Arrays.fill(keys, FREE);
+	}
+
+	/**
+	 * @param key
+	 *            the key
+	 * @return the slot where the probe sequence of the key starts
+	 */
+	protected int homeOf(final int key) {
+		final int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+
+	/**
+	 * @param key
+	 *            the key to search the slot for
+	 * @return the slot containing the key or the free slot where it would be
+	 *         inserted
+	 */
+	protected int slotOf(final int key) {
+		final int mask = keys.length - 1;
+		int slot = homeOf(key);
+		while (keys[slot] != FREE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @param key
+	 *            the key, must not be Integer.MIN_VALUE
+	 * @param defaultValue
+	 *            value returned when the key is not contained
+	 * @return the value stored for the key or the default value
+	 */
+	public int get(final int key, final int defaultValue) {
+		final int slot = slotOf(key);
+		return keys[slot] == FREE ? defaultValue : values[slot];
+	}
+
+	/**
+	 * @param key
+	 *            the key, must not be Integer.MIN_VALUE
+	 * @return true when a value is stored for the key
+	 */
+	public boolean containsKey(final int key) {
+		return keys[slotOf(key)] != FREE;
+	}
+
+	/**
+	 * Stores the value for the key, replacing an existing one
+	 * 
+	 * @param key
+	 *            the key, must not be Integer.MIN_VALUE
+	 * @param value
+	 *            the value to store
+	 */
+	public void put(final int key, final int value) {
+		int slot = slotOf(key);
+		if (keys[slot] == FREE) {
+			if ((size + 1) * 4 > keys.length * 3) {
+				resize(keys.length * 2);
+				slot = slotOf(key);
+			}
+			keys[slot] = key;
+			++size;
+		}
+		values[slot] = value;
+	}
+
+	/**
+	 * Removes the key from the map. The following entries of the probe
+	 * sequence are shifted back, that no tombstones are needed.
+	 * 
+	 * @param key
+	 *            the key to remove
+	 * @return true when the key was contained
+	 */
+	public boolean remove(final int key) {
+		int slot = slotOf(key);
+		if (keys[slot] == FREE) {
+			return false;
+		}
+		final int mask = keys.length - 1;
+		int next = (slot + 1) & mask;
+		while (keys[next] != FREE) {
+			final int home = homeOf(keys[next]);
+			// move the entry when its home slot is not between slot and next
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = keys[next];
+				values[slot] = values[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[slot] = FREE;
+		--size;
+		return true;
+	}
+
+	/**
+	 * removes all entries
+	 */
+	public void clear() {
+		keys = new int[minCapacity];
+		values = new int[minCapacity];
+		Arrays.fill(keys, FREE);
+		size = 0;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a copy of all keys contained in the map
+	 */
+	public int[] keys() {
+		final int ret[] = new int[size];
+		int count = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != FREE) {
+				ret[count++] = keys[i];
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param capacity
+	 *            the new number of slots, must be a power of two
+	 */
+	protected void resize(final int capacity) {
+		final int oldKeys[] = keys;
+		final int oldValues[] = values;
+		keys = new int[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] != FREE) {
+				final int slot = slotOf(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
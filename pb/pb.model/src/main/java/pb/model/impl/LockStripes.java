@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.model.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks, keys are mapped onto it by their hash. Several keys
+ * are always locked in ascending order of their stripes, that two threads
+ * locking overlapping sets of keys can't deadlock.
+ * 
+ * @author oliver
+ */
+public class LockStripes {
+
+	protected final ReentrantLock locks[];
+	protected final int mask;
+
+	/**
+	 * Constructor creating the locks
+	 * 
+	 * @param stripes
+	 *            minimum number of locks, it is rounded up to a power of two
+	 */
+	public LockStripes(final int stripes) {
+		super();
+		int size = 1;
+		while (size < stripes) {
+			size <<= 1;
+		}
+		locks = new ReentrantLock[size];
+		for (int i = 0; i < size; ++i) {
+			locks[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * @param key
+	 *            the key to map
+	 * @return the index of the stripe guarding the key
+	 */
+	protected int stripeOf(final long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		hash ^= hash >>> 32;
+		return (int) hash & mask;
+	}
+
+	/**
+	 * Locks the stripes of all given keys. Keys sharing a stripe lock it only
+	 * once.
+	 * 
+	 * @param keys
+	 *            the keys to lock
+	 * @return the locked stripes, that must be handed to
+	 *         {@link #unlock(int[])}
+	 */
+	public int[] lock(final long... keys) {
+		final int stripes[] = new int[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			stripes[i] = stripeOf(keys[i]);
+		}
+		Arrays.sort(stripes);
+		int count = 0;
+		for (int i = 0; i < stripes.length; ++i) {
+			if (count == 0 || stripes[count - 1] != stripes[i]) {
+				stripes[count++] = stripes[i];
+			}
+		}
+		final int ret[] = Arrays.copyOf(stripes, count);
+		for (int i = 0; i < ret.length; ++i) {
+			locks[ret[i]].lock();
+		}
+		return ret;
+	}
+
+	/**
+	 * Locks every stripe, which excludes all other lock holders.
+	 * 
+	 * @return the locked stripes, that must be handed to
+	 *         {@link #unlock(int[])}
+	 */
+	public int[] lockAll() {
+		final int ret[] = new int[locks.length];
+		for (int i = 0; i < ret.length; ++i) {
+			ret[i] = i;
+			locks[i].lock();
+		}
+		return ret;
+	}
+
+	/**
+	 * Unlocks stripes previously locked by {@link #lock(long...)}
+	 * 
+	 * @param stripes
+	 *            the stripes returned by the lock call
+	 */
+	public void unlock(final int stripes[]) {
+		for (int i = stripes.length - 1; i >= 0; --i) {
+			locks[stripes[i]].unlock();
+		}
+	}
+}
@@ -0,0 +1,542 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.model.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.ComponentContext;
+
+import pb.model.FavoriteModel;
+import pb.model.FavoriteModelException;
+import pb.persistence.PbStorage;
+import pb.persistence.PbStorage.VoteResult;
+import pb.persistence.StorageOverloadException;
+import pb.persistence.entity.Candidate;
+import pb.persistence.entity.Credit;
+import pb.persistence.entity.Vote;
+
+/**
+ * Favorite Model that keeps the likes, credits and the availability of all
+ * candidates in memory. Votes and pair detection are served from memory only,
+ * changes are written to the PBStorage in the background by a write-behind
+ * timer. On activation the state is rebuilt from the storage.
+ * 
+ * The component only starts when a configuration for it exists. While it is
+ * active the database backed model "pb.model" is disabled, so there is only
+ * one engine owning the votes and credits, and the front ends bound to it
+ * move over. The higher service ranking makes new consumers prefer this one.
+ * Credits read directly from the storage may lag behind by one flush interval.
+ * 
+ * @author oliver
+ */
+@Component(name = "pb.model.memory", label = "PB Model in Memory", immediate = true, metatype = true, policy = ConfigurationPolicy.REQUIRE)
+@Service(value = FavoriteModel.class)
+@Properties(value = { @Property(name = Constants.SERVICE_RANKING, intValue = 10) })
+@SuppressWarnings("PMD.AvoidInstantiatingObjectsInLoops")
+public class MemoryFavoritModelImpl extends FavoritModelImpl {
+
+	protected static final int defaultFlushInterval = 1000;
+	protected static final String databaseModelName = "pb.model";
+
+	@Property(intValue = defaultFlushInterval)
+	public static final String FLUSH_INTERVAL_NAME = "WriteBehindInterval";
+	protected int flushInterval = defaultFlushInterval;
+
+	// The arrays are only replaced while all lock stripes are held. likes is
+	// volatile, because getVotings reads it without holding a stripe.
+	protected volatile IntIntMap likes[] = new IntIntMap[0];
+	protected int credits[] = new int[0];
+	protected boolean available[] = new boolean[0];
+	protected boolean known[] = new boolean[0];
+	protected boolean rebuilt = false;
+	/** set between activate and deactivate, a storage bound meanwhile replaces one */
+	protected volatile boolean active = false;
+
+	protected final Set<Long> dirtyVotes = Collections
+			.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	protected final Set<Integer> dirtyCredits = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	protected final Set<Integer> newPairs = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	protected final ReentrantLock flushLock = new ReentrantLock();
+	protected Timer flushTimer = null;
+
+	/**
+	 * Activate method seeding the database like the database backed model,
+	 * rebuilding the in memory state from it and starting the write-behind
+	 * timer.
+	 * 
+	 * @param context
+	 */
+	@Override
+	@Activate
+	protected void activate(final ComponentContext context) {
+		// the database model would write the same rows with its own state
+		context.disableComponent(databaseModelName);
+		super.activate(context);
+		final Dictionary<?, ?> props = context.getProperties();
+		flushInterval = readInteger(props, FLUSH_INTERVAL_NAME, defaultFlushInterval);
+		rebuild();
+		startFlusher();
+		active = true;
+	}
+
+	/**
+	 * Deactivate method stopping the write-behind timer after writing all
+	 * pending changes and handing over to the database backed model.
+	 * 
+	 * @param context
+	 */
+	@Deactivate
+	protected void deactivate(final ComponentContext context) {
+		active = false;
+		stopFlusher();
+		context.enableComponent(databaseModelName);
+	}
+
+	/**
+	 * Starts the write-behind timer
+	 */
+	protected void startFlusher() {
+		flushTimer = new Timer("pb.model.memory.flush", true);
+		flushTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval);
+	}
+
+	/**
+	 * Cancels the write-behind timer and writes all pending changes to the
+	 * storage.
+	 */
+	protected void stopFlusher() {
+		if (flushTimer != null) {
+			flushTimer.cancel();
+			flushTimer = null;
+		}
+		flush();
+	}
+
+	/**
+	 * Reads credits, availability and all votes from the storage. The state
+	 * read from a storage before is dropped.
+	 */
+	protected void rebuild() {
+		final int stripes[] = locks.lockAll();
+		try {
+			likes = new IntIntMap[0];
+			credits = new int[0];
+			available = new boolean[0];
+			known = new boolean[0];
+			dirtyVotes.clear();
+			dirtyCredits.clear();
+			newPairs.clear();
+			resize(numberOfCandidates);
+			load(0, numberOfCandidates);
+			rebuilt = true;
+		} finally {
+			locks.unlock(stripes);
+		}
+	}
+
+	/**
+	 * Reads credits, availability and the votes of the candidates in the
+	 * given range from the storage. Must be called while all lock stripes are
+	 * held and the arrays cover the range.
+	 * 
+	 * @param from
+	 *            first id to read, included
+	 * @param to
+	 *            last id to read, excluded
+	 */
+	protected void load(final int from, final int to) {
+		for (int id = from; id < to; ++id) {
+			final Credit credit = storage.getCredit(id);
+			final Candidate candidate = storage.getCandidate(id);
+			known[id] = (credit != null) && (candidate != null);
+			if (known[id]) {
+				credits[id] = credit.getCredit();
+				available[id] = candidate.isAvailable();
+			}
+		}
+		for (int id = from; id < to; ++id) {
+			for (final Vote vote : storage.getVotesByCandidateId(id)) {
+				final int other = vote.getVoteFor();
+				if ((other >= 0) && (other < likes.length)) {
+					likes[id].put(other, vote.getLikes());
+					if (!likes[other].containsKey(id)) {
+						likes[other].put(id, 0);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grows the state arrays to the given number of candidates. Must be called
+	 * while all lock stripes are held.
+	 * 
+	 * @param size
+	 *            the new number of candidates
+	 */
+	protected void resize(final int size) {
+		if (size > likes.length) {
+			final IntIntMap newLikes[] = Arrays.copyOf(likes, size);
+			for (int i = likes.length; i < size; ++i) {
+				newLikes[i] = new IntIntMap();
+			}
+			credits = Arrays.copyOf(credits, size);
+			available = Arrays.copyOf(available, size);
+			known = Arrays.copyOf(known, size);
+			likes = newLikes;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.impl.FavoritModelImpl#seedCandidates(int, int)
+	 */
+	@Override
+	protected void seedCandidates(final int from, final int to) {
+		super.seedCandidates(from, to);
+		if (rebuilt) {
+			final int stripes[] = locks.lockAll();
+			try {
+				// the range can hold candidates that were stored already
+				resize(to);
+				load(from, to);
+			} finally {
+				locks.unlock(stripes);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.impl.FavoritModelImpl#addCredits(int)
+	 */
+	@Override
+	protected void addCredits(final int diff) {
+		for (int i = 0; i < numberOfCandidates; ++i) {
+			final int stripes[] = locks.lock(creditKey(i));
+			try {
+				if (isKnown(i)) {
+					credits[i] += diff;
+					dirtyCredits.add(i);
+				}
+			} finally {
+				locks.unlock(stripes);
+			}
+		}
+	}
+
+	/**
+	 * @param id
+	 *            id of a candidate
+	 * @return true when credit and candidate of the id exist
+	 */
+	protected boolean isKnown(final int id) {
+		return (id >= 0) && (id < known.length) && known[id];
+	}
+
+	/**
+	 * @return the key of a vote within the dirty set
+	 */
+	protected static long voteKey(final int voter, final int voteFor) {
+		return ((long) voter << 32) | (voteFor & 0xFFFFFFFFL);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.impl.FavoritModelImpl#voteForCandidate(int, int)
+	 */
+	@Override
+	public void voteForCandidate(final int voter, final int voteFor) throws FavoriteModelException {
+		VoteResult result;
+		final int stripes[] = locks.lock(pairKey(voter, voteFor), creditKey(voter),
+				creditKey(voteFor));
+		try {
+			result = vote(voter, voteFor);
+		} finally {
+			locks.unlock(stripes);
+		}
+		checkVoteResult(result, voter, voteFor);
+	}
+
+	/**
+	 * Does the vote on the in memory state. Must be called while the stripes of
+	 * the pair and of both credits are held.
+	 * 
+	 * @param voter
+	 *            the id of the candidate who votes
+	 * @param voteFor
+	 *            the id of the candidate that is voted for
+	 * @return the outcome of the vote
+	 */
+	protected VoteResult vote(final int voter, final int voteFor) {
+		if (!isKnown(voter)) {
+			return VoteResult.UNKNOWN_CANDIDATE;
+		}
+		if (credits[voter] <= 0) {
+			return VoteResult.NOT_ENOUGH_CREDIT;
+		}
+		if (!isKnown(voteFor)) {
+			return VoteResult.UNKNOWN_CANDIDATE;
+		}
+		if (!available[voteFor]) {
+			return VoteResult.ALREADY_PAIRED;
+		}
+		final IntIntMap row = likes[voter];
+		final IntIntMap rRow = likes[voteFor];
+		int own;
+		synchronized (row) {
+			own = row.get(voteFor, 0);
+			if (own < maxLikes) {
+				++own;
+				--credits[voter];
+				dirtyCredits.add(voter);
+			}
+			row.put(voteFor, own);
+		}
+		int other;
+		synchronized (rRow) {
+			other = rRow.get(voter, 0);
+			rRow.put(voter, other);
+		}
+		dirtyVotes.add(voteKey(voter, voteFor));
+		dirtyVotes.add(voteKey(voteFor, voter));
+
+		VoteResult ret = VoteResult.VOTED;
+		// Check for Partner found
+		if ((own == maxLikes) && (other == maxLikes)) {
+			removeVotes(voter, voteFor);
+			removeVotes(voteFor, voter);
+			credits[voter] = 0;
+			credits[voteFor] = 0;
+			available[voter] = false;
+			available[voteFor] = false;
+			dirtyCredits.add(voter);
+			dirtyCredits.add(voteFor);
+			newPairs.add(voter);
+			newPairs.add(voteFor);
+			ret = VoteResult.PAIRED;
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes all votes from and to a candidate except the ones with the given
+	 * partner. Row monitors are never held at the same time.
+	 * 
+	 * @param id
+	 *            the candidate whose votes are removed
+	 * @param keep
+	 *            the partner whose vote is kept
+	 */
+	protected void removeVotes(final int id, final int keep) {
+		final IntIntMap rows[] = likes;
+		final IntIntMap row = rows[id];
+		int partners[];
+		synchronized (row) {
+			partners = row.keys();
+			final int kept = row.get(keep, 0);
+			row.clear();
+			row.put(keep, kept);
+		}
+		for (final int partner : partners) {
+			if (partner != keep) {
+				final IntIntMap partnerRow = rows[partner];
+				synchronized (partnerRow) {
+					partnerRow.remove(id);
+				}
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.impl.FavoritModelImpl#getVotings(int)
+	 */
+	@Override
+	public List<Voting> getVotings(final int candidateId) throws FavoriteModelException {
+		final List<Voting> ret = new ArrayList<>();
+		final IntIntMap rows[] = likes;
+		if ((candidateId >= 0) && (candidateId < rows.length)) {
+			final IntIntMap row = rows[candidateId];
+			int others[];
+			int own[];
+			synchronized (row) {
+				others = row.keys();
+				own = new int[others.length];
+				for (int i = 0; i < others.length; ++i) {
+					own[i] = row.get(others[i], 0);
+				}
+			}
+			for (int i = 0; i < others.length; ++i) {
+				final Voting voting = new Voting(others[i], own[i]);
+				final IntIntMap otherRow = rows[others[i]];
+				synchronized (otherRow) {
+					voting.setOtherLikes(otherRow.get(candidateId, 0));
+				}
+				voting.setPair((voting.getOwnLikes() == maxLikes)
+						&& (voting.getOtherLikes() == maxLikes));
+				ret.add(voting);
+			}
+			Collections.sort(ret, new Comparator<Voting>() {
+				@Override
+				public int compare(final Voting first, final Voting second) {
+					return second.getOwnLikes() - first.getOwnLikes();
+				}
+			});
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes all changes since the last flush to the storage in one
+	 * transaction. The changes are collected while all lock stripes are held,
+	 * that they form a consistent snapshot. When they can't be written, they
+	 * are marked dirty again and written on the next flush, which gives the
+	 * same state since the removals of the pairs are repeated before the votes.
+	 */
+	protected void flush() {
+		final List<Integer> pairs = new ArrayList<>();
+		final List<Vote> votes = new ArrayList<>();
+		final List<Credit> creditList = new ArrayList<>();
+		flushLock.lock();
+		try {
+			final PbStorage flushStorage = storage;
+			if (flushStorage == null) {
+				return;
+			}
+			final int stripes[] = locks.lockAll();
+			try {
+				pairs.addAll(newPairs);
+				newPairs.clear();
+				for (final Long key : dirtyVotes) {
+					final int voter = (int) (key >> 32);
+					final int voteFor = key.intValue();
+					final IntIntMap row = likes[voter];
+					synchronized (row) {
+						if (row.containsKey(voteFor)) {
+							final Vote vote = new Vote(voter, voteFor);
+							vote.setLikes(row.get(voteFor, 0));
+							votes.add(vote);
+						}
+					}
+				}
+				dirtyVotes.clear();
+				for (final Integer id : dirtyCredits) {
+					creditList.add(new Credit(id, credits[id]));
+				}
+				dirtyCredits.clear();
+			} finally {
+				locks.unlock(stripes);
+			}
+			if (pairs.isEmpty() && votes.isEmpty() && creditList.isEmpty()) {
+				return;
+			}
+			if (!flushStorage.storeModelState(pairs, votes, creditList)) {
+				Log.error("Write-behind could not store %d pairs, %d votes and %d credits",
+						pairs.size(), votes.size(), creditList.size());
+				markDirty(pairs, votes, creditList);
+			}
+		} catch (final StorageOverloadException e) {
+			Log.error("Storage overloaded, the model state is written on the next flush", e);
+			markDirty(pairs, votes, creditList);
+		} catch (final Throwable thr) {
+			Log.error("Error writing the model state to the storage", thr);
+			markDirty(pairs, votes, creditList);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Marks the changes of a failed flush dirty again. The values are read
+	 * from memory on the next flush, so later changes are not overwritten.
+	 */
+	protected void markDirty(final List<Integer> pairs, final List<Vote> votes,
+			final List<Credit> creditList) {
+		newPairs.addAll(pairs);
+		for (final Vote vote : votes) {
+			dirtyVotes.add(voteKey(vote.getVoterId(), vote.getVoteFor()));
+		}
+		for (final Credit credit : creditList) {
+			dirtyCredits.add(credit.getCandidateId());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.impl.FavoritModelImpl#bind(pb.persistence.PbStorage)
+	 */
+	@Override
+	protected void bind(final PbStorage storage) {
+		// SCR may bind the replacement before it unbinds the old storage
+		if (active && this.storage != null) {
+			stopFlusher();
+		}
+		super.bind(storage);
+		// the dynamic reference changes the storage without a new activation
+		if (active) {
+			rebuild();
+			startFlusher();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.impl.FavoritModelImpl#unbind(pb.persistence.PbStorage)
+	 */
+	@Override
+	protected void unbind(final PbStorage storage) {
+		if (storage.equals(this.storage)) {
+			stopFlusher();
+		}
+		super.unbind(storage);
+	}
+}
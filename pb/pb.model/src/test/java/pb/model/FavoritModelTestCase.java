@@ -19,8 +19,14 @@
  */
 package pb.model;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
@@ -29,11 +35,21 @@ import org.osgi.service.component.ComponentContext;
 
 import pb.model.FavoriteModelException;
 import pb.model.FavoriteModel.Voting;
+import pb.model.help.RendezvousPBStorage;
 import pb.model.help.TestComponentContext;
 import pb.model.help.TestPBStorage;
 import pb.model.impl.FavoritModelImpl;
+import pb.model.impl.LockStripes;
+import pb.model.impl.MemoryFavoritModelImpl;
 import pb.persistence.PbStorage;
+import pb.persistence.PbStorage.VoteResult;
+import pb.persistence.StorageOverloadException;
+import pb.persistence.avatar.Images;
+import pb.persistence.entity.Candidate;
+import pb.persistence.entity.Candidate.Gender;
 import pb.persistence.entity.Credit;
+import pb.persistence.entity.Vote;
+import pb.persistence.entity.VotingPair;
 
 /**
  * @author oliver
@@ -86,7 +102,7 @@ public class FavoritModelTestCase extends TestCase {
 	 */
 	public void testVoteForCandidate() throws FavoriteModelException {
 		final int candidateId = 4;
-		final int otherId = 4;
+		final int otherId = 5;
 		// First the candidate votes for all other candidates
 		for (int i = 0; i < numberOfCandidates; ++i) {
 			if (i != candidateId) {
@@ -141,8 +157,377 @@ public class FavoritModelTestCase extends TestCase {
 		assertEquals(0, credit.getCredit());
 	}
 
+	/**
+	 * A vote conflicting with a concurrent writer has to be repeated until it
+	 * is done exactly once.
+	 * 
+	 * @throws FavoriteModelException
+	 */
+	public void testVoteRetriesOnConflict() throws FavoriteModelException {
+		final int conflicts[] = new int[] { 2 };
+		final TestPBStorage conflictStorage = new TestPBStorage() {
+			@Override
+			public VoteResult vote(final int voter, final int voteFor, final int maxLikes) {
+				if (conflicts[0] > 0) {
+					--conflicts[0];
+					return VoteResult.CONFLICT;
+				}
+				return super.vote(voter, voteFor, maxLikes);
+			}
+		};
+		final TestFavoriteModel model = new TestFavoriteModel();
+		model.bind(conflictStorage);
+		model.activate(componentContext);
+		try {
+			model.voteForCandidate(1, 2);
+			assertEquals(0, conflicts[0]);
+			assertEquals(numberOfCredits - 1, conflictStorage.getCredit(1).getCredit());
+			final List<Voting> votings = model.getVotings(1);
+			assertEquals(1, votings.size());
+			assertEquals(1, votings.get(0).getOwnLikes());
+		} finally {
+			model.unbind(conflictStorage);
+		}
+	}
+
+	/**
+	 * A call that finds all slots busy for longer than the admission timeout
+	 * is rejected with OVERLOADED, as is a call the storage rejects.
+	 * 
+	 * @throws Exception
+	 */
+	public void testOverloadIsSignalled() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(10);
+		final TestPBStorage slowStorage = new TestPBStorage() {
+			@Override
+			public List<VotingPair> getVotingPairs(final int voterId) {
+				if (voterId < 0) {
+					throw new StorageOverloadException("Test overload");
+				}
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.getVotingPairs(voterId);
+			}
+		};
+		final Hashtable<String, Object> props = new Hashtable<>();
+		props.put(TestFavoriteModel.NUMBER_OF_CANDIDATES_NAME, numberOfCandidates);
+		props.put(TestFavoriteModel.ADMISSION_TIMEOUT_NAME, 50);
+		final TestFavoriteModel model = new TestFavoriteModel();
+		model.bind(slowStorage);
+		model.activate(new TestComponentContext(props));
+		final Thread workers[] = new Thread[10];
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		try {
+			for (int t = 0; t < workers.length; ++t) {
+				final int id = t;
+				workers[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							model.getVotings(id);
+						} catch (final Throwable thr) {
+							failure.compareAndSet(null, thr);
+						}
+					}
+				};
+				workers[t].start();
+			}
+			started.await();
+			try {
+				model.voteForCandidate(1, 2);
+				fail("Vote was admitted although all slots are busy");
+			} catch (final FavoriteModelException e) {
+				assertEquals(FavoriteModelException.Cause.OVERLOADED, e.getModelCause());
+				assertNotNull(StorageOverloadException.find(e));
+			}
+			assertEquals(1, model.getAdmissionStatistics().getRejected());
+			release.countDown();
+			for (final Thread worker : workers) {
+				worker.join();
+			}
+			assertNull("Admitted call failed: " + failure.get(), failure.get());
+			try {
+				model.getVotings(-1);
+				fail("Overload of the storage was not passed on");
+			} catch (final FavoriteModelException e) {
+				assertEquals(FavoriteModelException.Cause.OVERLOADED, e.getModelCause());
+			}
+			model.voteForCandidate(1, 2);
+			assertEquals(workers.length + 2, model.getAdmissionStatistics().getAdmitted());
+		} finally {
+			release.countDown();
+			model.unbind(slowStorage);
+		}
+	}
+
+	/**
+	 * Votes between unrelated candidates must not serialize on a common lock.
+	 * Each thread votes within its own pair of candidates, the pairs are
+	 * chosen to share no lock stripe. The votes have to meet inside the
+	 * storage, which only happens when they run at the same time.
+	 * 
+	 * @throws Exception
+	 */
+	public void testUnrelatedVotesRunConcurrently() throws Exception {
+		final int threads = 4;
+		final int pairs[][] = new int[threads][];
+		final Set<Integer> usedStripes = new HashSet<>();
+		int found = 0;
+		for (int voter = 0; voter + 1 < numberOfCandidates && found < threads; voter += 2) {
+			final int stripes[] = TestFavoriteModel.stripesOfVote(voter, voter + 1);
+			final Set<Integer> candidateStripes = new HashSet<>();
+			for (final int stripe : stripes) {
+				candidateStripes.add(stripe);
+			}
+			if (Collections.disjoint(usedStripes, candidateStripes)) {
+				usedStripes.addAll(candidateStripes);
+				pairs[found++] = new int[] { voter, voter + 1 };
+			}
+		}
+		assertEquals("Not enough pairs on disjoint stripes", threads, found);
+
+		final RendezvousPBStorage rendezvousStorage = new RendezvousPBStorage(threads, 10000);
+		final TestFavoriteModel model = new TestFavoriteModel();
+		model.bind(rendezvousStorage);
+		model.activate(componentContext);
+		try {
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
+			final Thread workers[] = new Thread[threads];
+			for (int t = 0; t < threads; ++t) {
+				final int pair[] = pairs[t];
+				workers[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							model.voteForCandidate(pair[0], pair[1]);
+						} catch (final Throwable thr) {
+							failure.compareAndSet(null, thr);
+						}
+					}
+				};
+				workers[t].start();
+			}
+			for (final Thread worker : workers) {
+				worker.join();
+			}
+			assertNull("Voting failed: " + failure.get(), failure.get());
+			assertEquals("Unrelated votes were serialized", threads, rendezvousStorage.getMet());
+		} finally {
+			model.unbind(rendezvousStorage);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link pb.model.impl.FavoritModelImpl#activate(ComponentContext)}. A
+	 * restart on a filled storage keeps the stored candidates and credits, even
+	 * web-created ones within the range, and only seeds the missing ids.
+	 */
+	public void testRestartSkipsSeeding() {
+		final int candidateId = 3;
+		storage.getCandidate(candidateId).setName("Kept");
+		storage.storeCredit(new Credit(candidateId, 7));
+		// created by the web front end beyond the seeded ids
+		final int webId = numberOfCandidates + 2;
+		storage.storeCandidate(new Candidate(webId, Images.getMaleAvatar(), "Web", 30, "", Gender.MALE));
+		storage.storeCredit(new Credit(webId, 3));
+		final Hashtable<String, Object> props = new Hashtable<>();
+		props.put(TestFavoriteModel.MAX_LIKES_NAME, maxLikes);
+		props.put(TestFavoriteModel.NUMBER_OF_CANDIDATES_NAME, numberOfCandidates + 5);
+		props.put(TestFavoriteModel.START_CREDITS_NAME, numberOfCredits);
+		final TestFavoriteModel restarted = new TestFavoriteModel();
+		restarted.bind(storage);
+		restarted.activate(new TestComponentContext(props));
+		try {
+			assertEquals(numberOfCandidates + 5, storage.getCandidateCount());
+			assertEquals("Kept", storage.getCandidate(candidateId).getName());
+			assertEquals(7, storage.getCredit(candidateId).getCredit());
+			assertEquals("Web", storage.getCandidate(webId).getName());
+			assertEquals(3, storage.getCredit(webId).getCredit());
+			assertEquals(numberOfCredits, storage.getCredit(numberOfCandidates + 4).getCredit());
+		} finally {
+			restarted.unbind(storage);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link pb.model.impl.MemoryFavoritModelImpl#voteForCandidate(int, int)}
+	 * . Votes are answered from memory and only reach the storage on flush.
+	 * 
+	 * @throws FavoriteModelException
+	 */
+	public void testMemoryModelWriteBehind() throws FavoriteModelException {
+		final int candidateId = 4;
+		final int otherId = 5;
+		final int thirdId = 6;
+		final Hashtable<String, Object> props = new Hashtable<>();
+		props.put(TestMemoryFavoriteModel.MAX_LIKES_NAME, maxLikes);
+		props.put(TestMemoryFavoriteModel.NUMBER_OF_CANDIDATES_NAME, numberOfCandidates);
+		props.put(TestMemoryFavoriteModel.START_CREDITS_NAME, numberOfCredits);
+		props.put(TestMemoryFavoriteModel.FLUSH_INTERVAL_NAME, 60000);
+		final TestPBStorage memoryStorage = new TestPBStorage();
+		final TestMemoryFavoriteModel model = new TestMemoryFavoriteModel();
+		model.bind(memoryStorage);
+		model.activate(new TestComponentContext(props));
+		try {
+			model.voteForCandidate(thirdId, candidateId);
+			for (int i = 0; i < maxLikes; i++) {
+				model.voteForCandidate(candidateId, otherId);
+			}
+			// nothing is written before the flush
+			assertEquals(numberOfCredits, memoryStorage.getCredit(candidateId).getCredit());
+			assertEquals(numberOfCredits - maxLikes, model.getMemoryCredit(candidateId));
+
+			model.flush();
+			assertEquals(numberOfCredits - maxLikes, memoryStorage.getCredit(candidateId)
+					.getCredit());
+			assertEquals(2, memoryStorage.getVotesForCandidateId(candidateId).size());
+
+			for (int i = 0; i < maxLikes; i++) {
+				model.voteForCandidate(otherId, candidateId);
+			}
+			List<Voting> votings = model.getVotings(candidateId);
+			assertEquals(1, votings.size());
+			assertTrue(votings.get(0).isPair());
+			assertTrue(model.getVotings(thirdId).isEmpty());
+			try {
+				model.voteForCandidate(thirdId, otherId);
+				fail("Paired candidate accepted a vote");
+			} catch (final FavoriteModelException fme) {
+				assertEquals(FavoriteModelException.Cause.ALLREADY_PAIRED, fme.getModelCause());
+			}
+
+			model.flush();
+			assertEquals(0, memoryStorage.getCredit(candidateId).getCredit());
+			assertEquals(0, memoryStorage.getCredit(otherId).getCredit());
+			assertFalse(memoryStorage.getCandidate(otherId).isAvailable());
+			assertTrue(memoryStorage.getVotesByCandidateId(thirdId).isEmpty());
+			assertEquals(1, memoryStorage.getVotesByCandidateId(candidateId).size());
+
+			// a new engine rebuilds the same state from the storage
+			final TestMemoryFavoriteModel rebuilt = new TestMemoryFavoriteModel();
+			rebuilt.bind(memoryStorage);
+			rebuilt.activate(new TestComponentContext(props));
+			votings = rebuilt.getVotings(otherId);
+			assertEquals(1, votings.size());
+			assertTrue(votings.get(0).isPair());
+			rebuilt.unbind(memoryStorage);
+		} finally {
+			model.unbind(memoryStorage);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link pb.model.impl.MemoryFavoritModelImpl#bind(PbStorage)}. A
+	 * replacement storage bound while the engine is active is read again and
+	 * receives the following changes from the write-behind timer.
+	 * 
+	 * @throws FavoriteModelException
+	 * @throws InterruptedException
+	 */
+	public void testMemoryModelRebind() throws FavoriteModelException, InterruptedException {
+		final int candidateId = 4;
+		final int otherId = 5;
+		final Hashtable<String, Object> props = new Hashtable<>();
+		props.put(TestMemoryFavoriteModel.MAX_LIKES_NAME, maxLikes);
+		props.put(TestMemoryFavoriteModel.NUMBER_OF_CANDIDATES_NAME, numberOfCandidates);
+		props.put(TestMemoryFavoriteModel.START_CREDITS_NAME, numberOfCredits);
+		props.put(TestMemoryFavoriteModel.FLUSH_INTERVAL_NAME, 20);
+		final TestPBStorage replacement = new TestPBStorage();
+		final TestFavoriteModel seeder = new TestFavoriteModel();
+		seeder.bind(replacement);
+		seeder.activate(new TestComponentContext(props));
+		seeder.unbind(replacement);
+		replacement.storeCredit(new Credit(candidateId, 3));
+
+		final TestPBStorage memoryStorage = new TestPBStorage();
+		final TestMemoryFavoriteModel model = new TestMemoryFavoriteModel();
+		final TestComponentContext context = new TestComponentContext(props);
+		model.bind(memoryStorage);
+		model.activate(context);
+		try {
+			// SCR binds the replacement first
+			model.bind(replacement);
+			model.unbind(memoryStorage);
+			assertEquals(3, model.getMemoryCredit(candidateId));
+			model.voteForCandidate(candidateId, otherId);
+			for (int wait = 0; wait < 100
+					&& replacement.getCredit(candidateId).getCredit() != 2; ++wait) {
+				Thread.sleep(20);
+			}
+			assertEquals(2, replacement.getCredit(candidateId).getCredit());
+			assertEquals(1, replacement.getVotesByCandidateId(candidateId).size());
+			assertEquals(numberOfCredits, memoryStorage.getCredit(candidateId).getCredit());
+		} finally {
+			model.deactivate(context);
+			model.unbind(replacement);
+		}
+	}
+
+	/**
+	 * Test method for {@link pb.model.impl.MemoryFavoritModelImpl#flush()}.
+	 * Changes a failing storage did not take are written on the next flush,
+	 * and the database backed model is disabled while the engine is active.
+	 * 
+	 * @throws FavoriteModelException
+	 */
+	public void testMemoryModelFlushRetries() throws FavoriteModelException {
+		final int failures[] = new int[] { 1 };
+		final TestPBStorage failingStorage = new TestPBStorage() {
+			@Override
+			public boolean storeModelState(final Collection<Integer> paired,
+					final Collection<Vote> votes, final Collection<Credit> credits) {
+				if (failures[0] > 0) {
+					--failures[0];
+					throw new IllegalStateException("Test failure");
+				}
+				return super.storeModelState(paired, votes, credits);
+			}
+		};
+		final Hashtable<String, Object> props = new Hashtable<>();
+		props.put(TestMemoryFavoriteModel.MAX_LIKES_NAME, 1);
+		props.put(TestMemoryFavoriteModel.NUMBER_OF_CANDIDATES_NAME, numberOfCandidates);
+		props.put(TestMemoryFavoriteModel.START_CREDITS_NAME, numberOfCredits);
+		props.put(TestMemoryFavoriteModel.FLUSH_INTERVAL_NAME, 60000);
+		final TestComponentContext context = new TestComponentContext(props);
+		final TestMemoryFavoriteModel model = new TestMemoryFavoriteModel();
+		model.bind(failingStorage);
+		model.activate(context);
+		try {
+			assertTrue(context.getDisabledComponents().contains("pb.model"));
+			model.voteForCandidate(7, 8);
+			model.voteForCandidate(9, 7);
+			model.voteForCandidate(8, 7);
+			model.flush();
+			assertEquals(0, failures[0]);
+			assertTrue(failingStorage.getVotesByCandidateId(9).isEmpty());
+			assertTrue(failingStorage.getCandidate(7).isAvailable());
+
+			model.flush();
+			assertEquals(1, failingStorage.getVotesByCandidateId(7).size());
+			assertTrue(failingStorage.getVotesForCandidateId(9).isEmpty());
+			assertTrue(failingStorage.getVotesByCandidateId(9).isEmpty());
+			assertEquals(0, failingStorage.getCredit(7).getCredit());
+			assertEquals(numberOfCredits - 1, failingStorage.getCredit(9).getCredit());
+			assertFalse(failingStorage.getCandidate(8).isAvailable());
+			model.deactivate(context);
+			assertFalse(context.getDisabledComponents().contains("pb.model"));
+		} finally {
+			model.unbind(failingStorage);
+		}
+	}
+
 	protected static class TestFavoriteModel extends FavoritModelImpl {
 
+		protected static final TestLockStripes stripes = new TestLockStripes(lockStripes);
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -179,5 +564,100 @@ public class FavoritModelTestCase extends TestCase {
 		public void unbind(final PbStorage storage) {
 			super.unbind(storage);
 		}
+
+		/**
+		 * @return the lock stripes a vote between the candidates locks, in
+		 *         the mapping every model instance uses
+		 */
+		public static int[] stripesOfVote(final int voter, final int voteFor) {
+			return new int[] { stripes.stripeOf(pairKey(voter, voteFor)),
+					stripes.stripeOf(creditKey(voter)), stripes.stripeOf(creditKey(voteFor)) };
+		}
+	}
+
+	protected static class TestLockStripes extends LockStripes {
+
+		public TestLockStripes(final int stripes) {
+			super(stripes);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.model.impl.LockStripes#stripeOf(long)
+		 */
+		@Override
+		public int stripeOf(final long key) {
+			return super.stripeOf(key);
+		}
+	}
+
+	protected static class TestMemoryFavoriteModel extends MemoryFavoritModelImpl {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * pb.model.impl.MemoryFavoritModelImpl#activate(org.osgi.service
+		 * .component.ComponentContext)
+		 */
+		@Override
+		@Activate
+		public void activate(final ComponentContext context) {
+			super.activate(context);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * pb.model.impl.FavoritModelImpl#bind(pb.persistence
+		 * .PbStorage)
+		 */
+		@Override
+		public void bind(final PbStorage storage) {
+			super.bind(storage);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * pb.model.impl.MemoryFavoritModelImpl#unbind(pb.persistence
+		 * .PbStorage)
+		 */
+		@Override
+		public void unbind(final PbStorage storage) {
+			super.unbind(storage);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.model.impl.MemoryFavoritModelImpl#flush()
+		 */
+		@Override
+		public void flush() {
+			super.flush();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * pb.model.impl.MemoryFavoritModelImpl#deactivate(org.osgi.service
+		 * .component.ComponentContext)
+		 */
+		@Override
+		public void deactivate(final ComponentContext context) {
+			super.deactivate(context);
+		}
+
+		/**
+		 * @return the credit held in memory for the candidate
+		 */
+		public int getMemoryCredit(final int candidateId) {
+			return credits[candidateId];
+		}
 	}
 }
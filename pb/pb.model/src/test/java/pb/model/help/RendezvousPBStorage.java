@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.model.help;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage whose votes wait until the given number of votes is inside the
+ * storage at the same time. A vote that is serialized with the others by a
+ * lock of the caller can't meet them and gives up after the timeout. The
+ * votes themselves are serialized on the storage, that the underlying maps
+ * stay consistent.
+ * 
+ * @author oliver
+ */
+public class RendezvousPBStorage extends TestPBStorage {
+
+	protected final CountDownLatch arrived;
+	protected final long timeout;
+	protected final AtomicInteger met = new AtomicInteger();
+
+	/**
+	 * @param parties
+	 *            number of votes that have to meet
+	 * @param timeout
+	 *            time in milliseconds each vote waits for the others
+	 */
+	public RendezvousPBStorage(final int parties, final long timeout) {
+		super();
+		arrived = new CountDownLatch(parties);
+		this.timeout = timeout;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.model.help.TestPBStorage#vote(int, int, int)
+	 */
+	@Override
+	public VoteResult vote(final int voter, final int voteFor, final int maxLikes) {
+		arrived.countDown();
+		try {
+			if (arrived.await(timeout, TimeUnit.MILLISECONDS)) {
+				met.incrementAndGet();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			return super.vote(voter, voteFor, maxLikes);
+		}
+	}
+
+	/**
+	 * @return the number of votes that met all others inside the storage
+	 */
+	public int getMet() {
+		return met.get();
+	}
+}
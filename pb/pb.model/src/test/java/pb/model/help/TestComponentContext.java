@@ -20,7 +20,9 @@
 package pb.model.help;
 
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Set;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -35,6 +37,7 @@ import org.osgi.service.component.ComponentInstance;
 public class TestComponentContext implements ComponentContext {
 
 	protected Dictionary<String, Object> props = new Hashtable<String, Object>();
+	protected final Set<String> disabledComponents = new HashSet<>();
 
 	public TestComponentContext() {
 		super();
@@ -131,7 +134,7 @@ public class TestComponentContext implements ComponentContext {
 	 */
 	@Override
 	public void enableComponent(final String name) {
-
+		disabledComponents.remove(name);
 	}
 
 	/*
@@ -143,6 +146,14 @@ public class TestComponentContext implements ComponentContext {
 	 */
 	@Override
 	public void disableComponent(final String name) {
+		disabledComponents.add(name);
+	}
+
+	/**
+	 * @return the names of the components disabled through this context
+	 */
+	public Set<String> getDisabledComponents() {
+		return disabledComponents;
 	}
 
 	/*
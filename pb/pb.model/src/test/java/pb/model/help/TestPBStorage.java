@@ -19,16 +19,25 @@
  */
 package pb.model.help;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 
+import pb.persistence.Admission;
+import pb.persistence.AdmissionStatistics;
+import pb.persistence.CacheStatistics;
 import pb.persistence.PbStorage;
 import pb.persistence.entity.Candidate;
 import pb.persistence.entity.Credit;
 import pb.persistence.entity.Vote;
 import pb.persistence.entity.VotePK;
+import pb.persistence.entity.VotingPair;
 import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
 
 /**
  * @author oliver
@@ -40,6 +49,8 @@ public class TestPBStorage implements PbStorage {
 	protected HashMap<Integer, Credit> credits = new HashMap<>();
 	protected HashMap<VotePK, Vote> votes = new HashMap<>();
 	protected HashMap<String, Integer> clientIds = new HashMap<>();
+	protected long candidateListVersion = 0;
+	protected Admission admission = new Admission(1);
 
 	/*
 	 * (non-Javadoc)
@@ -61,9 +72,60 @@ public class TestPBStorage implements PbStorage {
 	@Override
 	public boolean storeCandidate(final Candidate candidate) {
 		candidates.put(candidate.getId(), candidate);
+		++candidateListVersion;
 		return true;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#storeCandidates(java.util.Collection)
+	 */
+	@Override
+	public boolean storeCandidates(final Collection<Candidate> candidates) {
+		for (final Candidate candidate : candidates) {
+			storeCandidate(candidate);
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateListVersion()
+	 */
+	@Override
+	public long getCandidateListVersion() {
+		return candidateListVersion;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateCount()
+	 */
+	@Override
+	public int getCandidateCount() {
+		return candidates.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateIds(int, int)
+	 */
+	@Override
+	public List<Integer> getCandidateIds(final int fromId, final int toId) {
+		final List<Integer> ret = new ArrayList<>();
+		for (final Integer id : candidates.keySet()) {
+			if (id >= fromId && id < toId) {
+				ret.add(id);
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -81,6 +143,79 @@ public class TestPBStorage implements PbStorage {
 		return ret;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateSummary(int)
+	 */
+	@Override
+	public CandidateSummary getCandidateSummary(final int id) {
+		final Candidate candidate = candidates.get(id);
+		return candidate == null ? null : summarize(candidate);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateSummariesByGender(pb.
+	 * persistence.entity.Candidate.Gender)
+	 */
+	@Override
+	public List<CandidateSummary> getCandidateSummariesByGender(final Gender gender) {
+		final List<CandidateSummary> ret = new ArrayList<>();
+		for (final Candidate candidate : getCandidateByGender(gender)) {
+			ret.add(summarize(candidate));
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateSummariesByGender(pb.
+	 * persistence.entity.Candidate.Gender, int, int)
+	 */
+	@Override
+	public List<CandidateSummary> getCandidateSummariesByGender(final Gender gender,
+			final int afterId, final int limit) {
+		final List<CandidateSummary> ret = new ArrayList<>();
+		final List<CandidateSummary> all = getCandidateSummariesByGender(gender);
+		Collections.sort(all, new Comparator<CandidateSummary>() {
+			@Override
+			public int compare(final CandidateSummary first, final CandidateSummary second) {
+				return first.getId() - second.getId();
+			}
+		});
+		for (final CandidateSummary summary : all) {
+			if ((summary.getId() > afterId) && ((limit <= 0) || (ret.size() < limit))) {
+				ret.add(summary);
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#streamCandidateSummariesByGender(pb.
+	 * persistence.entity.Candidate.Gender, int, int,
+	 * pb.persistence.PbStorage.SummaryHandler)
+	 */
+	@Override
+	public int streamCandidateSummariesByGender(final Gender gender, final int afterId,
+			final int limit, final SummaryHandler handler) {
+		final List<CandidateSummary> page = getCandidateSummariesByGender(gender, afterId, limit);
+		for (final CandidateSummary summary : page) {
+			handler.handle(summary);
+		}
+		return page.size();
+	}
+
+	protected CandidateSummary summarize(final Candidate candidate) {
+		return new CandidateSummary(candidate.getId(), candidate.getName(), candidate.getAge(),
+				candidate.getShortDescription(), candidate.getGender(), candidate.getImageCount());
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -104,6 +239,19 @@ public class TestPBStorage implements PbStorage {
 		return true;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#storeCredits(java.util.Collection)
+	 */
+	@Override
+	public boolean storeCredits(final Collection<Credit> credits) {
+		for (final Credit credit : credits) {
+			storeCredit(credit);
+		}
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -136,6 +284,22 @@ public class TestPBStorage implements PbStorage {
 		return ret;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getVotingPairs(int)
+	 */
+	@Override
+	public List<VotingPair> getVotingPairs(final int voterId) {
+		final List<VotingPair> ret = new ArrayList<>();
+		for (final Vote vote : getVotesByCandidateId(voterId)) {
+			final Vote rVote = getVote(new VotePK(vote.getVoteFor(), voterId));
+			ret.add(new VotingPair(voterId, vote.getVoteFor(), vote.getLikes(), rVote == null ? 0
+					: rVote.getLikes()));
+		}
+		return ret;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -167,13 +331,39 @@ public class TestPBStorage implements PbStorage {
 	 * @see pb.persistence.PbStorage#removeAllVotes(int)
 	 */
 	@Override
-	public boolean removeAllVotes(final int id) {
+	public int removeAllVotes(final int id) {
 		final List<Vote> removes = getVotesForCandidateId(id);
 		removes.addAll(getVotesByCandidateId(id));
+		int ret = 0;
 		for (final Vote vote : removes) {
-			votes.remove(new VotePK(vote.getVoterId(), vote.getVoteFor()));
+			if (votes.remove(new VotePK(vote.getVoterId(), vote.getVoteFor())) != null) {
+				++ret;
+			}
 		}
-		return true;
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#storeModelState(java.util.Collection,
+	 * java.util.Collection, java.util.Collection)
+	 */
+	@Override
+	public boolean storeModelState(final Collection<Integer> paired, final Collection<Vote> votes,
+			final Collection<Credit> credits) {
+		for (final Integer id : paired) {
+			removeAllVotes(id);
+			final Candidate candidate = getCandidate(id);
+			if (candidate != null) {
+				candidate.setAvailable(false);
+				++candidateListVersion;
+			}
+		}
+		for (final Vote vote : votes) {
+			storeVote(vote);
+		}
+		return storeCredits(credits);
 	}
 
 	/*
@@ -190,4 +380,89 @@ public class TestPBStorage implements PbStorage {
 		return ret;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#vote(int, int, int)
+	 */
+	@Override
+	public VoteResult vote(final int voter, final int voteFor, final int maxLikes) {
+		final Credit credit = getCredit(voter);
+		if (credit == null) {
+			return VoteResult.UNKNOWN_CANDIDATE;
+		}
+		if (credit.getCredit() <= 0) {
+			return VoteResult.NOT_ENOUGH_CREDIT;
+		}
+		final Candidate rCandidate = getCandidate(voteFor);
+		if (rCandidate == null) {
+			return VoteResult.UNKNOWN_CANDIDATE;
+		}
+		if (!rCandidate.isAvailable()) {
+			return VoteResult.ALREADY_PAIRED;
+		}
+		Vote vote = getVote(new VotePK(voter, voteFor));
+		if (vote == null) {
+			vote = new Vote(voter, voteFor);
+			storeVote(vote);
+		}
+		Vote rVote = getVote(new VotePK(voteFor, voter));
+		if (rVote == null) {
+			rVote = new Vote(voteFor, voter);
+			storeVote(rVote);
+		}
+		if (vote.getLikes() < maxLikes) {
+			vote.setLikes(vote.getLikes() + 1);
+			credit.setCredit(credit.getCredit() - 1);
+		}
+		VoteResult ret = VoteResult.VOTED;
+		if ((vote.getLikes() == maxLikes) && (rVote.getLikes() == maxLikes)) {
+			removeAllVotes(voter);
+			removeAllVotes(voteFor);
+			storeVote(vote);
+			storeVote(rVote);
+			credit.setCredit(0);
+			getCredit(voteFor).setCredit(0);
+			getCandidate(voter).setAvailable(false);
+			rCandidate.setAvailable(false);
+			++candidateListVersion;
+			ret = VoteResult.PAIRED;
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * pb.persistence.PbStorage#getAdmissionStatistics(pb.persistence.PbStorage
+	 * .Bulkhead)
+	 */
+	@Override
+	public AdmissionStatistics getAdmissionStatistics(final Bulkhead bulkhead) {
+		return admission;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getAvatar(java.lang.String)
+	 */
+	@Override
+	public ByteBuffer getAvatar(final String imageHash) {
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * pb.persistence.PbStorage#getCacheStatistics(pb.persistence.PbStorage
+	 * .Cache)
+	 */
+	@Override
+	public CacheStatistics getCacheStatistics(final Cache cache) {
+		// the maps of the test storage are no caches
+		return null;
+	}
 }
@@ -42,8 +42,12 @@ import pb.model.FavoriteModel;
 import pb.model.FavoriteModelException;
 import pb.model.FavoriteModel.Voting;
 import pb.persistence.PbStorage;
+import pb.persistence.PbStorage.Bulkhead;
+import pb.persistence.PbStorage.Cache;
+import pb.persistence.StorageOverloadException;
 import pb.persistence.entity.Candidate;
 import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
 
 /**
  * This component simulates a party with several Partitions
@@ -118,6 +122,18 @@ public class PartySimulation {
 			timers[i].cancel();
 			timers[i] = null;
 		}
+		if (storage != null) {
+			for (final Bulkhead bulkhead : Bulkhead.values()) {
+				Log.info("Storage %s admission: %s", bulkhead,
+						storage.getAdmissionStatistics(bulkhead));
+			}
+			for (final Cache cache : Cache.values()) {
+				Log.info("Storage %s cache: %s", cache, storage.getCacheStatistics(cache));
+			}
+		}
+		if (model != null) {
+			Log.info("Model admission: %s", model.getAdmissionStatistics());
+		}
 	}
 
 	/**
@@ -337,11 +353,12 @@ public class PartySimulation {
 					// new Favorite from list of Candidates, Otherwise vote for
 					// one of the favorites
 					if (votings.size() <= rand) {
-						final List<Candidate> candidates = storage.getCandidateByGender(Gender.MALE
-								.equals(gender) ? Gender.FEMALE : Gender.MALE);
+						final List<CandidateSummary> candidates = storage
+								.getCandidateSummariesByGender(Gender.MALE.equals(gender) ? Gender.FEMALE
+										: Gender.MALE);
 						if (!candidates.isEmpty()) {
-							final Candidate theOne = candidates.get(random.nextInt(candidates
-									.size()));
+							final CandidateSummary theOne = candidates.get(random
+									.nextInt(candidates.size()));
 							model.voteForCandidate(id, theOne.getId());
 							Log.debug("New vote ID %d votes for %d", id, theOne.getId());
 						}
@@ -353,7 +370,14 @@ public class PartySimulation {
 					scheduleTask(new VotePartyMember(gender, id), random.nextInt(5));
 				}
 			} catch (final FavoriteModelException e) {
-				Log.error("Error occured while voting", e);
+				if (StorageOverloadException.find(e) == null) {
+					Log.error("Error occured while voting", e);
+				} else {
+					// an overloaded party member simply tries again later
+					scheduleTask(new VotePartyMember(gender, id), 1 + random.nextInt(5));
+				}
+			} catch (final StorageOverloadException e) {
+				scheduleTask(new VotePartyMember(gender, id), 1 + random.nextInt(5));
 			}
 		}
 	}
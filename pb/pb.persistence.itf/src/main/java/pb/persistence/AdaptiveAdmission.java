@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission that finds its limit from the observed latency (AIMD). The
+ * shortest latency of the recent calls serves as baseline. After each round
+ * of as many calls as the limit admits, the limit shrinks by a tenth when
+ * most calls of the round took more than twice the baseline, and grows by one
+ * when the round used at least half of the slots. So the throughput rises
+ * until the service starts to queue internally and backs off from there.
+ * 
+ * @author oliver
+ */
+public class AdaptiveAdmission extends Admission {
+	protected static final double TOLERANCE = 2.0;
+	protected static final double BACKOFF = 0.9;
+	protected static final long MIN_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	protected static final int BASELINE_WINDOW = 1000;
+
+	protected int minLimit;
+	protected int maxLimit;
+	protected long baseline = 0;
+	protected long windowMin = Long.MAX_VALUE;
+	protected int windowSamples = 0;
+	protected int roundSamples = 0;
+	protected int roundCongested = 0;
+	protected int roundMaxCalls = 0;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param initialLimit
+	 *            number of parallel calls to start with
+	 * @param minLimit
+	 *            the limit never shrinks below this
+	 * @param maxLimit
+	 *            the limit never grows beyond this
+	 */
+	public AdaptiveAdmission(final int initialLimit, final int minLimit, final int maxLimit) {
+		super(Math.max(minLimit, Math.min(maxLimit, initialLimit)));
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Changes the bounds of the limit and moves the limit into them
+	 * 
+	 * @param minLimit
+	 *            the limit never shrinks below this
+	 * @param maxLimit
+	 *            the limit never grows beyond this
+	 */
+	public synchronized void configure(final int minLimit, final int maxLimit) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		setLimit(Math.max(minLimit, Math.min(maxLimit, limit)));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.Admission#sample(long, int)
+	 */
+	@Override
+	protected synchronized void sample(final long latencyNanos, final int calls) {
+		if (!opened) {
+			return;
+		}
+		if ((baseline == 0) || (latencyNanos < baseline)) {
+			baseline = latencyNanos;
+		}
+		windowMin = Math.min(windowMin, latencyNanos);
+		if (++windowSamples >= BASELINE_WINDOW) {
+			// lets the baseline rise again when the service got slower for good
+			baseline = windowMin;
+			windowMin = Long.MAX_VALUE;
+			windowSamples = 0;
+		}
+
+		if (latencyNanos > Math.max(baseline * TOLERANCE, baseline + MIN_SLACK_NANOS)) {
+			++roundCongested;
+		}
+		roundMaxCalls = Math.max(roundMaxCalls, calls);
+		if (++roundSamples >= limit) {
+			if (roundCongested * 2 > roundSamples) {
+				setLimit(Math.max(minLimit, (int) (limit * BACKOFF)));
+			} else if ((roundMaxCalls * 2 >= limit) && (limit < maxLimit)) {
+				setLimit(limit + 1);
+			}
+			roundSamples = 0;
+			roundCongested = 0;
+			roundMaxCalls = 0;
+		}
+	}
+}
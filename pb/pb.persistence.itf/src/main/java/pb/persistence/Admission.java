@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of parallel calls into a service. Calls wait a bounded
+ * time for a free slot and are rejected afterwards, so the caller can tell an
+ * overload apart from a missing result. The slots are opened when the
+ * service becomes usable and closed again before it goes away.
+ * 
+ * A call enters and leaves on the same thread. The time between both is
+ * passed to {@link #sample(long, int)}, which subclasses use to adapt the
+ * limit.
+ * 
+ * @author oliver
+ */
+public class Admission implements AdmissionStatistics {
+	protected final Slots slots = new Slots();
+	protected final AtomicLong admitted = new AtomicLong();
+	protected final AtomicLong rejected = new AtomicLong();
+	protected final AtomicLong waitNanos = new AtomicLong();
+	protected final AtomicLong maxWaitNanos = new AtomicLong();
+	protected final AtomicInteger inFlight = new AtomicInteger();
+	protected final ThreadLocal<Long> enteredAt = new ThreadLocal<>();
+	protected int limit;
+	protected boolean opened = false;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param limit
+	 *            number of calls admitted in parallel
+	 */
+	public Admission(final int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Makes the slots available for calls
+	 */
+	public synchronized void open() {
+		if (!opened) {
+			opened = true;
+			slots.release(limit);
+		}
+	}
+
+	/**
+	 * Takes the slots away, waits until the calls holding them have left
+	 * 
+	 * @throws InterruptedException
+	 *             when interrupted while waiting for the calls
+	 */
+	public void close() throws InterruptedException {
+		int count;
+		synchronized (this) {
+			if (!opened) {
+				return;
+			}
+			opened = false;
+			count = limit;
+		}
+		slots.acquire(count);
+	}
+
+	/**
+	 * Changes the number of calls admitted in parallel. Calls already holding
+	 * a slot are not affected.
+	 * 
+	 * @param newLimit
+	 *            the new limit
+	 */
+	protected synchronized void setLimit(final int newLimit) {
+		if (opened) {
+			if (newLimit > limit) {
+				slots.release(newLimit - limit);
+			} else if (newLimit < limit) {
+				slots.reducePermits(limit - newLimit);
+			}
+		}
+		limit = newLimit;
+	}
+
+	/**
+	 * Waits for a free slot. Every successful call must be followed by
+	 * {@link #leave()} on the same thread.
+	 * 
+	 * @param timeoutMillis
+	 *            maximum time to wait in milliseconds
+	 * @return true when the call got a slot, false when it was rejected
+	 */
+	public boolean enter(final long timeoutMillis) {
+		final long start = System.nanoTime();
+		boolean ret;
+		try {
+			ret = slots.tryAcquire() || slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ret = false;
+		}
+		if (ret) {
+			final long now = System.nanoTime();
+			final long waited = now - start;
+			inFlight.incrementAndGet();
+			enteredAt.set(now);
+			admitted.incrementAndGet();
+			waitNanos.addAndGet(waited);
+			long max = maxWaitNanos.get();
+			while ((waited > max) && !maxWaitNanos.compareAndSet(max, waited)) {
+				max = maxWaitNanos.get();
+			}
+		} else {
+			rejected.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/**
+	 * Frees the slot of a call admitted by {@link #enter(long)}
+	 */
+	public void leave() {
+		final Long entered = enteredAt.get();
+		enteredAt.remove();
+		final int calls = inFlight.getAndDecrement();
+		if (entered != null) {
+			sample(System.nanoTime() - entered, calls);
+		}
+		slots.release();
+	}
+
+	/**
+	 * Called for every call that left. The fixed admission ignores it.
+	 * 
+	 * @param latencyNanos
+	 *            time the call held its slot in nanoseconds
+	 * @param calls
+	 *            number of calls in flight including this one
+	 */
+	protected void sample(final long latencyNanos, final int calls) {
+		// the limit is fixed
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.AdmissionStatistics#getLimit()
+	 */
+	@Override
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.AdmissionStatistics#getInFlight()
+	 */
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.AdmissionStatistics#getAdmitted()
+	 */
+	@Override
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.AdmissionStatistics#getRejected()
+	 */
+	@Override
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.AdmissionStatistics#getWaitNanos()
+	 */
+	@Override
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.AdmissionStatistics#getMaxWaitNanos()
+	 */
+	@Override
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final long count = Math.max(1, getAdmitted());
+		return String.format("limit %d, in flight %d, admitted %d, rejected %d, "
+				+ "average wait %.3f ms, max wait %.3f ms", getLimit(), getInFlight(),
+				getAdmitted(), getRejected(), getWaitNanos() / 1e6 / count,
+				getMaxWaitNanos() / 1e6);
+	}
+
+	/**
+	 * Semaphore that can take permits away without waiting for them
+	 * 
+	 * @author oliver
+	 */
+	protected static final class Slots extends Semaphore {
+
+		/**
+		 * 
+		 */
+		private static final long serialVersionUID = 6046467001917432117L;
+
+		/**
+		 * Constructor creating the semaphore without permits
+		 */
+		public Slots() {
+			super(0);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Semaphore#reducePermits(int)
+		 */
+		@Override
+		public void reducePermits(final int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+/**
+ * Read only view on the counters of an {@link Admission}. Used to tune the
+ * number of parallel calls a service admits.
+ * 
+ * @author oliver
+ */
+public interface AdmissionStatistics {
+
+	/**
+	 * @return number of calls currently admitted in parallel
+	 */
+	public int getLimit();
+
+	/**
+	 * @return number of calls currently holding a slot
+	 */
+	public int getInFlight();
+
+	/**
+	 * @return number of calls that got a slot
+	 */
+	public long getAdmitted();
+
+	/**
+	 * @return number of calls rejected because no slot freed up in time
+	 */
+	public long getRejected();
+
+	/**
+	 * @return summed time all calls waited for a slot in nanoseconds
+	 */
+	public long getWaitNanos();
+
+	/**
+	 * @return longest time a single call waited for a slot in nanoseconds
+	 */
+	public long getMaxWaitNanos();
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+/**
+ * Read only view on the counters of a cache of the storage. Used to size the
+ * caches and to check that hot lookups are served from memory.
+ * 
+ * @author oliver
+ */
+public interface CacheStatistics {
+
+	/**
+	 * @return maximum number of cached entries, 0 when the cache is disabled
+	 */
+	public int getCapacity();
+
+	/**
+	 * @return number of currently cached entries
+	 */
+	public int getSize();
+
+	/**
+	 * @return number of lookups served from the cache
+	 */
+	public long getHits();
+
+	/**
+	 * @return number of lookups that had to go to the database
+	 */
+	public long getMisses();
+
+	/**
+	 * @return number of entries dropped to make room for newer ones
+	 */
+	public long getEvictions();
+
+	/**
+	 * @return number of entries dropped because the entity was written
+	 */
+	public long getInvalidations();
+}
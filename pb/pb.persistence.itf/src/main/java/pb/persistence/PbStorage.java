@@ -19,22 +19,78 @@
  */
 package pb.persistence;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.List;
 
 import pb.persistence.entity.Candidate;
+import pb.persistence.entity.CandidateSummary;
 import pb.persistence.entity.Credit;
 import pb.persistence.entity.Vote;
 import pb.persistence.entity.VotePK;
+import pb.persistence.entity.VotingPair;
 import pb.persistence.entity.Candidate.Gender;
 
 /**
- * Service for storing all required Entities of the Application.
+ * Service for storing all required Entities of the Application. Every call
+ * throws a {@link StorageOverloadException} when it can't get a database slot
+ * of its {@link Bulkhead} within the admission timeout.
  * 
  * @author oliver
  * 
  */
 public interface PbStorage {
 
+	/**
+	 * Outcome of a vote performed by {@link PbStorage#vote(int, int, int)}.
+	 * CONFLICT means a concurrent writer changed one of the rows, the vote was
+	 * rolled back and may be repeated.
+	 * 
+	 * @author oliver
+	 */
+	public static enum VoteResult {
+		VOTED, PAIRED, NOT_ENOUGH_CREDIT, UNKNOWN_CANDIDATE, ALREADY_PAIRED, CONFLICT, FAILED
+	}
+
+	/**
+	 * Groups of calls with their own admission, so one group can't starve the
+	 * others. READ covers all lookups and queries, WRITE the stores and votes
+	 * and BULK_DELETE the removal of votes.
+	 * 
+	 * @author oliver
+	 */
+	public static enum Bulkhead {
+		READ, WRITE, BULK_DELETE
+	}
+
+	/**
+	 * Caches of entities by primary key. CANDIDATE holds the summaries read
+	 * by {@link PbStorage#getCandidateSummary(int)}, CREDIT and VOTE the
+	 * entities read by {@link PbStorage#getCredit(int)} and
+	 * {@link PbStorage#getVote(VotePK)}.
+	 * 
+	 * @author oliver
+	 */
+	public static enum Cache {
+		CANDIDATE, CREDIT, VOTE
+	}
+
+	/**
+	 * Receives the rows of a streamed query one by one.
+	 * 
+	 * @author oliver
+	 */
+	public static interface SummaryHandler {
+
+		/**
+		 * called for every row in the order of the query
+		 * 
+		 * @param summary
+		 *            the current row
+		 */
+		public void handle(CandidateSummary summary);
+	}
+
 	/**
 	 * returns the candidate with the given id
 	 * 
@@ -50,10 +106,23 @@ public interface PbStorage {
 	 * 
 	 * @param candidate
 	 *            the candidate to store.
-	 * @return true when storing performed without problem
+	 * @return true when storing performed without problem, false when it failed or the
+	 *         candidate was changed concurrently since it was read
 	 */
 	public boolean storeCandidate(Candidate candidate);
 
+	/**
+	 * Stores many candidates in one transaction, written in JDBC batches.
+	 * Use this instead of {@link #storeCandidate(Candidate)} for seeding and
+	 * imports.
+	 * 
+	 * @param candidates
+	 *            the candidates to store, each with a unique id set
+	 * @return true when all candidates were stored, false when the
+	 *         transaction failed and none was stored
+	 */
+	public boolean storeCandidates(Collection<Candidate> candidates);
+
 	/**
 	 * returns all candidates with the given gender
 	 * 
@@ -63,6 +132,95 @@ public interface PbStorage {
 	 */
 	public List<Candidate> getCandidateByGender(Gender gender);
 
+	/**
+	 * returns the number of stored candidates, whatever their gender or name.
+	 * A persistent database still holds the candidates of the last run.
+	 * 
+	 * @return the number of candidates, 0 when the storage isn't available
+	 */
+	public int getCandidateCount();
+
+	/**
+	 * returns the ids of the stored candidates within a range. Ids created by
+	 * the web front end can be anywhere, so the count alone doesn't tell which
+	 * ids are free.
+	 * 
+	 * @param fromId
+	 *            first id of the range, included
+	 * @param toId
+	 *            last id of the range, excluded
+	 * @return the ids in ascending order or null when they can't be read
+	 */
+	public List<Integer> getCandidateIds(int fromId, int toId);
+
+	/**
+	 * returns the version of the candidate lists. It grows whenever a
+	 * candidate is stored or becomes unavailable, so anything derived from
+	 * the lists stays valid as long as the version is the same. The version is
+	 * read before the lists.
+	 * 
+	 * @return the current version, only comparable within one storage
+	 *         instance
+	 */
+	public long getCandidateListVersion();
+
+	/**
+	 * returns the candidate with the given id without its image
+	 * 
+	 * @param id
+	 *            the unique id of a candidate
+	 * @return the summary or null when candidate doesn't exist
+	 */
+	public CandidateSummary getCandidateSummary(int id);
+
+	/**
+	 * returns all available candidates with the given gender and a name
+	 * without their images, ordered by id. Lists should use this instead of
+	 * {@link #getCandidateByGender(Gender)}.
+	 * 
+	 * @param gender
+	 *            the gender of the candidates searched for
+	 * @return a list of summaries with the requested gender
+	 */
+	public List<CandidateSummary> getCandidateSummariesByGender(Gender gender);
+
+	/**
+	 * returns one page of available candidates with the given gender and a
+	 * name without their images, ordered by id. The page starts after the
+	 * given id, so the next page is read with the id of the last candidate of
+	 * this one.
+	 * 
+	 * @param gender
+	 *            the gender of the candidates searched for
+	 * @param afterId
+	 *            only candidates with a bigger id are returned, -1 for the
+	 *            first page
+	 * @param limit
+	 *            the maximum number of candidates, 0 or less for all
+	 * @return a list of summaries with the requested gender
+	 */
+	public List<CandidateSummary> getCandidateSummariesByGender(Gender gender, int afterId,
+			int limit);
+
+	/**
+	 * Like {@link #getCandidateSummariesByGender(Gender, int, int)}, but hands
+	 * each row to the handler while it is read from a forward-only cursor
+	 * instead of collecting them in a list.
+	 * 
+	 * @param gender
+	 *            the gender of the candidates searched for
+	 * @param afterId
+	 *            only candidates with a bigger id are returned, -1 for the
+	 *            first page
+	 * @param limit
+	 *            the maximum number of candidates, 0 or less for all
+	 * @param handler
+	 *            receives every row
+	 * @return the number of rows handed to the handler
+	 */
+	public int streamCandidateSummariesByGender(Gender gender, int afterId, int limit,
+			SummaryHandler handler);
+
 	/**
 	 * returns a Credit object with the requested id
 	 * 
@@ -77,10 +235,21 @@ public interface PbStorage {
 	 * 
 	 * @param credit
 	 *            the credit object to store
-	 * @return true when object is stored
+	 * @return true when object is stored, false when it failed or the
+	 *         credit was changed concurrently since it was read
 	 */
 	public boolean storeCredit(Credit credit);
 
+	/**
+	 * Stores many credits in one transaction, written in JDBC batches
+	 * 
+	 * @param credits
+	 *            the credits to store
+	 * @return true when all credits were stored, false when the transaction
+	 *         failed and none was stored
+	 */
+	public boolean storeCredits(Collection<Credit> credits);
+
 	/**
 	 * returns a list of Votes the candidate with the given id made
 	 * 
@@ -99,6 +268,17 @@ public interface PbStorage {
 	 */
 	public List<Vote> getVotesForCandidateId(int id);
 
+	/**
+	 * returns all votes the candidate with the given id made, each together
+	 * with the likes the other candidate gave back. The reciprocal likes are 0
+	 * when the other candidate never voted back.
+	 * 
+	 * @param voterId
+	 *            the id of the candidate
+	 * @return a list of VotingPairs ordered by the likes of the candidate
+	 */
+	public List<VotingPair> getVotingPairs(int voterId);
+
 	/**
 	 * returns the vote with the given primary key
 	 * 
@@ -113,7 +293,8 @@ public interface PbStorage {
 	 * 
 	 * @param vote
 	 *            the vote to store
-	 * @return true when storing succeeded
+	 * @return true when storing succeeded, false when it failed or the
+	 *         vote was changed concurrently since it was read
 	 */
 	public boolean storeVote(Vote vote);
 
@@ -122,9 +303,29 @@ public interface PbStorage {
 	 * 
 	 * @param id
 	 *            the id of the candidate
-	 * @return true when remove operation succeeded
+	 * @return the number of removed votes or -1 when the remove operation
+	 *         failed
 	 */
-	public boolean removeAllVotes(int id);
+	public int removeAllVotes(int id);
+
+	/**
+	 * Writes the changes of a model that keeps the votes and credits itself in
+	 * one transaction, written in JDBC batches. The paired candidates lose
+	 * all votes from and to them and become unavailable first, then the
+	 * votes and credits are stored. Stored rows are overwritten whatever
+	 * version they have, so only the model owning the vote state may use it.
+	 * 
+	 * @param paired
+	 *            ids of the candidates that found their partner
+	 * @param votes
+	 *            the votes to store, including the kept votes of new pairs
+	 * @param credits
+	 *            the credits to store
+	 * @return true when all changes were stored, false when the transaction
+	 *         failed and none was stored
+	 */
+	public boolean storeModelState(Collection<Integer> paired, Collection<Vote> votes,
+			Collection<Credit> credits);
 
 	/**
 	 * evaluates the id of a candidate by the id of his connection
@@ -134,4 +335,45 @@ public interface PbStorage {
 	 * @return the id of the candidate
 	 */
 	public int getId(String ip);
+
+	/**
+	 * Adds a like from one candidate to another. Reading and updating the
+	 * credit, both votes and, when a pair is found, removing all other votes
+	 * of the pair and marking both candidates as unavailable is done within a
+	 * single transaction.
+	 * 
+	 * @param voter
+	 *            the id of the candidate who votes
+	 * @param voteFor
+	 *            the id of the candidate that is voted for
+	 * @param maxLikes
+	 *            the number of likes in each direction that make a pair
+	 * @return the outcome of the vote
+	 */
+	public VoteResult vote(int voter, int voteFor, int maxLikes);
+
+	/**
+	 * @param bulkhead
+	 *            the group of calls
+	 * @return the counters of admitted and rejected calls of the group
+	 */
+	public AdmissionStatistics getAdmissionStatistics(Bulkhead bulkhead);
+
+	/**
+	 * Reads a stored avatar without a database call
+	 * 
+	 * @param imageHash
+	 *            the content hash of the image, from the candidate or its
+	 *            summary
+	 * @return a read-only view on the PNG image from position to limit, or
+	 *         null when the hash is unknown
+	 */
+	public ByteBuffer getAvatar(String imageHash);
+
+	/**
+	 * @param cache
+	 *            the cached entities
+	 * @return the counters of hits, misses and evictions of the cache
+	 */
+	public CacheStatistics getCacheStatistics(Cache cache);
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import pb.persistence.PbStorage.VoteResult;
+import pb.persistence.entity.Candidate;
+import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
+import pb.persistence.entity.Credit;
+import pb.persistence.entity.Vote;
+import pb.persistence.entity.VotingPair;
+
+/**
+ * Asynchronous variant of the {@link PbStorage} service. Every call returns at
+ * once, the database work runs on a bounded executor of the storage. When the
+ * executor is saturated or no storage is available the returned future
+ * completes exceptionally.
+ * 
+ * @author oliver
+ */
+public interface PbStorageAsync {
+
+	/**
+	 * @see PbStorage#getCandidate(int)
+	 */
+	public CompletableFuture<Candidate> getCandidate(int id);
+
+	/**
+	 * @see PbStorage#getCandidateSummary(int)
+	 */
+	public CompletableFuture<CandidateSummary> getCandidateSummary(int id);
+
+	/**
+	 * @see PbStorage#getCandidateSummariesByGender(Gender, int, int)
+	 */
+	public CompletableFuture<List<CandidateSummary>> getCandidateSummariesByGender(Gender gender,
+			int afterId, int limit);
+
+	/**
+	 * @see PbStorage#storeCandidate(Candidate)
+	 */
+	public CompletableFuture<Boolean> storeCandidate(Candidate candidate);
+
+	/**
+	 * @see PbStorage#getCredit(int)
+	 */
+	public CompletableFuture<Credit> getCredit(int id);
+
+	/**
+	 * @see PbStorage#storeCredit(Credit)
+	 */
+	public CompletableFuture<Boolean> storeCredit(Credit credit);
+
+	/**
+	 * @see PbStorage#getVotesByCandidateId(int)
+	 */
+	public CompletableFuture<List<Vote>> getVotesByCandidateId(int id);
+
+	/**
+	 * @see PbStorage#getVotingPairs(int)
+	 */
+	public CompletableFuture<List<VotingPair>> getVotingPairs(int voterId);
+
+	/**
+	 * @see PbStorage#storeVote(Vote)
+	 */
+	public CompletableFuture<Boolean> storeVote(Vote vote);
+
+	/**
+	 * @see PbStorage#getId(String)
+	 */
+	public CompletableFuture<Integer> getId(String ip);
+
+	/**
+	 * @see PbStorage#vote(int, int, int)
+	 */
+	public CompletableFuture<VoteResult> vote(int voter, int voteFor, int maxLikes);
+}
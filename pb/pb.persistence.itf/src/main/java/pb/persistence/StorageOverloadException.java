@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+/**
+ * Thrown when a service can't admit a call because all of its slots stay busy
+ * longer than the admission timeout. Callers should answer with a "service
+ * unavailable" and let the client retry after {@link #getRetryAfter()}
+ * seconds.
+ * 
+ * @author oliver
+ */
+public class StorageOverloadException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -3868012469472213417L;
+	public static final int DEFAULT_RETRY_AFTER = 1;
+	protected final int retryAfter;
+
+	/**
+	 * Constructor with the default retry time
+	 * 
+	 * @param message
+	 *            describes the overloaded service
+	 */
+	public StorageOverloadException(final String message) {
+		this(message, DEFAULT_RETRY_AFTER);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param message
+	 *            describes the overloaded service
+	 * @param retryAfter
+	 *            seconds after which the client should retry
+	 */
+	public StorageOverloadException(final String message, final int retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return seconds after which the client should retry
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Searches the cause chain for an overload
+	 * 
+	 * @param thr
+	 *            the thrown exception
+	 * @return the overload in the chain or null
+	 */
+	public static StorageOverloadException find(final Throwable thr) {
+		for (Throwable cause = thr; cause != null; cause = cause.getCause()) {
+			if (cause instanceof StorageOverloadException) {
+				return (StorageOverloadException) cause;
+			}
+		}
+		return null;
+	}
+}
@@ -155,4 +155,14 @@ public final class Images {
 	public static byte[] getDefaultAvatar() {
 		return emptyImage;
 	}
+
+	/**
+	 * @param image
+	 *            an encoded image
+	 * @return true when it is one of the arrays returned here, which are
+	 *         encoded in the avatar size already
+	 */
+	public static boolean isDefaultAvatar(final byte[] image) {
+		return image == defaultMale || image == defaultFemale || image == emptyImage;
+	}
 }
@@ -24,6 +24,7 @@ import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 import javax.imageio.ImageIO;
 import javax.persistence.Basic;
@@ -31,15 +32,18 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
-import javax.persistence.FetchType;
 import javax.persistence.Id;
-import javax.persistence.Lob;
 import javax.persistence.Table;
+import javax.persistence.Transient;
+import javax.persistence.Version;
 
 import pb.persistence.avatar.Images;
 
 /**
- * Entity storing all required informations about a candidate
+ * Entity storing all required informations about a candidate. The avatar
+ * itself lives in the avatar store of the storage, the entity only holds the
+ * hash of its content. An image set on the entity is written to the avatar
+ * store when the candidate is stored.
  * 
  * @author oliver
  */
@@ -50,13 +54,15 @@ public class Candidate {
 	public static final int optImageSize = 160;
 	public static final String TABLE_NAME = "CANDIDATES";
 	public static final String COLUMN_ID = "ID";
-	public static final String COLUMN_IMAGE = "IMAGE";
+	public static final String COLUMN_IMAGE_HASH = "IMAGE_HASH";
 	public static final String COLUMN_IMAGE_COUNT = "IMAGE_COUNT";
 	public static final String COLUMN_NAME = "NAME";
 	public static final String COLUMN_SD = "SHORT_DESCRIPTION";
 	public static final String COLUMN_GENDER = "GENDER";
 	public static final String COLUMN_AGE = "AGE";
 	public static final String COLUMN_AVAILABLE = "AVAILABLE";
+	public static final String COLUMN_VERSION = "VERSION";
+	public static final String INDEX_GENDER_AVAILABLE = "IDX_CANDIDATES_GENDER_AVAILABLE";
 
 	/**
 	 * Enum used to describe the gender of the candidate
@@ -71,9 +77,12 @@ public class Candidate {
 	@Column(name = COLUMN_ID)
 	protected int id;
 
-	@Basic(fetch = FetchType.LAZY)
-	@Lob
-	@Column(name = COLUMN_IMAGE)
+	@Basic
+	@Column(name = COLUMN_IMAGE_HASH, length = 64)
+	protected String imageHash;
+
+	/** the image set since the candidate was read, not stored yet */
+	@Transient
 	protected byte[] image;
 
 	@Basic
@@ -101,6 +110,10 @@ public class Candidate {
 	@Column(name = COLUMN_AVAILABLE)
 	protected boolean available;
 
+	@Version
+	@Column(name = COLUMN_VERSION)
+	protected int version;
+
 	public Candidate() {
 		super();
 	}
@@ -182,14 +195,43 @@ public class Candidate {
 	}
 
 	/**
-	 * @return the image
+	 * The stored image is not part of the entity, it is read with
+	 * {@link #getImageHash()} from the avatar store of the storage.
+	 * 
+	 * @return the image set since the candidate was read or null
 	 */
-	public byte[] getImage() {
-		byte ret[] = Images.getDefaultAvatar();
-		if (image != null) {
-			ret = image;
-		}
-		return ret;
+	public byte[] getNewImage() {
+		return image;
+	}
+
+	/**
+	 * @return the content hash of the stored image or null
+	 */
+	public String getImageHash() {
+		return imageHash;
+	}
+
+	/**
+	 * Called by the storage after it wrote the new image
+	 * 
+	 * @param imageHash
+	 *            the content hash of the stored image
+	 */
+	public void setImageHash(final String imageHash) {
+		this.imageHash = imageHash;
+	}
+
+	/**
+	 * Sets an image that is already a square PNG of the avatar size, like the
+	 * default avatars, as is. Decoding and encoding it again would only cost
+	 * time.
+	 * 
+	 * @param image
+	 *            the encoded PNG
+	 */
+	public void setEncodedImage(final byte[] image) {
+		this.image = image;
+		imageCount++;
 	}
 
 	/**
@@ -197,7 +239,9 @@ public class Candidate {
 	 *            the image to set
 	 */
 	public void setImage(final byte[] image) {
-		if (image.length > 0) {
+		if (Images.isDefaultAvatar(image)) {
+			setEncodedImage(image);
+		} else if (image.length > 0) {
 			try {
 				final BufferedImage bImage = ImageIO.read(new ByteArrayInputStream(image));
 				setImage(bImage);
@@ -218,44 +262,58 @@ public class Candidate {
 		return imageCount;
 	}
 
+	/**
+	 * Crops an image to a square in its middle and scales it to the avatar
+	 * size
+	 * 
+	 * @param image
+	 *            the image to convert
+	 * @return the avatar encoded as PNG, ready for
+	 *         {@link #setEncodedImage(byte[])}
+	 * @throws IOException
+	 *             when the image can't be encoded
+	 */
+	public static byte[] toAvatar(final BufferedImage image) throws IOException {
+		final ByteArrayOutputStream bao = new ByteArrayOutputStream();
+		BufferedImage renderImage = image;
+		// First crop image
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		int xOff = 0;
+		int yOff = 0;
+		final int opt = Math.min(width, height);
+		if (width > opt) {
+			xOff = (width - opt) / 2;
+		}
+		if (height > opt) {
+			yOff = (height - opt) / 2;
+		}
+		if ((xOff > 0) || (yOff > 0)) {
+			renderImage = image.getSubimage(xOff, yOff, opt, opt);
+		}
+		if (opt != optImageSize) {
+			final BufferedImage tempImage = new BufferedImage(optImageSize, optImageSize,
+					BufferedImage.TYPE_INT_RGB);
+			final Graphics2D g2d = (Graphics2D) tempImage.getGraphics();
+			final Image scaledImage = renderImage.getScaledInstance(optImageSize, optImageSize,
+					Image.SCALE_AREA_AVERAGING);
+			g2d.drawImage(scaledImage, 0, 0, null);
+			scaledImage.flush();
+			g2d.dispose();
+			renderImage = tempImage;
+		}
+		ImageIO.write(renderImage, "PNG", bao);
+		renderImage.flush();
+		return bao.toByteArray();
+	}
+
 	/**
 	 * @param image
 	 *            the image to set
 	 */
 	public void setImage(final BufferedImage image) {
-		final ByteArrayOutputStream bao = new ByteArrayOutputStream();
 		try {
-			BufferedImage renderImage = image;
-			// First crop image
-			final int width = image.getWidth();
-			final int height = image.getHeight();
-			int xOff = 0;
-			int yOff = 0;
-			final int opt = Math.min(width, height);
-			if (width > opt) {
-				xOff = (width - opt) / 2;
-			}
-			if (height > opt) {
-				yOff = (height - opt) / 2;
-			}
-			if ((xOff > 0) || (yOff > 0)) {
-				renderImage = image.getSubimage(xOff, yOff, opt, opt);
-			}
-			if (opt != optImageSize) {
-				final BufferedImage tempImage = new BufferedImage(optImageSize, optImageSize,
-						BufferedImage.TYPE_INT_RGB);
-				final Graphics2D g2d = (Graphics2D) tempImage.getGraphics();
-				final Image scaledImage = renderImage.getScaledInstance(optImageSize, optImageSize,
-						Image.SCALE_AREA_AVERAGING);
-				g2d.drawImage(scaledImage, 0, 0, null);
-				scaledImage.flush();
-				g2d.dispose();
-				renderImage = tempImage;
-			}
-			ImageIO.write(renderImage, "PNG", bao);
-			this.image = bao.toByteArray();
-			renderImage.flush();
-
+			this.image = toAvatar(image);
 		} catch (final Throwable e) {
 			if (gender == Gender.MALE) {
 				this.image = Images.getMaleAvatar();
@@ -340,4 +398,11 @@ public class Candidate {
 	public void setAvailable(final boolean available) {
 		this.available = available;
 	}
+
+	/**
+	 * @return the version used for optimistic locking
+	 */
+	public int getVersion() {
+		return version;
+	}
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence.entity;
+
+import pb.persistence.entity.Candidate.Gender;
+
+/**
+ * Projection of a Candidate without its image. This is no entity, it is read
+ * with a constructor expression, so lists of candidates never load the image
+ * bytes.
+ * 
+ * @author oliver
+ */
+public class CandidateSummary {
+
+	protected final int id;
+	protected final String name;
+	protected final int age;
+	protected final String shortDescription;
+	protected final Gender gender;
+	protected final int imageCount;
+	protected final String imageHash;
+
+	/**
+	 * Constructor setting all values
+	 * 
+	 * @param id
+	 *            Primary key
+	 * @param name
+	 *            nick name of the candidate
+	 * @param age
+	 *            age of the candidate
+	 * @param shortDescription
+	 *            a short Description containing hobbies etc.
+	 * @param gender
+	 *            the gender of the candidate
+	 * @param imageCount
+	 *            the version number of the image
+	 */
+	public CandidateSummary(final int id, final String name, final int age,
+			final String shortDescription, final Gender gender, final int imageCount) {
+		this(id, name, age, shortDescription, gender, imageCount, null);
+	}
+
+	/**
+	 * Constructor setting all values
+	 * 
+	 * @param id
+	 *            Primary key
+	 * @param name
+	 *            nick name of the candidate
+	 * @param age
+	 *            age of the candidate
+	 * @param shortDescription
+	 *            a short Description containing hobbies etc.
+	 * @param gender
+	 *            the gender of the candidate
+	 * @param imageCount
+	 *            the version number of the image
+	 * @param imageHash
+	 *            the content hash of the stored image or null
+	 */
+	public CandidateSummary(final int id, final String name, final int age,
+			final String shortDescription, final Gender gender, final int imageCount,
+			final String imageHash) {
+		super();
+		this.id = id;
+		this.name = name;
+		this.age = age;
+		this.shortDescription = shortDescription;
+		this.gender = gender;
+		this.imageCount = imageCount;
+		this.imageHash = imageHash;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the age
+	 */
+	public int getAge() {
+		return age;
+	}
+
+	/**
+	 * @return the shortDescription
+	 */
+	public String getShortDescription() {
+		return shortDescription;
+	}
+
+	/**
+	 * @return the gender
+	 */
+	public Gender getGender() {
+		return gender;
+	}
+
+	/**
+	 * @return the imageCount
+	 */
+	public int getImageCount() {
+		return imageCount;
+	}
+
+	/**
+	 * @return the content hash of the stored image or null
+	 */
+	public String getImageHash() {
+		return imageHash;
+	}
+}
@@ -26,6 +26,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 /**
  * The id of a candidate is simply evaluated by using it's ip address. This
@@ -35,12 +36,13 @@ import javax.persistence.Table;
  * @author oliver
  */
 @Entity
-@Table(name = ClientId.TABLE_NAME)
+@Table(name = ClientId.TABLE_NAME, uniqueConstraints = @UniqueConstraint(name = ClientId.UNIQUE_IP, columnNames = ClientId.COLUMN_IP))
 public class ClientId {
   public static final String TABLE_NAME = "CLIENT_ID";
 
   public static final String COLUMN_CANDIDATE_ID = "CANDIDATE_ID";
   public static final String COLUMN_IP = "IP";
+  public static final String UNIQUE_IP = "UK_CLIENT_ID_IP";
 
   @Id
   @GeneratedValue(strategy = GenerationType.SEQUENCE)
@@ -48,7 +50,7 @@ public class ClientId {
   protected int id;
 
   @Basic
-  @Column(name = COLUMN_IP)
+  @Column(name = COLUMN_IP, nullable = false)
   protected String ip;
 
   public ClientId() {
@@ -24,6 +24,7 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Version;
 
 /**
  * Each candidate has only a limited credit of possible votes. This entity
@@ -37,6 +38,7 @@ public class Credit {
 	public static final String TABLE_NAME = "CREDIT";
 	public static final String COLUMN_ID = "ID";
 	public static final String COLUMN_CREDIT = "CREDIT";
+	public static final String COLUMN_VERSION = "VERSION";
 
 	@Id
 	@Column(name = COLUMN_ID)
@@ -46,6 +48,10 @@ public class Credit {
 	@Column(name = COLUMN_CREDIT)
 	protected int credit;
 
+	@Version
+	@Column(name = COLUMN_VERSION)
+	protected int version;
+
 	public Credit() {
 		super();
 	}
@@ -56,6 +62,20 @@ public class Credit {
 		this.credit = credit;
 	}
 
+	/**
+	 * Creates a detached copy with the same version, so the copy can be
+	 * stored like the original.
+	 * 
+	 * @param other
+	 *            the credit to copy
+	 */
+	public Credit(final Credit other) {
+		super();
+		this.candidateId = other.candidateId;
+		this.credit = other.credit;
+		this.version = other.version;
+	}
+
 	/**
 	 * @return the credit
 	 */
@@ -77,4 +97,11 @@ public class Credit {
 	public int getCandidateId() {
 		return candidateId;
 	}
+
+	/**
+	 * @return the version used for optimistic locking
+	 */
+	public int getVersion() {
+		return version;
+	}
 }
@@ -25,6 +25,7 @@ import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
 import javax.persistence.Table;
+import javax.persistence.Version;
 
 /**
  * Entity containing the votes from one Candidate to another.
@@ -40,6 +41,9 @@ public class Vote {
 	public static final String COLUMN_VOTER_ID = "VOTER_ID";
 	public static final String COLUMN_VOTE_FOR_ID = "VOTE_FOR";
 	public static final String COLUMN_LIKES = "LIKES";
+	public static final String COLUMN_VERSION = "VERSION";
+	public static final String INDEX_VOTER_LIKES = "IDX_VOTES_VOTER_LIKES";
+	public static final String INDEX_VOTE_FOR = "IDX_VOTES_VOTE_FOR";
 
 	@Id
 	@Column(name = COLUMN_VOTER_ID)
@@ -53,6 +57,10 @@ public class Vote {
 	@Column(name = COLUMN_LIKES)
 	protected int likes;
 
+	@Version
+	@Column(name = COLUMN_VERSION)
+	protected int version;
+
 	public Vote() {
 		super();
 	}
@@ -64,6 +72,21 @@ public class Vote {
 		this.likes = 0;
 	}
 
+	/**
+	 * Creates a detached copy with the same version, so the copy can be
+	 * stored like the original.
+	 * 
+	 * @param other
+	 *            the vote to copy
+	 */
+	public Vote(final Vote other) {
+		super();
+		this.voterId = other.voterId;
+		this.voteFor = other.voteFor;
+		this.likes = other.likes;
+		this.version = other.version;
+	}
+
 	/**
 	 * @return the likes
 	 */
@@ -92,4 +115,11 @@ public class Vote {
 	public int getVoteFor() {
 		return voteFor;
 	}
+
+	/**
+	 * @return the version used for optimistic locking
+	 */
+	public int getVersion() {
+		return version;
+	}
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence.entity;
+
+/**
+ * Projection of a Vote together with the likes of the reciprocal vote. This is
+ * no entity, it is read with a single self join on the votes table.
+ * 
+ * @author oliver
+ */
+public class VotingPair {
+
+	protected final int voterId;
+	protected final int voteFor;
+	protected final int likes;
+	protected final int otherLikes;
+
+	/**
+	 * Constructor setting all values
+	 * 
+	 * @param voterId
+	 *            the id of the candidate who votes
+	 * @param voteFor
+	 *            the id of the candidate that is voted for
+	 * @param likes
+	 *            likes from the voter to the other candidate
+	 * @param otherLikes
+	 *            likes from the other candidate back to the voter
+	 */
+	public VotingPair(final int voterId, final int voteFor, final int likes, final int otherLikes) {
+		super();
+		this.voterId = voterId;
+		this.voteFor = voteFor;
+		this.likes = likes;
+		this.otherLikes = otherLikes;
+	}
+
+	/**
+	 * @return the voterId
+	 */
+	public int getVoterId() {
+		return voterId;
+	}
+
+	/**
+	 * @return the voteFor
+	 */
+	public int getVoteFor() {
+		return voteFor;
+	}
+
+	/**
+	 * @return the likes
+	 */
+	public int getLikes() {
+		return likes;
+	}
+
+	/**
+	 * @return the otherLikes
+	 */
+	public int getOtherLikes() {
+		return otherLikes;
+	}
+}
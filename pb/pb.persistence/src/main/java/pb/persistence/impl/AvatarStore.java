@@ -0,0 +1,329 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Append-only store of avatar images keyed by the SHA-256 hash of their
+ * content. Images are appended to memory-mapped segment files of a fixed
+ * size, reads return a read-only view on the mapping without copying the
+ * bytes. Storing an image that is there already only returns its hash, so
+ * identical avatars like the default ones are kept once.
+ * 
+ * A record is a marker, the length, the hash and the image. The marker is
+ * written last, and opening the store rebuilds the index from the records
+ * whose hash still matches, so a record torn by a crash is dropped together
+ * with the rest of its segment. Images are never removed.
+ * 
+ * Each store keeps its own write position, so a directory is locked by the
+ * store that opened it until it is closed. A closed store refuses new images.
+ * 
+ * @author oliver
+ */
+public class AvatarStore {
+
+	public static final String HASH_ALGORITHM = "SHA-256";
+	protected static final int RECORD_MARKER = 0x50424156;
+	protected static final int HASH_SIZE = 32;
+	protected static final int HEADER_SIZE = 8 + HASH_SIZE;
+	protected static final String SEGMENT_PREFIX = "avatars-";
+	protected static final String SEGMENT_SUFFIX = ".seg";
+	protected static final String LOCK_FILE = "avatars.lock";
+	protected static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+	protected final File directory;
+	protected final int segmentSize;
+	protected final List<MappedByteBuffer> segments = new ArrayList<>();
+	/** read-only views on the stored images by hash */
+	protected final ConcurrentMap<String, ByteBuffer> images = new ConcurrentHashMap<>();
+	/** write position in the last segment */
+	protected int position = 0;
+	/** the directory with its files is deleted on close */
+	protected final boolean temporary;
+	protected final RandomAccessFile lockFile;
+	protected final FileLock lock;
+	protected boolean closed = false;
+
+	/**
+	 * Opens the store and reads the index of the existing segments
+	 * 
+	 * @param directory
+	 *            directory of the segment files, created when missing
+	 * @param segmentSize
+	 *            size of new segment files in bytes, limits the image size
+	 * @throws IOException
+	 *             when the directory or a segment can't be opened or another
+	 *             store has the directory open
+	 */
+	public AvatarStore(final File directory, final int segmentSize) throws IOException {
+		this(directory, segmentSize, false);
+	}
+
+	protected AvatarStore(final File directory, final int segmentSize, final boolean temporary)
+			throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.temporary = temporary;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create avatar directory " + directory);
+		}
+		lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+		FileLock locked = null;
+		try {
+			locked = lockFile.getChannel().tryLock();
+		} catch (final OverlappingFileLockException e) {
+			// held by another store of this process
+		}
+		lock = locked;
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("Avatar directory " + directory + " is used by another store");
+		}
+		try {
+			final File files[] = directory.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(final File dir, final String name) {
+					return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+				}
+			});
+			Arrays.sort(files);
+			for (final File file : files) {
+				final MappedByteBuffer segment = map(file, file.length());
+				segments.add(segment);
+				position = scan(segment);
+			}
+		} catch (final IOException e) {
+			lockFile.close();
+			throw e;
+		}
+		Log.info("Opened avatar store %s with %d images", directory, images.size());
+	}
+
+	/**
+	 * Opens a store in a new temporary directory, that is deleted when the
+	 * store is closed. For databases that don't outlive the process either.
+	 * 
+	 * @param segmentSize
+	 *            size of new segment files in bytes, limits the image size
+	 * @return the empty store
+	 * @throws IOException
+	 *             when the directory can't be created
+	 */
+	public static AvatarStore createTemporary(final int segmentSize) throws IOException {
+		return new AvatarStore(Files.createTempDirectory("pb-avatars").toFile(), segmentSize, true);
+	}
+
+	/**
+	 * @param data
+	 *            the image
+	 * @return the hash the image is stored with, as lower case hex string
+	 */
+	public static String hash(final byte data[]) {
+		return toHex(digest(data));
+	}
+
+	protected static byte[] digest(final byte data[]) {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM).digest(data);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(HASH_ALGORITHM + " not available", e);
+		}
+	}
+
+	protected static String toHex(final byte hash[]) {
+		final char ret[] = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; ++i) {
+			ret[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			ret[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+		}
+		return new String(ret);
+	}
+
+	/**
+	 * Maps a segment file, it is created with the given size when missing
+	 */
+	protected MappedByteBuffer map(final File file, final long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			// the mapping stays valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * Adds the complete records of a segment to the index
+	 * 
+	 * @return the position after the last complete record
+	 */
+	protected int scan(final MappedByteBuffer segment) {
+		final ByteBuffer records = segment.duplicate();
+		int ret = 0;
+		while (ret + HEADER_SIZE <= records.capacity()
+				&& records.getInt(ret) == RECORD_MARKER) {
+			final int length = records.getInt(ret + 4);
+			if (length < 0 || ret + HEADER_SIZE + length > records.capacity()) {
+				break;
+			}
+			final byte hash[] = new byte[HASH_SIZE];
+			records.position(ret + 8);
+			records.get(hash);
+			final ByteBuffer image = view(segment, ret + HEADER_SIZE, length);
+			final byte data[] = new byte[length];
+			image.duplicate().get(data);
+			if (!Arrays.equals(hash, digest(data))) {
+				Log.warning("Dropping torn avatar record at %d in %s", ret, directory);
+				break;
+			}
+			images.put(toHex(hash), image);
+			ret += HEADER_SIZE + length;
+		}
+		return ret;
+	}
+
+	protected static ByteBuffer view(final ByteBuffer segment, final int offset, final int length) {
+		final ByteBuffer ret = segment.duplicate();
+		ret.position(offset);
+		ret.limit(offset + length);
+		return ret.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Appends the image unless it is stored already
+	 * 
+	 * @param data
+	 *            the image
+	 * @return the hash of the image
+	 * @throws IOException
+	 *             when a new segment can't be created
+	 */
+	public String put(final byte data[]) throws IOException {
+		final byte hash[] = digest(data);
+		final String ret = toHex(hash);
+		if (!images.containsKey(ret)) {
+			synchronized (this) {
+				if (!images.containsKey(ret)) {
+					append(hash, data, ret);
+				}
+			}
+		}
+		return ret;
+	}
+
+	protected void append(final byte hash[], final byte data[], final String key)
+			throws IOException {
+		if (closed) {
+			throw new IOException("Avatar store " + directory + " is closed");
+		}
+		final int size = HEADER_SIZE + data.length;
+		if (size > segmentSize) {
+			throw new IllegalArgumentException("Avatar of " + data.length
+					+ " bytes exceeds the segment size");
+		}
+		if (segments.isEmpty() || position + size > segments.get(segments.size() - 1).capacity()) {
+			final File file = new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX,
+					segments.size(), SEGMENT_SUFFIX));
+			segments.add(map(file, segmentSize));
+			position = 0;
+		}
+		final MappedByteBuffer segment = segments.get(segments.size() - 1);
+		final ByteBuffer record = segment.duplicate();
+		record.position(position + 4);
+		record.putInt(data.length);
+		record.put(hash);
+		record.put(data);
+		record.putInt(position, RECORD_MARKER);
+		images.put(key, view(segment, position + HEADER_SIZE, data.length));
+		position += size;
+	}
+
+	/**
+	 * @param hash
+	 *            hash of the image
+	 * @return a read-only view on the stored image or null when unknown
+	 */
+	public ByteBuffer get(final String hash) {
+		final ByteBuffer image = images.get(hash);
+		return image == null ? null : image.duplicate();
+	}
+
+	/**
+	 * @return directory of the segment files
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return number of stored images
+	 */
+	public int getCount() {
+		return images.size();
+	}
+
+	/**
+	 * Writes the segments to disk and releases the directory. The mappings are
+	 * released by the garbage collector once the views handed out are gone.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (final MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+		segments.clear();
+		images.clear();
+		try {
+			// closing the channel releases the lock
+			lockFile.close();
+		} catch (final IOException e) {
+			Log.warning("Error unlocking avatar directory %s", e, directory);
+		}
+		if (temporary) {
+			final File files[] = directory.listFiles();
+			if (files != null) {
+				for (final File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pb.persistence.CacheStatistics;
+
+/**
+ * Bounded read-through cache of detached entities by primary key. When the
+ * capacity is reached the least recently used entry is evicted. Entities are
+ * copied on the way in and out, so callers may change what they got.
+ * 
+ * A miss takes a {@link #stamp()} before it reads the database and hands it
+ * to {@link #put(Object, Object, long)}. When an entry was invalidated in
+ * between, the read may be older than the write and is not cached.
+ * 
+ * @author oliver
+ */
+public abstract class EntityCache<K, V> implements CacheStatistics {
+	protected final Map<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+			if (size() > capacity) {
+				++evictions;
+				return true;
+			}
+			return false;
+		}
+	};
+	protected int capacity;
+	protected long stamp = 0;
+	protected long hits = 0;
+	protected long misses = 0;
+	protected long evictions = 0;
+	protected long invalidations = 0;
+
+	/**
+	 * @param capacity
+	 *            maximum number of cached entries, 0 disables the cache
+	 */
+	public EntityCache(final int capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * @param entity
+	 *            a cached or loaded entity
+	 * @return a copy the cache and the caller don't share
+	 */
+	protected abstract V copy(V entity);
+
+	/**
+	 * Changes the capacity and evicts the least recently used entries that
+	 * don't fit anymore
+	 * 
+	 * @param capacity
+	 *            maximum number of cached entries, 0 disables the cache
+	 */
+	public synchronized void setCapacity(final int capacity) {
+		this.capacity = Math.max(0, capacity);
+		while (entries.size() > this.capacity) {
+			final K eldest = entries.keySet().iterator().next();
+			entries.remove(eldest);
+			++evictions;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            primary key of the entity
+	 * @return a copy of the cached entity or null on a miss
+	 */
+	public V get(final K key) {
+		final V cached;
+		synchronized (this) {
+			if (capacity == 0) {
+				return null;
+			}
+			cached = entries.get(key);
+			if (cached == null) {
+				++misses;
+				return null;
+			}
+			++hits;
+		}
+		return copy(cached);
+	}
+
+	/**
+	 * @return the stamp to pass to {@link #put(Object, Object, long)} after
+	 *         reading the entity from the database
+	 */
+	public synchronized long stamp() {
+		return stamp;
+	}
+
+	/**
+	 * Caches a copy of an entity read from the database, unless an entity was
+	 * invalidated since the stamp was taken
+	 * 
+	 * @param key
+	 *            primary key of the entity
+	 * @param entity
+	 *            the entity read, null is not cached
+	 * @param readStamp
+	 *            the stamp taken before the read
+	 */
+	public void put(final K key, final V entity, final long readStamp) {
+		if (entity != null) {
+			final V copy = copy(entity);
+			synchronized (this) {
+				if (capacity > 0 && readStamp == stamp) {
+					entries.put(key, copy);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the entity after it was written
+	 * 
+	 * @param key
+	 *            primary key of the entity
+	 */
+	public synchronized void invalidate(final K key) {
+		++stamp;
+		if (entries.remove(key) != null) {
+			++invalidations;
+		}
+	}
+
+	/**
+	 * Drops all entities, after a bulk write or when the database goes away
+	 */
+	public synchronized void invalidateAll() {
+		++stamp;
+		invalidations += entries.size();
+		entries.clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.CacheStatistics#getCapacity()
+	 */
+	@Override
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.CacheStatistics#getSize()
+	 */
+	@Override
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.CacheStatistics#getHits()
+	 */
+	@Override
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.CacheStatistics#getMisses()
+	 */
+	@Override
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.CacheStatistics#getEvictions()
+	 */
+	@Override
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.CacheStatistics#getInvalidations()
+	 */
+	@Override
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		final long count = Math.max(1, hits + misses);
+		return String.format("size %d of %d, hits %d, misses %d, hit rate %.1f %%, "
+				+ "evictions %d, invalidations %d", entries.size(), capacity, hits, misses,
+				hits * 100.0 / count, evictions, invalidations);
+	}
+}
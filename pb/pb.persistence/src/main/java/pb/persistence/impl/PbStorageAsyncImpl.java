@@ -0,0 +1,371 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+
+import pb.persistence.PbStorage;
+import pb.persistence.PbStorage.VoteResult;
+import pb.persistence.PbStorageAsync;
+import pb.persistence.entity.Candidate;
+import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
+import pb.persistence.entity.Credit;
+import pb.persistence.entity.Vote;
+import pb.persistence.entity.VotingPair;
+
+/**
+ * Implementation of the asynchronous storage service. The calls are delegated
+ * to the PbStorage service on a dedicated executor with a fixed number of
+ * threads and a bounded queue, so a burst of requests can't exhaust the
+ * database.
+ * 
+ * @author oliver
+ */
+@Component(name = "pb.persistence.async", label = "PB Storage Async", immediate = true, metatype = true)
+@Service(value = PbStorageAsync.class)
+@Reference(name = "PBStorage", bind = "bind", unbind = "unbind", referenceInterface = PbStorage.class, cardinality = ReferenceCardinality.MANDATORY_UNARY, policy = ReferencePolicy.DYNAMIC)
+public class PbStorageAsyncImpl implements PbStorageAsync {
+
+	protected static final int defaultThreads = 8;
+	protected static final int defaultQueueSize = 256;
+
+	@Property(intValue = defaultThreads)
+	public static final String THREADS_NAME = "DatabaseThreads";
+
+	@Property(intValue = defaultQueueSize)
+	public static final String QUEUE_SIZE_NAME = "DatabaseQueueSize";
+
+	protected volatile PbStorage storage = null;
+	protected ThreadPoolExecutor executor = null;
+
+	/**
+	 * Activate method creating the database executor
+	 * 
+	 * @param properties
+	 *            configuration of the component
+	 */
+	@Activate
+	protected void activate(final Map<String, ?> properties) {
+		final int threads = readInteger(properties, THREADS_NAME, defaultThreads);
+		final int queueSize = readInteger(properties, QUEUE_SIZE_NAME, defaultQueueSize);
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "pb.persistence.async-"
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Deactivate method stopping the executor after the queued calls are done
+	 */
+	@Deactivate
+	protected void deactivate() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				Log.error("Database executor did not finish queued calls");
+				executor.shutdownNow();
+			}
+		} catch (final InterruptedException e) {
+			Log.error("Interrupted while stopping the database executor", e);
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads an integer value from the component properties
+	 * 
+	 * @param properties
+	 *            configuration of the component
+	 * @param name
+	 *            name of the property
+	 * @param defaultValue
+	 *            default value when the property is missing or no integer
+	 * @return the value of the property or the default value
+	 */
+	protected int readInteger(final Map<String, ?> properties, final String name,
+			final int defaultValue) {
+		final Object rawValue = properties == null ? null : properties.get(name);
+		if (rawValue instanceof Integer) {
+			return (Integer) rawValue;
+		}
+		if (rawValue != null) {
+			Log.error("Error reading %s Property", name);
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Runs the call on the database executor.
+	 * 
+	 * @param call
+	 *            the call to the storage
+	 * @return future completed with the result of the call, or exceptionally
+	 *         when it failed or the executor is saturated
+	 */
+	protected <T> CompletableFuture<T> submit(final Callable<T> call) {
+		final CompletableFuture<T> ret = new CompletableFuture<>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ret.complete(call.call());
+					} catch (final Throwable thr) {
+						ret.completeExceptionally(thr);
+					}
+				}
+			});
+		} catch (final RejectedExecutionException ree) {
+			ret.completeExceptionally(ree);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the bound storage
+	 * @throws IllegalStateException
+	 *             when no storage is bound
+	 */
+	protected PbStorage storage() {
+		final PbStorage ret = storage;
+		if (ret == null) {
+			throw new IllegalStateException("Storage Service is not available");
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#getCandidate(int)
+	 */
+	@Override
+	public CompletableFuture<Candidate> getCandidate(final int id) {
+		return submit(new Callable<Candidate>() {
+			@Override
+			public Candidate call() {
+				return storage().getCandidate(id);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#getCandidateSummary(int)
+	 */
+	@Override
+	public CompletableFuture<CandidateSummary> getCandidateSummary(final int id) {
+		return submit(new Callable<CandidateSummary>() {
+			@Override
+			public CandidateSummary call() {
+				return storage().getCandidateSummary(id);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#getCandidateSummariesByGender(pb.
+	 * persistence.entity.Candidate.Gender, int, int)
+	 */
+	@Override
+	public CompletableFuture<List<CandidateSummary>> getCandidateSummariesByGender(
+			final Gender gender, final int afterId, final int limit) {
+		return submit(new Callable<List<CandidateSummary>>() {
+			@Override
+			public List<CandidateSummary> call() {
+				return storage().getCandidateSummariesByGender(gender, afterId, limit);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * pb.persistence.PbStorageAsync#storeCandidate(pb.persistence.entity.Candidate
+	 * )
+	 */
+	@Override
+	public CompletableFuture<Boolean> storeCandidate(final Candidate candidate) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return storage().storeCandidate(candidate);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#getCredit(int)
+	 */
+	@Override
+	public CompletableFuture<Credit> getCredit(final int id) {
+		return submit(new Callable<Credit>() {
+			@Override
+			public Credit call() {
+				return storage().getCredit(id);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#storeCredit(pb.persistence.entity.Credit)
+	 */
+	@Override
+	public CompletableFuture<Boolean> storeCredit(final Credit credit) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return storage().storeCredit(credit);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#getVotesByCandidateId(int)
+	 */
+	@Override
+	public CompletableFuture<List<Vote>> getVotesByCandidateId(final int id) {
+		return submit(new Callable<List<Vote>>() {
+			@Override
+			public List<Vote> call() {
+				return storage().getVotesByCandidateId(id);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#getVotingPairs(int)
+	 */
+	@Override
+	public CompletableFuture<List<VotingPair>> getVotingPairs(final int voterId) {
+		return submit(new Callable<List<VotingPair>>() {
+			@Override
+			public List<VotingPair> call() {
+				return storage().getVotingPairs(voterId);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#storeVote(pb.persistence.entity.Vote)
+	 */
+	@Override
+	public CompletableFuture<Boolean> storeVote(final Vote vote) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return storage().storeVote(vote);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#getId(java.lang.String)
+	 */
+	@Override
+	public CompletableFuture<Integer> getId(final String ip) {
+		return submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return storage().getId(ip);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorageAsync#vote(int, int, int)
+	 */
+	@Override
+	public CompletableFuture<VoteResult> vote(final int voter, final int voteFor,
+			final int maxLikes) {
+		return submit(new Callable<VoteResult>() {
+			@Override
+			public VoteResult call() {
+				return storage().vote(voter, voteFor, maxLikes);
+			}
+		});
+	}
+
+	/**
+	 * SCR Bind Method for the PBStorage service.
+	 * 
+	 * @param storage
+	 *            storage service doing the database work
+	 */
+	protected void bind(final PbStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * SCR unbind method for the PBStorage service.
+	 * 
+	 * @param storage
+	 *            storage service doing the database work
+	 */
+	protected void unbind(final PbStorage storage) {
+		if (storage.equals(this.storage)) {
+			this.storage = null;
+		}
+	}
+}
@@ -19,37 +19,95 @@
  */
 package pb.persistence.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.PessimisticLockException;
 import javax.persistence.Query;
 import javax.persistence.spi.PersistenceProvider;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 
+import pb.persistence.AdaptiveAdmission;
+import pb.persistence.Admission;
+import pb.persistence.AdmissionStatistics;
+import pb.persistence.CacheStatistics;
 import pb.persistence.PbStorage;
+import pb.persistence.StorageOverloadException;
 import pb.persistence.entity.Candidate;
 import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
 import pb.persistence.entity.ClientId;
 import pb.persistence.entity.Credit;
 import pb.persistence.entity.Vote;
 import pb.persistence.entity.VotePK;
+import pb.persistence.entity.VotingPair;
 
 /**
  * Implementation of the storage service as a service component.
  * 
+ * With the WriteBehind property set, storeVote and storeCredit only queue the
+ * entity and return. A flusher thread coalesces queued entities with the same
+ * key and commits them in batches, every WriteBehindInterval ms or as soon as
+ * WriteBehindBatchSize entities are queued. Queued entities are written last
+ * writer wins, the version check only guards the synchronous stores. getVote
+ * and getCredit see the queued entities, the queries only see them after the
+ * flush. Transactional writes flush the queue first, and so does unbind before
+ * the EntityManagerFactory is closed.
+ * 
+ * The connections come from a pool of ConnectionPoolSize connections to
+ * JdbcUrl, handed to Hibernate as its data source. Every pooled connection
+ * keeps StatementCacheSize parsed statements. When the connection settings
+ * change on activation, the EntityManagerFactory is created again.
+ * 
+ * Candidate summaries, credits and votes are cached by primary key, up to
+ * CacheSize entries each. Every write through this component invalidates the
+ * written entries, writes by other clients of the database are not seen.
+ * 
+ * Avatars are kept in an {@link AvatarStore} in AvatarDirectory, the
+ * candidates only hold the hash of their image. An empty AvatarDirectory
+ * stands for DatabaseFile-avatars, or a new temporary directory deleted on
+ * deactivation for an in-memory database. A directory is used by one storage
+ * at a time.
+ * 
  * @author oliver
  */
-@Component(name = "pb.persistence", label = "PB Storage", immediate = true, metatype = false)
+@Component(name = "pb.persistence", label = "PB Storage", immediate = true, metatype = true)
 @Service(value = PbStorage.class)
 @Reference(name = "PersistenceProvider", bind = "bind", unbind = "unbind", referenceInterface = PersistenceProvider.class, cardinality = ReferenceCardinality.MANDATORY_UNARY, policy = ReferencePolicy.DYNAMIC)
 @SuppressWarnings("unchecked")
@@ -57,66 +115,1196 @@ public class PbStorageImpl implements PbStorage {
 
 	protected EntityManagerFactory entityMgrFactory = null;
 	protected PersistenceProvider provider = null;
-	protected Semaphore providerSem = new Semaphore(0);
-	protected static final int MAX_ACCESS_COUNT = 100;
-	protected Lock idLock = new ReentrantLock();
+	protected static final int defaultAdmissionLimitMin = 1;
+	protected static final int defaultReadLimitMax = 60;
+	protected static final int defaultWriteLimitMax = 30;
+	protected static final int defaultDeleteLimitMax = 10;
+	protected static final int defaultAdmissionTimeout = 500;
+	// separate bulkheads, so slow list queries can't starve the vote commits
+	protected final AdaptiveAdmission readAdmission = new AdaptiveAdmission(10,
+			defaultAdmissionLimitMin, defaultReadLimitMax);
+	protected final AdaptiveAdmission writeAdmission = new AdaptiveAdmission(10,
+			defaultAdmissionLimitMin, defaultWriteLimitMax);
+	protected final AdaptiveAdmission deleteAdmission = new AdaptiveAdmission(2,
+			defaultAdmissionLimitMin, defaultDeleteLimitMax);
+
+	@Property(intValue = defaultAdmissionTimeout)
+	public static final String ADMISSION_TIMEOUT_NAME = "AdmissionTimeout";
+	protected int admissionTimeout = defaultAdmissionTimeout;
+
+	@Property(intValue = defaultAdmissionLimitMin)
+	public static final String ADMISSION_LIMIT_MIN_NAME = "AdmissionLimitMin";
+
+	@Property(intValue = defaultReadLimitMax)
+	public static final String READ_LIMIT_MAX_NAME = "ReadAdmissionLimitMax";
+
+	@Property(intValue = defaultWriteLimitMax)
+	public static final String WRITE_LIMIT_MAX_NAME = "WriteAdmissionLimitMax";
+
+	@Property(intValue = defaultDeleteLimitMax)
+	public static final String DELETE_LIMIT_MAX_NAME = "DeleteAdmissionLimitMax";
+	protected static final String SELECT_SUMMARY = "select new "
+			+ CandidateSummary.class.getName()
+			+ "(x.id, x.name, x.age, x.shortDescription, x.gender, x.imageCount, x.imageHash)"
+			+ " from Candidate x";
+	protected static final String SELECT_SUMMARY_PAGE = SELECT_SUMMARY
+			+ " where x.gender = :gender and length(x.name) > 0 and x.available = :available"
+			+ " and x.id > :afterId order by x.id";
+	protected static final int STREAM_FETCH_SIZE = 50;
+	/** SQLSTATE of a transaction rolled back as a deadlock victim */
+	protected static final String deadlockState = "40001";
+	protected final ConcurrentMap<String, Integer> idCache = new ConcurrentHashMap<>();
+	protected final ConcurrentMap<String, Object> idCreations = new ConcurrentHashMap<>();
+
+	protected static final boolean defaultWriteBehind = false;
+	protected static final int defaultWriteBehindInterval = 100;
+	protected static final int defaultWriteBehindBatchSize = 100;
+	protected static final int defaultWriteBehindQueueSize = 10000;
+
+	@Property(boolValue = defaultWriteBehind)
+	public static final String WRITE_BEHIND_NAME = "WriteBehind";
+
+	@Property(intValue = defaultWriteBehindInterval)
+	public static final String WRITE_BEHIND_INTERVAL_NAME = "WriteBehindInterval";
+
+	@Property(intValue = defaultWriteBehindBatchSize)
+	public static final String WRITE_BEHIND_BATCH_SIZE_NAME = "WriteBehindBatchSize";
+
+	@Property(intValue = defaultWriteBehindQueueSize)
+	public static final String WRITE_BEHIND_QUEUE_SIZE_NAME = "WriteBehindQueueSize";
+
+	protected volatile boolean writeBehind = defaultWriteBehind;
+	protected int writeBehindInterval = defaultWriteBehindInterval;
+	protected int writeBehindBatchSize = defaultWriteBehindBatchSize;
+	protected int writeBehindQueueSize = defaultWriteBehindQueueSize;
+	/** copies of the queued entities by primary key, VotePK or Integer */
+	protected final Map<Object, Object> pending = new LinkedHashMap<>();
+	protected final Object flushLock = new Object();
+	protected Thread flusher = null;
+	/** how long the queue is written on shutdown before the rest is dropped */
+	protected static final int drainTimeout = 10000;
+	protected static final int drainRetryInterval = 50;
+	/** queued entities dropped on shutdown, since they could not be written */
+	protected final AtomicLong droppedWrites = new AtomicLong();
+
+	protected static final String defaultJdbcUrl =
+			"jdbc:h2:mem:db1;DB_CLOSE_DELAY=-1;MV_STORE=TRUE";
+	protected static final String defaultJdbcUser = "sa";
+	protected static final String defaultJdbcPassword = "";
+	protected static final int defaultConnectionPoolSize = 32;
+	protected static final int defaultJdbcBatchSize = 50;
+	protected static final int defaultStatementCacheSize = 64;
+	protected static final boolean defaultShowSql = false;
+
+	@Property(value = defaultJdbcUrl)
+	public static final String JDBC_URL_NAME = "JdbcUrl";
+
+	@Property(value = defaultJdbcUser)
+	public static final String JDBC_USER_NAME = "JdbcUser";
+
+	@Property(value = defaultJdbcPassword)
+	public static final String JDBC_PASSWORD_NAME = "JdbcPassword";
+
+	@Property(intValue = defaultConnectionPoolSize)
+	public static final String CONNECTION_POOL_SIZE_NAME = "ConnectionPoolSize";
+
+	@Property(intValue = defaultJdbcBatchSize)
+	public static final String JDBC_BATCH_SIZE_NAME = "JdbcBatchSize";
+
+	@Property(intValue = defaultStatementCacheSize)
+	public static final String STATEMENT_CACHE_SIZE_NAME = "StatementCacheSize";
+
+	@Property(boolValue = defaultShowSql)
+	public static final String SHOW_SQL_NAME = "ShowSql";
+
+	protected static final String defaultDatabaseFile = "";
+
+	/**
+	 * Path of a file-backed MVStore database. When set it replaces JdbcUrl, an
+	 * existing schema is validated instead of dropped and the avatars are
+	 * kept next to it by default, so the party survives restarts.
+	 */
+	@Property(value = defaultDatabaseFile)
+	public static final String DATABASE_FILE_NAME = "DatabaseFile";
+
+	/** the most ids looked up with one in-list by the batch stores */
+	protected static final int ID_LIST_SIZE = 500;
+
+	protected static final int defaultCacheSize = 10000;
+
+	@Property(intValue = defaultCacheSize)
+	public static final String CACHE_SIZE_NAME = "CacheSize";
+
+	// summaries are immutable and can be shared
+	protected final EntityCache<Integer, CandidateSummary> summaryCache =
+			new EntityCache<Integer, CandidateSummary>(defaultCacheSize) {
+		@Override
+		protected CandidateSummary copy(final CandidateSummary entity) {
+			return entity;
+		}
+	};
+	protected final EntityCache<Integer, Credit> creditCache =
+			new EntityCache<Integer, Credit>(defaultCacheSize) {
+		@Override
+		protected Credit copy(final Credit entity) {
+			return new Credit(entity);
+		}
+	};
+	protected final EntityCache<VotePK, Vote> voteCache =
+			new EntityCache<VotePK, Vote>(defaultCacheSize) {
+		@Override
+		protected Vote copy(final Vote entity) {
+			return new Vote(entity);
+		}
+	};
+
+	protected static final String defaultAvatarDirectory = "";
+	protected static final int defaultAvatarSegmentSize = 16 * 1024 * 1024;
+
+	@Property(value = defaultAvatarDirectory)
+	public static final String AVATAR_DIRECTORY_NAME = "AvatarDirectory";
+
+	@Property(intValue = defaultAvatarSegmentSize)
+	public static final String AVATAR_SEGMENT_SIZE_NAME = "AvatarSegmentSize";
+
+	protected String avatarDirectory = defaultAvatarDirectory;
+	protected int avatarSegmentSize = defaultAvatarSegmentSize;
+	protected volatile AvatarStore avatarStore = null;
+
+	/** bumped after every write that changes the candidate lists */
+	protected final AtomicLong candidateListVersion = new AtomicLong();
+
+	/** the connection settings the EntityManagerFactory was created with */
+	protected Map<String, Object> connectionSettings = readConnectionSettings(null);
+	protected JdbcConnectionPool connectionPool = null;
+
+	/**
+	 * Activate method reading the configuration and starting the write-behind
+	 * flusher when it is enabled. The provider is usually bound before, so a
+	 * changed connection configuration recreates the EntityManagerFactory.
+	 * 
+	 * @param properties
+	 *            configuration of the component
+	 */
+	@Activate
+	protected void activate(final Map<String, ?> properties) {
+		admissionTimeout = readInteger(properties, ADMISSION_TIMEOUT_NAME,
+				defaultAdmissionTimeout);
+		final int limitMin = readInteger(properties, ADMISSION_LIMIT_MIN_NAME,
+				defaultAdmissionLimitMin);
+		readAdmission.configure(limitMin,
+				readInteger(properties, READ_LIMIT_MAX_NAME, defaultReadLimitMax));
+		writeAdmission.configure(limitMin,
+				readInteger(properties, WRITE_LIMIT_MAX_NAME, defaultWriteLimitMax));
+		deleteAdmission.configure(limitMin,
+				readInteger(properties, DELETE_LIMIT_MAX_NAME, defaultDeleteLimitMax));
+		writeBehindInterval = readInteger(properties, WRITE_BEHIND_INTERVAL_NAME,
+				defaultWriteBehindInterval);
+		writeBehindBatchSize = readInteger(properties, WRITE_BEHIND_BATCH_SIZE_NAME,
+				defaultWriteBehindBatchSize);
+		writeBehindQueueSize = Math.max(writeBehindBatchSize,
+				readInteger(properties, WRITE_BEHIND_QUEUE_SIZE_NAME, defaultWriteBehindQueueSize));
+		final int cacheSize = readInteger(properties, CACHE_SIZE_NAME, defaultCacheSize);
+		summaryCache.setCapacity(cacheSize);
+		creditCache.setCapacity(cacheSize);
+		voteCache.setCapacity(cacheSize);
+		final String directory = readString(properties, AVATAR_DIRECTORY_NAME,
+				defaultAvatarDirectory);
+		final int segmentSize = readInteger(properties, AVATAR_SEGMENT_SIZE_NAME,
+				defaultAvatarSegmentSize);
+		if (!directory.equals(avatarDirectory) || segmentSize != avatarSegmentSize) {
+			avatarDirectory = directory;
+			avatarSegmentSize = segmentSize;
+			if (avatarStore != null) {
+				openAvatarStore();
+			}
+		}
+		final Map<String, Object> settings = readConnectionSettings(properties);
+		if (!settings.equals(connectionSettings)) {
+			connectionSettings = settings;
+			if (provider != null) {
+				Log.info("Connection settings changed, recreating the EntityManagerFactory");
+				stopPersistence();
+				startPersistence();
+			}
+		}
+		writeBehind = readBoolean(properties, WRITE_BEHIND_NAME, defaultWriteBehind);
+		if (writeBehind) {
+			flusher = new Thread("pb.persistence.write-behind") {
+				@Override
+				public void run() {
+					runFlusher();
+				}
+			};
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Deactivate method stopping the flusher and writing the queued entities
+	 */
+	@Deactivate
+	protected void deactivate() {
+		synchronized (pending) {
+			writeBehind = false;
+			pending.notifyAll();
+		}
+		if (flusher != null) {
+			try {
+				flusher.join();
+			} catch (final InterruptedException e) {
+				Log.error("Interrupted while stopping the write-behind flusher", e);
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
+		drain();
+	}
+
+	/**
+	 * Reads an integer value from the component properties
+	 * 
+	 * @param properties
+	 *            configuration of the component
+	 * @param name
+	 *            name of the property
+	 * @param defaultValue
+	 *            default value when the property is missing or no integer
+	 * @return the value of the property or the default value
+	 */
+	protected int readInteger(final Map<String, ?> properties, final String name,
+			final int defaultValue) {
+		final Object rawValue = properties == null ? null : properties.get(name);
+		if (rawValue instanceof Integer) {
+			return (Integer) rawValue;
+		}
+		if (rawValue != null) {
+			Log.error("Error reading %s Property", name);
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Reads a string value from the component properties
+	 * 
+	 * @param properties
+	 *            configuration of the component
+	 * @param name
+	 *            name of the property
+	 * @param defaultValue
+	 *            default value when the property is missing or no string
+	 * @return the value of the property or the default value
+	 */
+	protected String readString(final Map<String, ?> properties, final String name,
+			final String defaultValue) {
+		final Object rawValue = properties == null ? null : properties.get(name);
+		if (rawValue instanceof String) {
+			return (String) rawValue;
+		}
+		if (rawValue != null) {
+			Log.error("Error reading %s Property", name);
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Reads the settings of the connection pool and the EntityManagerFactory
+	 * 
+	 * @param properties
+	 *            configuration of the component, may be null
+	 * @return the settings by property name, with the defaults filled in
+	 */
+	protected Map<String, Object> readConnectionSettings(final Map<String, ?> properties) {
+		final Map<String, Object> ret = new HashMap<>();
+		ret.put(JDBC_URL_NAME, readString(properties, JDBC_URL_NAME, defaultJdbcUrl));
+		ret.put(JDBC_USER_NAME, readString(properties, JDBC_USER_NAME, defaultJdbcUser));
+		ret.put(JDBC_PASSWORD_NAME,
+				readString(properties, JDBC_PASSWORD_NAME, defaultJdbcPassword));
+		ret.put(CONNECTION_POOL_SIZE_NAME, Math.max(1,
+				readInteger(properties, CONNECTION_POOL_SIZE_NAME, defaultConnectionPoolSize)));
+		ret.put(JDBC_BATCH_SIZE_NAME, Math.max(0,
+				readInteger(properties, JDBC_BATCH_SIZE_NAME, defaultJdbcBatchSize)));
+		ret.put(STATEMENT_CACHE_SIZE_NAME, Math.max(0,
+				readInteger(properties, STATEMENT_CACHE_SIZE_NAME, defaultStatementCacheSize)));
+		ret.put(SHOW_SQL_NAME, readBoolean(properties, SHOW_SQL_NAME, defaultShowSql));
+		ret.put(DATABASE_FILE_NAME,
+				readString(properties, DATABASE_FILE_NAME, defaultDatabaseFile));
+		return ret;
+	}
+
+	/**
+	 * Reads a boolean value from the component properties
+	 * 
+	 * @param properties
+	 *            configuration of the component
+	 * @param name
+	 *            name of the property
+	 * @param defaultValue
+	 *            default value when the property is missing or no boolean
+	 * @return the value of the property or the default value
+	 */
+	protected boolean readBoolean(final Map<String, ?> properties, final String name,
+			final boolean defaultValue) {
+		final Object rawValue = properties == null ? null : properties.get(name);
+		if (rawValue instanceof Boolean) {
+			return (Boolean) rawValue;
+		}
+		if (rawValue != null) {
+			Log.error("Error reading %s Property", name);
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Loop of the flusher thread. Waits until a batch is queued or the
+	 * interval has passed and writes the queued entities.
+	 */
+	protected void runFlusher() {
+		int written = 0;
+		while (writeBehind) {
+			synchronized (pending) {
+				// wait a full interval after a flush that could not write
+				if (writeBehind && (written == 0 || pending.size() < writeBehindBatchSize)) {
+					try {
+						pending.wait(writeBehindInterval);
+					} catch (final InterruptedException e) {
+						Log.error("Write-behind flusher interrupted", e);
+						return;
+					}
+				}
+			}
+			written = flush();
+		}
+	}
+
+	/**
+	 * Queues a copy of the entity for the flusher. Blocks while the queue is
+	 * full, unless an entity with the same key is queued already and can be
+	 * replaced.
+	 * 
+	 * @param key
+	 *            primary key of the entity
+	 * @param entity
+	 *            copy of the entity to store
+	 * @return true when the entity was queued, false when the write-behind
+	 *         mode is off and the caller has to store it itself
+	 */
+	protected boolean enqueue(final Object key, final Object entity) {
+		synchronized (pending) {
+			try {
+				while (writeBehind && pending.size() >= writeBehindQueueSize
+						&& !pending.containsKey(key)) {
+					pending.notifyAll();
+					pending.wait();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if (writeBehind) {
+				pending.put(key, entity);
+				if (pending.size() >= writeBehindBatchSize) {
+					pending.notifyAll();
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            primary key of the entity
+	 * @return a copy of the queued entity with the key or null
+	 */
+	protected Object getPending(final Object key) {
+		final Object queued;
+		synchronized (pending) {
+			queued = pending.get(key);
+		}
+		return queued == null ? null : copyOf(queued);
+	}
+
+	/**
+	 * @param keys
+	 *            primary keys of credits and votes, none for any key
+	 * @return true when an entity with one of the keys is queued
+	 */
+	protected boolean isPending(final Object... keys) {
+		synchronized (pending) {
+			if (keys.length == 0) {
+				return !pending.isEmpty();
+			}
+			for (final Object key : keys) {
+				if (pending.containsKey(key)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param id
+	 *            the id of a candidate
+	 * @return true when a vote from or for the candidate is queued
+	 */
+	protected boolean isVotePending(final int id) {
+		synchronized (pending) {
+			for (final Object key : pending.keySet()) {
+				if (key instanceof VotePK
+						&& (((VotePK) key).getVoterId() == id || ((VotePK) key).getVoteFor() == id)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates an unversioned copy of a credit or vote, so neither the caller
+	 * nor the queue see later changes of the other one.
+	 * 
+	 * @param entity
+	 *            the credit or vote
+	 * @return the copy
+	 */
+	protected static Object copyOf(final Object entity) {
+		if (entity instanceof Credit) {
+			final Credit credit = (Credit) entity;
+			return new Credit(credit.getCandidateId(), credit.getCredit());
+		}
+		final Vote vote = (Vote) entity;
+		final Vote ret = new Vote(vote.getVoterId(), vote.getVoteFor());
+		ret.setLikes(vote.getLikes());
+		return ret;
+	}
+
+	/**
+	 * Writes all queued entities, WriteBehindBatchSize entities per
+	 * transaction, when it gets a write slot within the admission timeout.
+	 * Entities stay visible in the queue until they are committed. When a
+	 * batch fails its entities are written one by one, the ones that still
+	 * fail stay queued for the next flush.
+	 * 
+	 * @return the number of written entities
+	 */
+	protected int flush() {
+		return flush(true);
+	}
+
+	/**
+	 * Writes the queued entities before the database goes away. The write
+	 * admission isn't waited for, the admitted calls are finished soon. The
+	 * flush is repeated until the queue is empty or drainTimeout ms have
+	 * passed, what is left then is dropped and counted.
+	 */
+	protected void drain() {
+		final long deadline = System.currentTimeMillis() + drainTimeout;
+		while (provider != null && isPending() && System.currentTimeMillis() < deadline) {
+			if (flush(false) == 0) {
+				try {
+					Thread.sleep(drainRetryInterval);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		synchronized (pending) {
+			if (!pending.isEmpty()) {
+				Log.error("Dropping %d queued entities that could not be written", pending.size());
+				droppedWrites.addAndGet(pending.size());
+				pending.clear();
+				pending.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of queued entities dropped on shutdown, since they
+	 *         could not be written
+	 */
+	public long getDroppedWrites() {
+		return droppedWrites.get();
+	}
+
+	/**
+	 * Writes all queued entities like {@link #flush()}
+	 * 
+	 * @param admitted
+	 *            false to write without a slot of the write admission
+	 * @return the number of written entities
+	 */
+	protected int flush(final boolean admitted) {
+		int ret = 0;
+		synchronized (flushLock) {
+			final List<Map.Entry<Object, Object>> snapshot;
+			synchronized (pending) {
+				if (pending.isEmpty()) {
+					return 0;
+				}
+				snapshot = new ArrayList<>(new LinkedHashMap<>(pending).entrySet());
+			}
+			// the flusher must not die on an overload, it retries on the next run
+			if ((provider != null) && (!admitted || writeAdmission.enter(admissionTimeout))) {
+				try {
+					for (int i = 0; i < snapshot.size(); i += writeBehindBatchSize) {
+						final List<Map.Entry<Object, Object>> written = writeBatch(snapshot
+								.subList(i, Math.min(snapshot.size(), i + writeBehindBatchSize)));
+						ret += written.size();
+						synchronized (pending) {
+							for (final Map.Entry<Object, Object> entry : written) {
+								if (pending.get(entry.getKey()) == entry.getValue()) {
+									pending.remove(entry.getKey());
+								}
+							}
+							pending.notifyAll();
+						}
+					}
+				} finally {
+					if (admitted) {
+						writeAdmission.leave();
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the entities in one transaction and falls back to one
+	 * transaction per entity when that fails, so a single failing entity
+	 * does not hold back the whole batch.
+	 * 
+	 * @param batch
+	 *            the queued entities by key
+	 * @return the written entities, the others stay queued
+	 */
+	protected List<Map.Entry<Object, Object>> writeBatch(
+			final List<Map.Entry<Object, Object>> batch) {
+		if (write(batch)) {
+			return batch;
+		}
+		final List<Map.Entry<Object, Object>> ret = new ArrayList<>(batch.size());
+		for (final Map.Entry<Object, Object> entry : batch) {
+			// the stored entity is read again, so a second try wins a race
+			// with a concurrent transaction
+			final List<Map.Entry<Object, Object>> single = Collections.singletonList(entry);
+			if (write(single) || write(single)) {
+				ret.add(entry);
+			} else {
+				Log.warning("Keeping queued entity %s for the next flush", entry.getKey());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the values of a queued credit or vote to the stored one, or
+	 * persists it when there is none.
+	 * 
+	 * @param em
+	 *            EntityManager with an active transaction
+	 * @param entity
+	 *            the queued credit or vote
+	 */
+	protected static void write(final EntityManager em, final Object entity) {
+		if (entity instanceof Credit) {
+			final Credit credit = (Credit) entity;
+			final Credit stored = em.find(Credit.class, credit.getCandidateId());
+			if (stored == null) {
+				em.persist(copyOf(credit));
+			} else {
+				stored.setCredit(credit.getCredit());
+			}
+		} else {
+			final Vote vote = (Vote) entity;
+			final Vote stored = em.find(Vote.class,
+					new VotePK(vote.getVoterId(), vote.getVoteFor()));
+			if (stored == null) {
+				em.persist(copyOf(vote));
+			} else {
+				stored.setLikes(vote.getLikes());
+			}
+		}
+	}
+
+	/**
+	 * Writes the entities in one transaction
+	 * 
+	 * @param entities
+	 *            the entities by key
+	 * @return true when the transaction was committed
+	 */
+	protected boolean write(final List<Map.Entry<Object, Object>> entities) {
+		boolean ret = false;
+		try {
+			final EntityManager em = entityMgrFactory.createEntityManager();
+			try {
+				em.getTransaction().begin();
+				for (final Map.Entry<Object, Object> entry : entities) {
+					write(em, entry.getValue());
+				}
+				em.getTransaction().commit();
+				for (final Map.Entry<Object, Object> entry : entities) {
+					invalidate(entry.getKey());
+				}
+				ret = true;
+			} finally {
+				if (em.getTransaction().isActive()) {
+					em.getTransaction().rollback();
+				}
+				em.close();
+			}
+		} catch (final Throwable thr) {
+			if (isConflict(thr)) {
+				Log.debug("Conflict writing %d queued entities", entities.size());
+			} else {
+				Log.error("Error writing %d queued entities", thr, entities.size());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the primary key of a candidate or credit
+	 * 
+	 * @param entity
+	 *            the candidate or credit
+	 * @return its id
+	 */
+	protected static int idOf(final Object entity) {
+		if (entity instanceof Candidate) {
+			return ((Candidate) entity).getId();
+		}
+		return ((Credit) entity).getCandidateId();
+	}
+
+	/**
+	 * Stores candidates or credits in one transaction. The ids already in the
+	 * database are read with a few queries, so the new entities are persisted
+	 * without a select each and go out in JDBC batches. The persistence
+	 * context is cleared after every batch to keep it small.
+	 * 
+	 * @param entities
+	 *            the candidates or credits
+	 * @param selectStored
+	 *            query selecting the stored ids out of the parameter ids
+	 */
+	protected void storeBatch(final Collection<?> entities, final String selectStored) {
+		final int batchSize = Math.max(1,
+				(Integer) connectionSettings.get(JDBC_BATCH_SIZE_NAME));
+		final List<Integer> ids = new ArrayList<>(entities.size());
+		for (final Object entity : entities) {
+			ids.add(idOf(entity));
+		}
+		final EntityManager em = entityMgrFactory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			final Set<Integer> stored = new HashSet<>();
+			for (int i = 0; i < ids.size(); i += ID_LIST_SIZE) {
+				final Query query = em.createQuery(selectStored);
+				query.setParameter("ids", ids.subList(i, Math.min(ids.size(), i + ID_LIST_SIZE)));
+				stored.addAll(query.getResultList());
+			}
+			int count = 0;
+			for (final Object entity : entities) {
+				// a repeated id is merged into the one persisted before
+				if (stored.add(idOf(entity))) {
+					em.persist(entity);
+				} else {
+					em.merge(entity);
+				}
+				if (++count % batchSize == 0) {
+					em.flush();
+					em.clear();
+				}
+			}
+			em.getTransaction().commit();
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
+		}
+	}
+
+	/**
+	 * Bind method for the PersistenceProvider. This method creates the
+	 * EntityManagerFactory.
+	 * 
+	 * @param provider
+	 *            A PersistenceProvider available in the System
+	 */
+	protected void bind(final PersistenceProvider provider) {
+		this.provider = provider;
+		startPersistence();
+	}
+
+	/**
+	 * Unbind method for the PersistenceProvider. This method closes the
+	 * EntityManagerFactory, since it is no longer needed.
+	 * 
+	 * @param provider
+	 *            The provider that is removed from the system.
+	 */
+	protected void unbind(final PersistenceProvider provider) {
+		if (provider.equals(this.provider)) {
+			stopPersistence();
+			this.provider = null;
+		}
+	}
+
+	/**
+	 * Creates the connection pool and the EntityManagerFactory of the bound
+	 * provider with the current connection settings and opens the bulkheads.
+	 * The settings override the ones of the persistence unit.
+	 */
+	protected void startPersistence() {
+		try {
+			final String file = (String) connectionSettings.get(DATABASE_FILE_NAME);
+			// H2 doesn't accept implicitly relative file names
+			String url = file.isEmpty() ? (String) connectionSettings.get(JDBC_URL_NAME)
+					: "jdbc:h2:file:" + new File(file).getAbsolutePath() + ";MV_STORE=TRUE";
+			// H2 caches the parsed statements per connection
+			if (!url.toUpperCase().contains("QUERY_CACHE_SIZE=")) {
+				url += ";QUERY_CACHE_SIZE=" + connectionSettings.get(STATEMENT_CACHE_SIZE_NAME);
+			}
+			connectionPool = JdbcConnectionPool.create(url,
+					(String) connectionSettings.get(JDBC_USER_NAME),
+					(String) connectionSettings.get(JDBC_PASSWORD_NAME));
+			connectionPool.setMaxConnections((Integer) connectionSettings
+					.get(CONNECTION_POOL_SIZE_NAME));
+			final Map<String, Object> properties = new HashMap<>();
+			properties.put("hibernate.connection.datasource", connectionPool);
+			properties.put("hibernate.jdbc.batch_size",
+					String.valueOf(connectionSettings.get(JDBC_BATCH_SIZE_NAME)));
+			properties.put("hibernate.show_sql",
+					String.valueOf(connectionSettings.get(SHOW_SQL_NAME)));
+			properties.put("hibernate.hbm2ddl.auto", schemaAction(url));
+			entityMgrFactory = provider.createEntityManagerFactory("PbPersistence", properties);
+			SchemaIndexes.create(entityMgrFactory);
+			openAvatarStore();
+			idCache.clear();
+			readAdmission.open();
+			writeAdmission.open();
+			deleteAdmission.open();
+			// lists read while no database was bound were empty
+			candidateListVersion.incrementAndGet();
+		} catch (final Throwable thr) {
+			Log.error("Error while binding Provider", thr);
+			if (connectionPool != null) {
+				connectionPool.dispose();
+				connectionPool = null;
+			}
+			this.provider = null;
+		}
+	}
+
+	/**
+	 * Writes the queued entities, waits for the admitted calls and closes the
+	 * EntityManagerFactory and the connection pool.
+	 */
+	protected void stopPersistence() {
+		drain();
+		try {
+			readAdmission.close();
+			writeAdmission.close();
+			deleteAdmission.close();
+		} catch (final InterruptedException e) {
+			Log.error("Error while unbinding Provider", e);
+		}
+		entityMgrFactory.close();
+		connectionPool.dispose();
+		if (avatarStore != null) {
+			avatarStore.close();
+			avatarStore = null;
+		}
+		connectionPool = null;
+		idCache.clear();
+		summaryCache.invalidateAll();
+		candidateListVersion.incrementAndGet();
+		creditCache.invalidateAll();
+		voteCache.invalidateAll();
+	}
+
+	/**
+	 * Decides how Hibernate treats the schema. An in-memory database starts
+	 * empty and is dropped with the factory, a persistent one is created once
+	 * and validated against the entities on every later start.
+	 * 
+	 * @param url
+	 *            the JDBC url of the connection pool
+	 * @return the value of hibernate.hbm2ddl.auto
+	 * @throws SQLException
+	 *             when the database can't be inspected
+	 */
+	protected String schemaAction(final String url) throws SQLException {
+		if (url.startsWith("jdbc:h2:mem:")) {
+			return "create-drop";
+		}
+		try (Connection connection = connectionPool.getConnection();
+				ResultSet tables = connection.getMetaData().getTables(null, null,
+						Candidate.TABLE_NAME, null)) {
+			if (tables.next()) {
+				Log.info("Validating the existing schema of %s", url);
+				return "validate";
+			}
+		}
+		Log.info("Creating the schema of %s", url);
+		return "create";
+	}
+
+	/**
+	 * Opens the avatar store in the configured directory, closing the one
+	 * opened before. Without a store candidates with a new image can't be
+	 * stored.
+	 */
+	protected void openAvatarStore() {
+		if (avatarStore != null) {
+			avatarStore.close();
+			avatarStore = null;
+		}
+		final String file = (String) connectionSettings.get(DATABASE_FILE_NAME);
+		final File directory;
+		if (!avatarDirectory.isEmpty()) {
+			directory = new File(avatarDirectory);
+		} else if (!file.isEmpty()) {
+			directory = new File(file + "-avatars");
+		} else {
+			directory = null;
+		}
+		try {
+			// an in-memory database is gone with the process, so are its avatars
+			avatarStore = directory == null ? AvatarStore.createTemporary(avatarSegmentSize)
+					: new AvatarStore(directory, avatarSegmentSize);
+		} catch (final IOException e) {
+			Log.error("Error opening the avatar store in %s", e, directory);
+		}
+	}
+
+	/**
+	 * Drops a written credit or vote from its cache
+	 * 
+	 * @param key
+	 *            primary key of the entity, VotePK or Integer
+	 */
+	protected void invalidate(final Object key) {
+		if (key instanceof VotePK) {
+			voteCache.invalidate((VotePK) key);
+		} else {
+			creditCache.invalidate((Integer) key);
+		}
+	}
+
+	/**
+	 * Waits up to AdmissionTimeout ms for a database slot of the bulkhead. The
+	 * number of slots adapts to the latency of the calls in the bulkhead.
+	 * Every admitted call must leave the admission afterwards.
+	 * 
+	 * @param admission
+	 *            the bulkhead of the call
+	 * @return true when the call was admitted, false when no provider is bound
+	 * @throws StorageOverloadException
+	 *             when no slot freed up in time
+	 */
+	protected boolean admit(final Admission admission) {
+		if (provider == null) {
+			return false;
+		}
+		if (!admission.enter(admissionTimeout)) {
+			Log.debug("Storage call rejected, %s", admission);
+			throw new StorageOverloadException("No database slot free within "
+					+ admissionTimeout + " ms");
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * pb.persistence.PbStorage#getAdmissionStatistics(pb.persistence.PbStorage
+	 * .Bulkhead)
+	 */
+	@Override
+	public AdmissionStatistics getAdmissionStatistics(final Bulkhead bulkhead) {
+		switch (bulkhead) {
+		case WRITE:
+			return writeAdmission;
+		case BULK_DELETE:
+			return deleteAdmission;
+		default:
+			return readAdmission;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getAvatar(java.lang.String)
+	 */
+	@Override
+	public ByteBuffer getAvatar(final String imageHash) {
+		final AvatarStore store = avatarStore;
+		return store == null || imageHash == null ? null : store.get(imageHash);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * pb.persistence.PbStorage#getCacheStatistics(pb.persistence.PbStorage
+	 * .Cache)
+	 */
+	@Override
+	public CacheStatistics getCacheStatistics(final Cache cache) {
+		switch (cache) {
+		case CREDIT:
+			return creditCache;
+		case VOTE:
+			return voteCache;
+		default:
+			return summaryCache;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidate(int)
+	 */
+	@Override
+	public Candidate getCandidate(final int id) {
+		Candidate ret = null;
+		if (admit(readAdmission)) {
+			try {
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					ret = em.find(Candidate.class, id);
+					if (ret != null) {
+						Log.debug("Candidate Requested ID = %d, Name = %s", ret.getId(),
+								ret.getName());
+					}
+				} finally {
+					em.close();
+				}
+			} finally {
+				readAdmission.leave();
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#storeCandidate(pb.persistence
+	 * .entity.Candidate)
+	 */
+	@Override
+	public boolean storeCandidate(final Candidate candidate) {
+		boolean ret = false;
+		if (admit(writeAdmission)) {
+			try {
+				final byte image[] = candidate.getNewImage();
+				if (image != null) {
+					final AvatarStore store = avatarStore;
+					if (store == null) {
+						throw new IOException("No avatar store available");
+					}
+					candidate.setImageHash(store.put(image));
+				}
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					em.getTransaction().begin();
+					em.merge(candidate);
+					em.getTransaction().commit();
+				} finally {
+					if (em.getTransaction().isActive()) {
+						em.getTransaction().rollback();
+					}
+					em.close();
+				}
+				ret = true;
+			} catch (final Throwable thr) {
+				Log.error("Error storing Candidate", thr);
+			} finally {
+				writeAdmission.leave();
+			}
+			summaryCache.invalidate(candidate.getId());
+			candidateListVersion.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#storeCandidates(java.util.Collection)
+	 */
+	@Override
+	public boolean storeCandidates(final Collection<Candidate> candidates) {
+		boolean ret = false;
+		if (admit(writeAdmission)) {
+			try {
+				// seeded candidates share a few avatar arrays, hash each once
+				final Map<byte[], String> hashes = new IdentityHashMap<>();
+				for (final Candidate candidate : candidates) {
+					final byte image[] = candidate.getNewImage();
+					if (image != null) {
+						String hash = hashes.get(image);
+						if (hash == null) {
+							final AvatarStore store = avatarStore;
+							if (store == null) {
+								throw new IOException("No avatar store available");
+							}
+							hash = store.put(image);
+							hashes.put(image, hash);
+						}
+						candidate.setImageHash(hash);
+					}
+				}
+				storeBatch(candidates, "select x.id from Candidate x where x.id in :ids");
+				ret = true;
+			} catch (final Throwable thr) {
+				Log.error("Error storing %d Candidates", thr, candidates.size());
+			} finally {
+				writeAdmission.leave();
+			}
+			for (final Candidate candidate : candidates) {
+				summaryCache.invalidate(candidate.getId());
+			}
+			candidateListVersion.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateByGender(pb.
+	 * persistence.entity.Candidate.Gender)
+	 */
+	@Override
+	public List<Candidate> getCandidateByGender(final Gender gender) {
+		List<Candidate> ret = new ArrayList<Candidate>();
+		if (admit(readAdmission)) {
+			try {
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					final Query query = em
+							.createQuery("from Candidate x where x.gender = :gender and length(x.name) > 0 and x.available = :available order by x.id");
+					query.setParameter("gender", gender);
+					query.setParameter("available", true);
+					ret = query.getResultList();
+				} finally {
+					em.close();
+				}
+			} catch (final Throwable thr) {
+				Log.error("Error Reading Candidates by Gender", thr);
+			} finally {
+				readAdmission.leave();
+			}
+		}
+		return ret;
+	}
 
-	/**
-	 * Bind method for the PersistenceProvider. This method creates the
-	 * EntityManagerFactory.
+	/*
+	 * (non-Javadoc)
 	 * 
-	 * @param provider
-	 *            A PersistenceProvider available in the System
+	 * @see pb.persistence.PbStorage#getCandidateCount()
 	 */
-	protected void bind(final PersistenceProvider provider) {
-		try {
-			this.provider = provider;
-			entityMgrFactory = provider.createEntityManagerFactory("PbPersistence", null);
-			providerSem.release(MAX_ACCESS_COUNT);
-		} catch (final Throwable thr) {
-			Log.error("Error while binding Provider", thr);
-			this.provider = null;
+	@Override
+	public int getCandidateCount() {
+		int ret = 0;
+		if (admit(readAdmission)) {
+			try {
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					ret = ((Number) em.createQuery("select count(x) from Candidate x")
+							.getSingleResult()).intValue();
+				} finally {
+					em.close();
+				}
+			} catch (final Throwable thr) {
+				Log.error("Error Counting Candidates", thr);
+			} finally {
+				readAdmission.leave();
+			}
 		}
+		return ret;
 	}
 
-	/**
-	 * Unbind method for the PersistenceProvider. This method closes the
-	 * EntityManagerFactory, since it is no longer needed.
+	/*
+	 * (non-Javadoc)
 	 * 
-	 * @param provider
-	 *            The provider that is removed from the system.
+	 * @see pb.persistence.PbStorage#getCandidateIds(int, int)
 	 */
-	protected void unbind(final PersistenceProvider provider) {
-		if (provider.equals(this.provider)) {
+	@Override
+	public List<Integer> getCandidateIds(final int fromId, final int toId) {
+		List<Integer> ret = null;
+		if (admit(readAdmission)) {
 			try {
-				providerSem.acquire(MAX_ACCESS_COUNT);
-			} catch (final InterruptedException e) {
-				Log.error("Error while unbinding Provider", e);
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					ret = em.createQuery(
+							"select x.id from Candidate x where x.id >= :fromId and x.id < :toId"
+									+ " order by x.id", Integer.class)
+							.setParameter("fromId", fromId).setParameter("toId", toId)
+							.getResultList();
+				} finally {
+					em.close();
+				}
+			} catch (final Throwable thr) {
+				Log.error("Error reading Candidate ids from %d to %d", thr, fromId, toId);
+			} finally {
+				readAdmission.leave();
 			}
-			entityMgrFactory.close();
-			this.provider = null;
 		}
+		return ret;
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see pb.persistence.PbStorage#getCandidate(int)
+	 * @see pb.persistence.PbStorage#getCandidateListVersion()
 	 */
 	@Override
-	public Candidate getCandidate(final int id) {
-		Candidate ret = null;
-		if (providerSem.tryAcquire()) {
+	public long getCandidateListVersion() {
+		return candidateListVersion.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateSummary(int)
+	 */
+	@Override
+	public CandidateSummary getCandidateSummary(final int id) {
+		CandidateSummary ret = summaryCache.get(id);
+		if (ret == null && admit(readAdmission)) {
+			final long stamp = summaryCache.stamp();
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				ret = em.find(Candidate.class, id);
-				if (ret != null) {
-					Log.debug("Candidate Requested ID = %d, Name = %s", ret.getId(), ret.getName());
+				try {
+					final Query query = em.createQuery(SELECT_SUMMARY + " where x.id = :id");
+					query.setParameter("id", id);
+					final List<CandidateSummary> summaries = query.getResultList();
+					if (!summaries.isEmpty()) {
+						ret = summaries.get(0);
+					}
+				} finally {
+					em.close();
 				}
-				em.close();
+			} catch (final Throwable thr) {
+				Log.error("Error Reading Candidate Summary", thr);
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
 			}
+			summaryCache.put(id, ret, stamp);
 		}
 		return ret;
 	}
@@ -124,24 +1312,43 @@ public class PbStorageImpl implements PbStorage {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see pb.persistence.PbStorage#storeCandidate(pb.persistence
-	 * .entity.Candidate)
+	 * @see pb.persistence.PbStorage#getCandidateSummariesByGender(pb.
+	 * persistence.entity.Candidate.Gender)
 	 */
 	@Override
-	public boolean storeCandidate(final Candidate candidate) {
-		boolean ret = true;
-		if (providerSem.tryAcquire()) {
+	public List<CandidateSummary> getCandidateSummariesByGender(final Gender gender) {
+		return getCandidateSummariesByGender(gender, -1, 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getCandidateSummariesByGender(pb.
+	 * persistence.entity.Candidate.Gender, int, int)
+	 */
+	@Override
+	public List<CandidateSummary> getCandidateSummariesByGender(final Gender gender,
+			final int afterId, final int limit) {
+		List<CandidateSummary> ret = new ArrayList<CandidateSummary>();
+		if (admit(readAdmission)) {
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				em.getTransaction().begin();
-				em.merge(candidate);
-				em.getTransaction().commit();
-				em.close();
+				try {
+					final Query query = em.createQuery(SELECT_SUMMARY_PAGE);
+					query.setParameter("gender", gender);
+					query.setParameter("available", true);
+					query.setParameter("afterId", afterId);
+					if (limit > 0) {
+						query.setMaxResults(limit);
+					}
+					ret = query.getResultList();
+				} finally {
+					em.close();
+				}
 			} catch (final Throwable thr) {
-				Log.error("Error storing Candidate", thr);
-				ret = false;
+				Log.error("Error Reading Candidate Summaries by Gender", thr);
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
 			}
 		}
 		return ret;
@@ -150,24 +1357,44 @@ public class PbStorageImpl implements PbStorage {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see pb.persistence.PbStorage#getCandidateByGender(pb.
-	 * persistence.entity.Candidate.Gender)
+	 * @see pb.persistence.PbStorage#streamCandidateSummariesByGender(pb.
+	 * persistence.entity.Candidate.Gender, int, int,
+	 * pb.persistence.PbStorage.SummaryHandler)
 	 */
 	@Override
-	public List<Candidate> getCandidateByGender(final Gender gender) {
-		List<Candidate> ret = new ArrayList<Candidate>();
-		if (providerSem.tryAcquire()) {
+	public int streamCandidateSummariesByGender(final Gender gender, final int afterId,
+			final int limit, final SummaryHandler handler) {
+		int ret = 0;
+		if (admit(readAdmission)) {
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				final Query query = em
-						.createQuery("from Candidate x where x.gender = :gender and length(x.name) > 0 and x.available = true order by x.id");
-				query.setParameter("gender", gender);
-				ret = query.getResultList();
-				em.close();
+				try {
+					final org.hibernate.Query query = em.unwrap(Session.class)
+							.createQuery(SELECT_SUMMARY_PAGE);
+					query.setParameter("gender", gender);
+					query.setParameter("available", true);
+					query.setParameter("afterId", afterId);
+					query.setReadOnly(true);
+					query.setFetchSize(STREAM_FETCH_SIZE);
+					if (limit > 0) {
+						query.setMaxResults(limit);
+					}
+					final ScrollableResults rows = query.scroll(ScrollMode.FORWARD_ONLY);
+					try {
+						while (rows.next()) {
+							handler.handle((CandidateSummary) rows.get(0));
+							++ret;
+						}
+					} finally {
+						rows.close();
+					}
+				} finally {
+					em.close();
+				}
 			} catch (final Throwable thr) {
-				Log.error("Error Reading Candidates by Gender", thr);
+				Log.error("Error Streaming Candidate Summaries by Gender", thr);
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
 			}
 		}
 		return ret;
@@ -180,19 +1407,27 @@ public class PbStorageImpl implements PbStorage {
 	 */
 	@Override
 	public Credit getCredit(final int id) {
-		Credit ret = null;
-		if (providerSem.tryAcquire()) {
+		Credit ret = (Credit) getPending(id);
+		if (ret == null) {
+			ret = creditCache.get(id);
+		}
+		if (ret == null && admit(readAdmission)) {
+			final long stamp = creditCache.stamp();
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				ret = em.find(Credit.class, id);
-				if (ret != null) {
-					Log.debug("Credit Requested ID = %d, Credit = %d", ret.getCandidateId(),
-							ret.getCredit());
+				try {
+					ret = em.find(Credit.class, id);
+					if (ret != null) {
+						Log.debug("Credit Requested ID = %d, Credit = %d", ret.getCandidateId(),
+								ret.getCredit());
+					}
+				} finally {
+					em.close();
 				}
-				em.close();
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
 			}
+			creditCache.put(id, ret, stamp);
 		}
 		return ret;
 	}
@@ -204,19 +1439,56 @@ public class PbStorageImpl implements PbStorage {
 	 */
 	@Override
 	public boolean storeCredit(final Credit credit) {
-		boolean ret = true;
-		if (providerSem.tryAcquire()) {
+		boolean ret = false;
+		if (writeBehind && enqueue(credit.getCandidateId(), copyOf(credit))) {
+			Log.debug("Credit queued ID = %d", credit.getCandidateId());
+			ret = true;
+		} else if (admit(writeAdmission)) {
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				em.getTransaction().begin();
-				em.merge(credit);
-				em.getTransaction().commit();
-				em.close();
+				try {
+					em.getTransaction().begin();
+					em.merge(credit);
+					em.getTransaction().commit();
+				} finally {
+					if (em.getTransaction().isActive()) {
+						em.getTransaction().rollback();
+					}
+					em.close();
+				}
+				ret = true;
 			} catch (final Throwable thr) {
 				Log.error("Error storing Credit", thr);
-				ret = false;
 			} finally {
-				providerSem.release();
+				writeAdmission.leave();
+			}
+		}
+		creditCache.invalidate(credit.getCandidateId());
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#storeCredits(java.util.Collection)
+	 */
+	@Override
+	public boolean storeCredits(final Collection<Credit> credits) {
+		boolean ret = false;
+		// queued credits must not overwrite the batch later
+		flush();
+		if (admit(writeAdmission)) {
+			try {
+				storeBatch(credits,
+						"select x.candidateId from Credit x where x.candidateId in :ids");
+				ret = true;
+			} catch (final Throwable thr) {
+				Log.error("Error storing %d Credits", thr, credits.size());
+			} finally {
+				writeAdmission.leave();
+			}
+			for (final Credit credit : credits) {
+				creditCache.invalidate(credit.getCandidateId());
 			}
 		}
 		return ret;
@@ -230,18 +1502,21 @@ public class PbStorageImpl implements PbStorage {
 	@Override
 	public List<Vote> getVotesByCandidateId(final int id) {
 		List<Vote> ret = new ArrayList<Vote>();
-		if (providerSem.tryAcquire()) {
+		if (admit(readAdmission)) {
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				final Query query = em
-						.createQuery("from Vote x where x.voterId = :id order by likes desc");
-				query.setParameter("id", id);
-				ret = query.getResultList();
-				em.close();
+				try {
+					final Query query = em
+							.createQuery("from Vote x where x.voterId = :id order by likes desc");
+					query.setParameter("id", id);
+					ret = query.getResultList();
+				} finally {
+					em.close();
+				}
 			} catch (final Throwable thr) {
 				Log.error("Error Reading Votes by Voter Id", thr);
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
 			}
 		}
 		return ret;
@@ -255,18 +1530,58 @@ public class PbStorageImpl implements PbStorage {
 	@Override
 	public List<Vote> getVotesForCandidateId(final int id) {
 		List<Vote> ret = new ArrayList<Vote>();
-		if (providerSem.tryAcquire()) {
+		if (admit(readAdmission)) {
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				final Query query = em
-						.createQuery("from Vote x where x.voteFor = :id order by likes desc");
-				query.setParameter("id", id);
-				ret = query.getResultList();
-				em.close();
+				try {
+					final Query query = em
+							.createQuery("from Vote x where x.voteFor = :id order by likes desc");
+					query.setParameter("id", id);
+					ret = query.getResultList();
+				} finally {
+					em.close();
+				}
 			} catch (final Throwable thr) {
 				Log.error("Error Reading Votes for Candidate Id", thr);
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#getVotingPairs(int)
+	 */
+	@Override
+	public List<VotingPair> getVotingPairs(final int voterId) {
+		final List<VotingPair> ret = new ArrayList<VotingPair>();
+		if (admit(readAdmission)) {
+			try {
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					final Query query = em.createNativeQuery("select x." + Vote.COLUMN_VOTE_FOR_ID
+							+ ", x." + Vote.COLUMN_LIKES + ", coalesce(y." + Vote.COLUMN_LIKES
+							+ ", 0) from " + Vote.TABLE_NAME + " x left join " + Vote.TABLE_NAME
+							+ " y on y." + Vote.COLUMN_VOTER_ID + " = x." + Vote.COLUMN_VOTE_FOR_ID
+							+ " and y." + Vote.COLUMN_VOTE_FOR_ID + " = x." + Vote.COLUMN_VOTER_ID
+							+ " where x." + Vote.COLUMN_VOTER_ID + " = ? order by x."
+							+ Vote.COLUMN_LIKES + " desc");
+					query.setParameter(1, voterId);
+					final List<Object[]> rows = query.getResultList();
+					for (final Object[] row : rows) {
+						ret.add(new VotingPair(voterId, ((Number) row[0]).intValue(),
+								((Number) row[1]).intValue(), ((Number) row[2]).intValue()));
+					}
+				} finally {
+					em.close();
+				}
+			} catch (final Throwable thr) {
+				Log.error("Error Reading Voting Pairs by Voter Id", thr);
+			} finally {
+				readAdmission.leave();
 			}
 		}
 		return ret;
@@ -279,21 +1594,33 @@ public class PbStorageImpl implements PbStorage {
 	 */
 	@Override
 	public boolean storeVote(final Vote vote) {
-		boolean ret = true;
-		if (providerSem.tryAcquire()) {
+		boolean ret = false;
+		final VotePK key = new VotePK(vote.getVoterId(), vote.getVoteFor());
+		if (writeBehind && enqueue(key, copyOf(vote))) {
+			Log.debug("Vote queued CandID = %d, VoteFor = %d", vote.getVoterId(),
+					vote.getVoteFor());
+			ret = true;
+		} else if (admit(writeAdmission)) {
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				em.getTransaction().begin();
-				em.merge(vote);
-				em.getTransaction().commit();
-				em.close();
+				try {
+					em.getTransaction().begin();
+					em.merge(vote);
+					em.getTransaction().commit();
+				} finally {
+					if (em.getTransaction().isActive()) {
+						em.getTransaction().rollback();
+					}
+					em.close();
+				}
+				ret = true;
 			} catch (final Throwable thr) {
 				Log.error("Error storing Vote", thr);
-				ret = false;
 			} finally {
-				providerSem.release();
+				writeAdmission.leave();
 			}
 		}
+		voteCache.invalidate(key);
 		return ret;
 	}
 
@@ -304,19 +1631,27 @@ public class PbStorageImpl implements PbStorage {
 	 */
 	@Override
 	public Vote getVote(final VotePK pk) {
-		Vote ret = null;
-		if (providerSem.tryAcquire()) {
+		Vote ret = (Vote) getPending(pk);
+		if (ret == null) {
+			ret = voteCache.get(pk);
+		}
+		if (ret == null && admit(readAdmission)) {
+			final long stamp = voteCache.stamp();
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				ret = em.find(Vote.class, pk);
-				if (ret != null) {
-					Log.debug("Vote Requested CandID = %d, VoteFor = %d, Likes = %d",
-							ret.getVoterId(), ret.getVoteFor(), ret.getLikes());
+				try {
+					ret = em.find(Vote.class, pk);
+					if (ret != null) {
+						Log.debug("Vote Requested CandID = %d, VoteFor = %d, Likes = %d",
+								ret.getVoterId(), ret.getVoteFor(), ret.getLikes());
+					}
+				} finally {
+					em.close();
 				}
-				em.close();
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
 			}
+			voteCache.put(pk, ret, stamp);
 		}
 		return ret;
 	}
@@ -327,62 +1662,242 @@ public class PbStorageImpl implements PbStorage {
 	 * @see pb.persistence.PbStorage#removeAllVotes(int)
 	 */
 	@Override
-	public boolean removeAllVotes(final int id) {
-		boolean ret = true;
-		if (providerSem.tryAcquire()) {
+	public int removeAllVotes(final int id) {
+		int ret = -1;
+		if (writeBehind) {
+			flush();
+			// a queued vote written after the delete would bring it back
+			if (isVotePending(id)) {
+				throw new StorageOverloadException("Queued votes of " + id
+						+ " could not be written before removing them");
+			}
+		}
+		if (admit(deleteAdmission)) {
 			try {
 				final EntityManager em = entityMgrFactory.createEntityManager();
-				em.getTransaction().begin();
-				final Query query = em.createQuery("from Vote x where x.voterId = :id");
-				query.setParameter("id", id);
-				final List<Vote> removes = query.getResultList();
-				final Query query2 = em.createQuery("from Vote x where x.voteFor = :id");
-				query2.setParameter("id", id);
-				removes.addAll(query2.getResultList());
-				for (final Vote vote : removes) {
-					em.remove(vote);
+				try {
+					em.getTransaction().begin();
+					final Query query = em.createQuery("delete from Vote x where x.voterId = :id");
+					query.setParameter("id", id);
+					int removed = query.executeUpdate();
+					final Query query2 = em.createQuery("delete from Vote x where x.voteFor = :id");
+					query2.setParameter("id", id);
+					removed += query2.executeUpdate();
+					em.getTransaction().commit();
+					ret = removed;
+				} finally {
+					if (em.getTransaction().isActive()) {
+						em.getTransaction().rollback();
+					}
+					em.close();
 				}
-				em.getTransaction().commit();
-				em.close();
 			} catch (final Throwable thr) {
 				Log.error("Error removing All Votes for candidate", thr);
-				ret = false;
+				ret = -1;
+			} finally {
+				deleteAdmission.leave();
+			}
+			voteCache.invalidateAll();
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#storeModelState(java.util.Collection,
+	 * java.util.Collection, java.util.Collection)
+	 */
+	@Override
+	public boolean storeModelState(final Collection<Integer> paired, final Collection<Vote> votes,
+			final Collection<Credit> credits) {
+		boolean ret = false;
+		// queued credits and votes must not overwrite the model state later
+		flush();
+		if (writeBehind && isPending()) {
+			throw new StorageOverloadException("Queued writes could not be written before the"
+					+ " model state");
+		}
+		if (admit(writeAdmission)) {
+			try {
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					em.getTransaction().begin();
+					final List<Integer> ids = new ArrayList<>(paired);
+					for (int i = 0; i < ids.size(); i += ID_LIST_SIZE) {
+						final List<Integer> chunk = ids.subList(i,
+								Math.min(ids.size(), i + ID_LIST_SIZE));
+						em.createQuery("delete from Vote x where x.voterId in :ids")
+								.setParameter("ids", chunk).executeUpdate();
+						em.createQuery("delete from Vote x where x.voteFor in :ids")
+								.setParameter("ids", chunk).executeUpdate();
+						em.createQuery(
+								"update Candidate x set x.available = false,"
+										+ " x.version = x.version + 1 where x.id in :ids")
+								.setParameter("ids", chunk).executeUpdate();
+					}
+					overwriteVotes(em, votes);
+					overwriteCredits(em, credits);
+					em.getTransaction().commit();
+				} finally {
+					if (em.getTransaction().isActive()) {
+						em.getTransaction().rollback();
+					}
+					em.close();
+				}
+				ret = true;
+			} catch (final Throwable thr) {
+				Log.error("Error storing the model state of %d pairs, %d votes and %d credits",
+						thr, paired.size(), votes.size(), credits.size());
 			} finally {
-				providerSem.release();
+				writeAdmission.leave();
+			}
+			for (final Credit credit : credits) {
+				creditCache.invalidate(credit.getCandidateId());
+			}
+			if (paired.isEmpty()) {
+				for (final Vote vote : votes) {
+					voteCache.invalidate(new VotePK(vote.getVoterId(), vote.getVoteFor()));
+				}
+			} else {
+				voteCache.invalidateAll();
+				for (final Integer id : paired) {
+					summaryCache.invalidate(id);
+				}
+				candidateListVersion.incrementAndGet();
 			}
 		}
 		return ret;
 	}
 
 	/**
-	 * This creates a new ClientId in a threadSafe method.
+	 * Writes the likes of the votes onto the stored ones, which are read with
+	 * a few in-list queries, and persists the missing ones. The changes go
+	 * out in JDBC batches on commit.
+	 * 
+	 * @param em
+	 *            EntityManager with an active transaction
+	 * @param votes
+	 *            the votes to store
+	 */
+	protected static void overwriteVotes(final EntityManager em, final Collection<Vote> votes) {
+		final Map<VotePK, Vote> byKey = new LinkedHashMap<>();
+		for (final Vote vote : votes) {
+			byKey.put(new VotePK(vote.getVoterId(), vote.getVoteFor()), vote);
+		}
+		final List<Vote> list = new ArrayList<>(byKey.values());
+		for (int i = 0; i < list.size(); i += ID_LIST_SIZE) {
+			final Set<Integer> voters = new HashSet<>();
+			final Set<Integer> votedFor = new HashSet<>();
+			for (final Vote vote : list.subList(i, Math.min(list.size(), i + ID_LIST_SIZE))) {
+				voters.add(vote.getVoterId());
+				votedFor.add(vote.getVoteFor());
+			}
+			final Query query = em
+					.createQuery("from Vote x where x.voterId in :voters and x.voteFor in :votedFor");
+			query.setParameter("voters", voters);
+			query.setParameter("votedFor", votedFor);
+			for (final Vote stored : (List<Vote>) query.getResultList()) {
+				final Vote vote = byKey.remove(new VotePK(stored.getVoterId(), stored.getVoteFor()));
+				if (vote != null) {
+					stored.setLikes(vote.getLikes());
+				}
+			}
+		}
+		for (final Vote vote : byKey.values()) {
+			em.persist(copyOf(vote));
+		}
+	}
+
+	/**
+	 * Writes the amounts of the credits onto the stored ones, which are read
+	 * with a few in-list queries, and persists the missing ones. The changes
+	 * go out in JDBC batches on commit.
+	 * 
+	 * @param em
+	 *            EntityManager with an active transaction
+	 * @param credits
+	 *            the credits to store
+	 */
+	protected static void overwriteCredits(final EntityManager em,
+			final Collection<Credit> credits) {
+		final Map<Integer, Credit> byId = new LinkedHashMap<>();
+		for (final Credit credit : credits) {
+			byId.put(credit.getCandidateId(), credit);
+		}
+		final List<Integer> ids = new ArrayList<>(byId.keySet());
+		for (int i = 0; i < ids.size(); i += ID_LIST_SIZE) {
+			final Query query = em.createQuery("from Credit x where x.candidateId in :ids");
+			query.setParameter("ids", ids.subList(i, Math.min(ids.size(), i + ID_LIST_SIZE)));
+			for (final Credit stored : (List<Credit>) query.getResultList()) {
+				stored.setCredit(byId.remove(stored.getCandidateId()).getCredit());
+			}
+		}
+		for (final Credit credit : byId.values()) {
+			em.persist(copyOf(credit));
+		}
+	}
+
+	/**
+	 * Reads the ClientId of an ip from the database.
 	 * 
 	 * @param ip
-	 *            the ip of the requester that is still unknown
-	 * @return the fresh created unique ClientId
+	 *            the ip of the requester
+	 * @return the ClientId or null when the ip is still unknown
 	 */
-	protected ClientId createId(final String ip) {
-		ClientId ret = null;
-		idLock.lock();
+	protected ClientId findId(final String ip) {
+		final EntityManager em = entityMgrFactory.createEntityManager();
 		try {
-			final EntityManager em = entityMgrFactory.createEntityManager();
-			em.getTransaction().begin();
-			// First check whether the id wasn't created in the meanwhile
 			final Query query = em.createQuery("from ClientId x where x.ip = :ip");
 			query.setParameter("ip", ip);
 			final List<ClientId> ids = query.getResultList();
-			if (ids.size() >= 1) {
-				ret = ids.get(0);
-			} else {
-				// Id doesn't exist so create a new one
-				ret = new ClientId(ip);
-				ret = em.merge(ret);
-			}
-			em.getTransaction().commit();
-		} catch (final Throwable thr) {
-			Log.error("Error getting an id for %s", thr, ip);
+			return ids.isEmpty() ? null : ids.get(0);
 		} finally {
-			idLock.unlock();
+			em.close();
+		}
+	}
+
+	/**
+	 * This creates a new ClientId in a threadSafe method. Only requests for the
+	 * same ip wait for each other. The unique constraint on the ip catches a
+	 * concurrent creation by another storage on the same database, in that
+	 * case the id created there is returned.
+	 * 
+	 * @param ip
+	 *            the ip of the requester that is still unknown
+	 * @return the fresh created unique ClientId
+	 */
+	protected ClientId createId(final String ip) {
+		ClientId ret = null;
+		final Object creation = new Object();
+		final Object running = idCreations.putIfAbsent(ip, creation);
+		final Object lock = running == null ? creation : running;
+		synchronized (lock) {
+			try {
+				// First check whether the id wasn't created in the meanwhile
+				ret = findId(ip);
+				if (ret == null) {
+					// Id doesn't exist so create a new one
+					final EntityManager em = entityMgrFactory.createEntityManager();
+					try {
+						em.getTransaction().begin();
+						ret = em.merge(new ClientId(ip));
+						em.getTransaction().commit();
+					} catch (final PersistenceException pe) {
+						Log.debug("Id for %s was created concurrently", ip);
+						ret = findId(ip);
+					} finally {
+						if (em.getTransaction().isActive()) {
+							em.getTransaction().rollback();
+						}
+						em.close();
+					}
+				}
+			} catch (final Throwable thr) {
+				Log.error("Error getting an id for %s", thr, ip);
+			} finally {
+				idCreations.remove(ip, lock);
+			}
 		}
 		return ret;
 	}
@@ -394,28 +1909,208 @@ public class PbStorageImpl implements PbStorage {
 	 */
 	@Override
 	public int getId(final String ip) {
+		final Integer cached = idCache.get(ip);
+		if (cached != null) {
+			return cached;
+		}
 		int ret = -1;
-		if (providerSem.tryAcquire()) {
+		if (admit(readAdmission)) {
 			try {
-				ClientId clientId = null;
-				final EntityManager em = entityMgrFactory.createEntityManager();
-				final Query query = em.createQuery("from ClientId x where x.ip = :ip");
-				query.setParameter("ip", ip);
-				final List<ClientId> ids = query.getResultList();
-				if (ids.size() > 1) {
-					Log.error("there are more than one entries for this ip %s ", ip);
-					clientId = ids.get(0);
-				} else if (ids.size() == 1) {
-					clientId = ids.get(0);
-				} else {
+				ClientId clientId = findId(ip);
+				if (clientId == null) {
 					clientId = createId(ip);
 				}
-				ret = clientId.getId();
+				if (clientId != null) {
+					ret = clientId.getId();
+					idCache.putIfAbsent(ip, ret);
+				}
 			} catch (final Throwable thr) {
 				Log.error("Error getting an id for %s", thr, ip);
 			} finally {
-				providerSem.release();
+				readAdmission.leave();
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see pb.persistence.PbStorage#vote(int, int, int)
+	 */
+	@Override
+	public VoteResult vote(final int voter, final int voteFor, final int maxLikes) {
+		VoteResult ret = VoteResult.FAILED;
+		if (writeBehind) {
+			flush();
+			// a queued credit or vote written later would overwrite the
+			// outcome of this vote with its older value
+			if (isPending(voter, voteFor, new VotePK(voter, voteFor), new VotePK(voteFor, voter))) {
+				throw new StorageOverloadException("Queued writes of the vote from " + voter
+						+ " for " + voteFor + " could not be written");
+			}
+		}
+		if (admit(writeAdmission)) {
+			try {
+				final EntityManager em = entityMgrFactory.createEntityManager();
+				try {
+					em.getTransaction().begin();
+					ret = vote(em, voter, voteFor, maxLikes);
+					em.getTransaction().commit();
+				} finally {
+					if (em.getTransaction().isActive()) {
+						em.getTransaction().rollback();
+					}
+					em.close();
+				}
+			} catch (final Throwable thr) {
+				if (isConflict(thr)) {
+					Log.debug("Conflicting vote from %d for %d", voter, voteFor);
+					ret = VoteResult.CONFLICT;
+				} else {
+					Log.error("Error voting from %d for %d", thr, voter, voteFor);
+					ret = VoteResult.FAILED;
+				}
+			} finally {
+				writeAdmission.leave();
+			}
+			creditCache.invalidate(voter);
+			creditCache.invalidate(voteFor);
+			if (ret == VoteResult.PAIRED) {
+				// the other votes of the pair are gone too
+				voteCache.invalidateAll();
+				candidateListVersion.incrementAndGet();
+			} else {
+				voteCache.invalidate(new VotePK(voter, voteFor));
+				voteCache.invalidate(new VotePK(voteFor, voter));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes all votes from and to a candidate except the ones between the
+	 * candidate and its partner with two bulk deletes. The votes are neither
+	 * loaded nor versioned on the way.
+	 * 
+	 * @param em
+	 *            EntityManager with an active transaction
+	 * @param id
+	 *            the candidate whose votes are removed
+	 * @param partner
+	 *            the candidate whose votes with the other one are kept
+	 * @return the number of removed votes
+	 */
+	protected int removeOtherVotes(final EntityManager em, final int id, final int partner) {
+		final Query query = em
+				.createQuery("delete from Vote x where x.voterId = :id and x.voteFor <> :partner");
+		query.setParameter("id", id);
+		query.setParameter("partner", partner);
+		int ret = query.executeUpdate();
+		final Query query2 = em
+				.createQuery("delete from Vote x where x.voteFor = :id and x.voterId <> :partner");
+		query2.setParameter("id", id);
+		query2.setParameter("partner", partner);
+		ret += query2.executeUpdate();
+		return ret;
+	}
+
+	/**
+	 * Checks whether the exception or one of its causes tells that a
+	 * concurrent transaction changed or created the same rows. Transactions
+	 * writing the same rows in opposite order can also deadlock, the one
+	 * rolled back by the database is a conflict as well.
+	 * 
+	 * @param thr
+	 *            the exception thrown by the persistence layer
+	 * @return true when the operation may succeed when repeated
+	 */
+	protected static boolean isConflict(final Throwable thr) {
+		for (Throwable cause = thr; cause != null; cause = cause.getCause()) {
+			if ((cause instanceof OptimisticLockException)
+					|| (cause instanceof EntityExistsException)
+					|| (cause instanceof PessimisticLockException)
+					|| (cause instanceof LockTimeoutException)) {
+				return true;
+			}
+			if ((cause instanceof SQLException)
+					&& deadlockState.equals(((SQLException) cause).getSQLState())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Does the read-modify-write of a vote within the running transaction of
+	 * the given EntityManager. No row is locked while reading: the credit of
+	 * the voter and the votes are versioned, the candidate voted for is checked
+	 * for concurrent changes on commit and the version of the opposite vote is
+	 * incremented, so two opposite votes always write a common row. A conflict
+	 * rolls back the whole vote.
+	 * 
+	 * @param em
+	 *            EntityManager with an active transaction
+	 * @param voter
+	 *            the id of the candidate who votes
+	 * @param voteFor
+	 *            the id of the candidate that is voted for
+	 * @param maxLikes
+	 *            the number of likes in each direction that make a pair
+	 * @return the outcome of the vote
+	 */
+	protected VoteResult vote(final EntityManager em, final int voter, final int voteFor,
+			final int maxLikes) {
+		final Credit credit = em.find(Credit.class, voter);
+		if (credit == null) {
+			return VoteResult.UNKNOWN_CANDIDATE;
+		}
+		if (credit.getCredit() <= 0) {
+			return VoteResult.NOT_ENOUGH_CREDIT;
+		}
+		final Candidate rCandidate = em.find(Candidate.class, voteFor, LockModeType.OPTIMISTIC);
+		if (rCandidate == null) {
+			return VoteResult.UNKNOWN_CANDIDATE;
+		}
+		if (!rCandidate.isAvailable()) {
+			return VoteResult.ALREADY_PAIRED;
+		}
+
+		Vote vote = em.find(Vote.class, new VotePK(voter, voteFor));
+		if (vote == null) {
+			vote = new Vote(voter, voteFor);
+			em.persist(vote);
+		}
+		Vote rVote = em.find(Vote.class, new VotePK(voteFor, voter));
+		if (rVote == null) {
+			rVote = new Vote(voteFor, voter);
+			em.persist(rVote);
+		} else {
+			// only checking the version would let two opposite votes commit
+			// when each checks before the other commits, so both write it
+			em.lock(rVote, LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+		}
+		if (vote.getLikes() < maxLikes) {
+			vote.setLikes(vote.getLikes() + 1);
+			credit.setCredit(credit.getCredit() - 1);
+		}
+
+		VoteResult ret = VoteResult.VOTED;
+		// Check for Partner found
+		if ((vote.getLikes() == maxLikes) && (rVote.getLikes() == maxLikes)) {
+			removeOtherVotes(em, voter, voteFor);
+			removeOtherVotes(em, voteFor, voter);
+			credit.setCredit(0);
+			final Credit rCredit = em.find(Credit.class, voteFor);
+			if (rCredit != null) {
+				rCredit.setCredit(0);
+			}
+			final Candidate candidate = em.find(Candidate.class, voter);
+			if (candidate != null) {
+				candidate.setAvailable(false);
 			}
+			rCandidate.setAvailable(false);
+			ret = VoteResult.PAIRED;
 		}
 		return ret;
 	}
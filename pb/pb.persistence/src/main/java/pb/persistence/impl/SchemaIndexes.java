@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence.impl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import pb.persistence.entity.Candidate;
+import pb.persistence.entity.ClientId;
+import pb.persistence.entity.Vote;
+
+/**
+ * Indexes for the columns the storage queries by. JPA 2.0 has no index
+ * metadata, so the indexes are created with plain DDL after the
+ * EntityManagerFactory set up the schema. Each statement is idempotent, which
+ * makes it safe with every hbm2ddl mode. The unique index on the ip of a
+ * {@link ClientId} is created by its unique constraint.
+ * 
+ * The votes of a voter are read by VOTER_ID and ordered by LIKES, which the
+ * primary key can't serve, since H2 orders its columns as VOTE_FOR, VOTER_ID.
+ * The votes for a candidate are served by that primary key, and the pages of
+ * a candidate list are read fastest along the primary key of CANDIDATES, so
+ * the indexes once created for these queries are dropped again.
+ * 
+ * @author oliver
+ */
+public final class SchemaIndexes {
+
+	/**
+	 * name, table and columns of every index
+	 */
+	protected static final String INDEXES[][] = {
+			{ Vote.INDEX_VOTER_LIKES, Vote.TABLE_NAME,
+					Vote.COLUMN_VOTER_ID + ", " + Vote.COLUMN_LIKES } };
+
+	/**
+	 * names of indexes that slowed the storage down and are dropped from
+	 * existing databases
+	 */
+	protected static final String OBSOLETE_INDEXES[] = { Vote.INDEX_VOTE_FOR,
+			Candidate.INDEX_GENDER_AVAILABLE };
+
+	private SchemaIndexes() {
+		super();
+	}
+
+	/**
+	 * Creates all missing indexes and drops the obsolete ones.
+	 * 
+	 * @param entityMgrFactory
+	 *            factory of the database to index
+	 */
+	public static void create(final EntityManagerFactory entityMgrFactory) {
+		for (final String index[] : INDEXES) {
+			execute(entityMgrFactory, "create index if not exists " + index[0] + " on " + index[1]
+					+ " (" + index[2] + ")");
+		}
+		for (final String index : OBSOLETE_INDEXES) {
+			execute(entityMgrFactory, "drop index if exists " + index);
+		}
+	}
+
+	/**
+	 * Drops all indexes again. Only used to compare query latencies with and
+	 * without them.
+	 * 
+	 * @param entityMgrFactory
+	 *            factory of the indexed database
+	 */
+	public static void drop(final EntityManagerFactory entityMgrFactory) {
+		for (final String index[] : INDEXES) {
+			execute(entityMgrFactory, "drop index if exists " + index[0]);
+		}
+	}
+
+	/**
+	 * Runs a single DDL statement in its own transaction.
+	 */
+	protected static void execute(final EntityManagerFactory entityMgrFactory,
+			final String statement) {
+		final EntityManager em = entityMgrFactory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.createNativeQuery(statement).executeUpdate();
+			em.getTransaction().commit();
+		} catch (final Throwable thr) {
+			Log.error("Error executing \"%s\"", thr, statement);
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
+		}
+	}
+}
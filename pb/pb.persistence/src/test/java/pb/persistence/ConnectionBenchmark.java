@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.spi.PersistenceProvider;
+
+import org.hibernate.ejb.HibernatePersistence;
+
+import pb.persistence.StorageBenchmark.BenchmarkPersistence;
+import pb.persistence.entity.Credit;
+
+/**
+ * Compares parallel storage calls on the connection pool of the component
+ * with the former configuration, Hibernate's built-in connection pool logging
+ * every statement without JDBC batching. Every call stores a credit, reads it
+ * back and queries the voting pairs of a candidate. The statement log goes to
+ * a discarding stream, so the numbers of the former configuration leave out
+ * the cost of a real console. Not part of the test suite, run it with
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=pb.persistence.ConnectionBenchmark
+ *     -Dexec.classpathScope=test [-Dexec.args="1 4 16 64"]
+ * </pre>
+ * 
+ * @author oliver
+ */
+public class ConnectionBenchmark {
+
+	protected static final int candidates = 2000;
+	protected static final int votes = 100000;
+	protected static final int calls = 20000;
+
+	public static void main(final String[] args) throws InterruptedException {
+		final String threads[] = args.length > 0 ? args : new String[] { "1", "4", "16",
+				"64" };
+		System.out.printf("%8s %-8s %12s %12s %10s%n", "threads", "config", "calls/s",
+				"latency", "rejected");
+		final PrintStream console = System.out;
+		final PersistenceProvider configs[] = { new LegacyPersistence(),
+				new BenchmarkPersistence() };
+		for (final PersistenceProvider config : configs) {
+			final String name = config instanceof LegacyPersistence ? "legacy" : "pooled";
+			final StorageBenchmark benchmark = new StorageBenchmark();
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(final int b) {
+					// discards the statement log
+				}
+			}));
+			try {
+				benchmark.storage.bind(config);
+				benchmark.fill(candidates, votes);
+				// one untimed pass warms up the caches and the JIT
+				run(benchmark.storage, 4);
+				for (final String count : threads) {
+					final double result[] = run(benchmark.storage, Integer.parseInt(count));
+					console.printf("%8s %-8s %12.0f %12.1f %10.0f%n", count, name, result[0],
+							result[1], result[2]);
+				}
+			} finally {
+				benchmark.storage.unbind();
+				System.setOut(console);
+			}
+		}
+	}
+
+	/**
+	 * Runs the calls spread over the given number of threads
+	 * 
+	 * @return calls per second, mean latency of a call in microseconds and
+	 *         the number of calls rejected by the admission
+	 */
+	protected static double[] run(final PbStorage storage, final int threads)
+			throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong latency = new AtomicLong();
+		final AtomicInteger rejected = new AtomicInteger();
+		final long start = System.nanoTime();
+		for (int i = 0; i < threads; ++i) {
+			final Random random = new Random(4711 + i);
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < calls / threads; ++j) {
+							final int id = random.nextInt(candidates);
+							final long callStart = System.nanoTime();
+							try {
+								storage.storeCredit(new Credit(id, j));
+								storage.getCredit(id);
+								storage.getVotingPairs(id);
+							} catch (final StorageOverloadException e) {
+								rejected.incrementAndGet();
+							}
+							latency.addAndGet(System.nanoTime() - callStart);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		final long total = calls / threads * threads;
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		return new double[] { total / seconds, latency.get() / 1000.0 / total, rejected.get() };
+	}
+
+	/**
+	 * The persistence unit as configured before the connection pool: a raw
+	 * driver URL on Hibernate's built-in pool, SQL logging and no batching.
+	 * 
+	 * @author oliver
+	 */
+	protected static class LegacyPersistence extends HibernatePersistence {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.hibernate.ejb.HibernatePersistence#createEntityManagerFactory
+		 * (java.lang.String, java.util.Map)
+		 */
+		@Override
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public EntityManagerFactory createEntityManagerFactory(final String name, final Map map) {
+			final Map<String, Object> properties = new HashMap<>(map);
+			properties.remove("hibernate.connection.datasource");
+			properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+			properties.put("hibernate.connection.url",
+					"jdbc:h2:mem:db1;DB_CLOSE_DELAY=-1;MV_STORE=TRUE");
+			properties.put("hibernate.connection.username", "sa");
+			properties.put("hibernate.connection.password", "");
+			properties.put("hibernate.show_sql", "true");
+			properties.put("hibernate.jdbc.batch_size", "0");
+			properties.put("hibernate.order_inserts", "false");
+			properties.put("hibernate.order_updates", "false");
+			return super.createEntityManagerFactory(name, properties);
+		}
+	}
+}
@@ -20,9 +20,23 @@
 package pb.persistence;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import javax.persistence.spi.PersistenceProvider;
@@ -30,11 +44,22 @@ import javax.persistence.spi.PersistenceUnitInfo;
 import javax.persistence.spi.ProviderUtil;
 
 import junit.framework.TestCase;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import pb.persistence.PbStorage.Bulkhead;
+import pb.persistence.PbStorage.Cache;
+import pb.persistence.PbStorage.SummaryHandler;
+import pb.persistence.avatar.Images;
 import pb.persistence.entity.Candidate;
 import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
 import pb.persistence.entity.Credit;
 import pb.persistence.entity.Vote;
 import pb.persistence.entity.VotePK;
+import pb.persistence.entity.VotingPair;
+import pb.persistence.impl.AvatarStore;
+import pb.persistence.impl.PbStorageAsyncImpl;
 import pb.persistence.impl.PbStorageImpl;
 
 /**
@@ -121,6 +146,134 @@ public class PBStorageTestCase extends TestCase {
 		assertEquals(credit.getCredit(), compare.getCredit());
 	}
 
+	/**
+	 * Test method for
+	 * {@link pb.persistence.impl.PbStorageImpl#getCandidateByGender(Gender)}
+	 */
+	public void testGetCandidateByGender() {
+		final BufferedImage image = new BufferedImage(160, 160, BufferedImage.TYPE_3BYTE_BGR);
+		testee.storeCandidate(new Candidate(60, image, "Anna", 20, "", Gender.FEMALE));
+		testee.storeCandidate(new Candidate(61, image, "Bert", 20, "", Gender.MALE));
+		final Candidate paired = new Candidate(62, image, "Carla", 20, "", Gender.FEMALE);
+		paired.setAvailable(false);
+		testee.storeCandidate(paired);
+		testee.storeCandidate(new Candidate(63, image, "", 20, "", Gender.FEMALE));
+
+		final List<Integer> ids = new ArrayList<Integer>();
+		for (final Candidate candidate : testee.getCandidateByGender(Gender.FEMALE)) {
+			assertEquals(Gender.FEMALE, candidate.getGender());
+			ids.add(candidate.getId());
+		}
+		assertTrue(ids.contains(60));
+		assertFalse(ids.contains(62));
+		assertFalse(ids.contains(63));
+	}
+
+	/**
+	 * Test method for
+	 * {@link pb.persistence.impl.PbStorageImpl#getCandidateSummariesByGender(Gender)}
+	 */
+	public void testGetCandidateSummaries() {
+		final BufferedImage image = new BufferedImage(160, 160, BufferedImage.TYPE_3BYTE_BGR);
+		testee.storeCandidate(new Candidate(70, image, "Doris", 22, "likes dancing",
+				Gender.FEMALE));
+		final Candidate paired = new Candidate(71, image, "Erna", 20, "", Gender.FEMALE);
+		paired.setAvailable(false);
+		testee.storeCandidate(paired);
+
+		final CandidateSummary summary = testee.getCandidateSummary(70);
+		assertEquals("Doris", summary.getName());
+		assertEquals(22, summary.getAge());
+		assertEquals("likes dancing", summary.getShortDescription());
+		assertEquals(Gender.FEMALE, summary.getGender());
+		assertEquals(testee.getCandidate(70).getImageCount(), summary.getImageCount());
+		assertNull(testee.getCandidateSummary(79));
+
+		final List<Integer> ids = new ArrayList<Integer>();
+		for (final CandidateSummary candidate : testee.getCandidateSummariesByGender(Gender.FEMALE)) {
+			assertEquals(Gender.FEMALE, candidate.getGender());
+			ids.add(candidate.getId());
+		}
+		assertTrue(ids.contains(70));
+		assertFalse(ids.contains(71));
+	}
+
+	/**
+	 * Test method for
+	 * {@link pb.persistence.impl.PbStorageImpl#getCandidateSummariesByGender(Gender, int, int)}
+	 * and
+	 * {@link pb.persistence.impl.PbStorageImpl#streamCandidateSummariesByGender(Gender, int, int, SummaryHandler)}
+	 */
+	public void testCandidateSummaryPages() {
+		final BufferedImage image = new BufferedImage(160, 160, BufferedImage.TYPE_3BYTE_BGR);
+		for (int id = 80; id < 85; ++id) {
+			final Candidate candidate = new Candidate(id, image, "Page " + id, 20, "",
+					Gender.FEMALE);
+			candidate.setAvailable(id != 82);
+			testee.storeCandidate(candidate);
+		}
+
+		List<CandidateSummary> page = testee.getCandidateSummariesByGender(Gender.FEMALE, 79, 2);
+		assertEquals(2, page.size());
+		assertEquals(80, page.get(0).getId());
+		assertEquals(81, page.get(1).getId());
+		page = testee.getCandidateSummariesByGender(Gender.FEMALE, 81, 2);
+		assertEquals(2, page.size());
+		assertEquals(83, page.get(0).getId());
+		assertEquals(84, page.get(1).getId());
+
+		final List<Integer> ids = new ArrayList<Integer>();
+		final int count = testee.streamCandidateSummariesByGender(Gender.FEMALE, 80, 3,
+				new SummaryHandler() {
+					@Override
+					public void handle(final CandidateSummary summary) {
+						ids.add(summary.getId());
+					}
+				});
+		assertEquals(3, count);
+		assertEquals(81, ids.get(0).intValue());
+		assertEquals(83, ids.get(1).intValue());
+		assertEquals(84, ids.get(2).intValue());
+	}
+
+	/**
+	 * Test method for
+	 * {@link pb.persistence.impl.PbStorageImpl#removeAllVotes(int)}
+	 */
+	public void testRemoveAllVotes() {
+		final int candidateId = 50;
+		testee.storeVote(new Vote(candidateId, 51));
+		testee.storeVote(new Vote(52, candidateId));
+		testee.storeVote(new Vote(candidateId, 53));
+		testee.storeVote(new Vote(51, 52));
+
+		assertEquals(3, testee.removeAllVotes(candidateId));
+		assertTrue(testee.getVotesByCandidateId(candidateId).isEmpty());
+		assertTrue(testee.getVotesForCandidateId(candidateId).isEmpty());
+		assertEquals(1, testee.getVotesByCandidateId(51).size());
+		assertEquals(0, testee.removeAllVotes(candidateId));
+	}
+
+	/**
+	 * Storing a credit that was changed by someone else after it was read must
+	 * fail instead of overwriting the other change.
+	 */
+	public void testStoreCreditConflict() {
+		final int id = 40;
+		assertTrue(testee.storeCredit(new Credit(id, 10)));
+
+		final Credit first = testee.getCredit(id);
+		final Credit second = testee.getCredit(id);
+		first.setCredit(9);
+		assertTrue(testee.storeCredit(first));
+		second.setCredit(8);
+		assertFalse("Lost update was not detected", testee.storeCredit(second));
+
+		final Credit compare = testee.getCredit(id);
+		assertEquals(9, compare.getCredit());
+		assertEquals(first.getVersion() + 1, compare.getVersion());
+	}
+
 	/**
 	 * Test method for
 	 * {@link pb.persistence.impl.PbStorageImpl#storeVote(pb.persistence.entity.Vote)}
@@ -166,6 +319,164 @@ public class PBStorageTestCase extends TestCase {
 		}
 	}
 
+	/**
+	 * Test method for {@link pb.persistence.impl.PbStorageImpl#getVotingPairs(int)}
+	 */
+	public void testGetVotingPairs() {
+		final int candidateId = 30;
+		final Vote liked = new Vote(candidateId, 31);
+		liked.setLikes(2);
+		testee.storeVote(liked);
+		final Vote likedBack = new Vote(31, candidateId);
+		likedBack.setLikes(3);
+		testee.storeVote(likedBack);
+		final Vote unanswered = new Vote(candidateId, 32);
+		unanswered.setLikes(1);
+		testee.storeVote(unanswered);
+		testee.storeVote(new Vote(33, candidateId));
+
+		final List<VotingPair> pairs = testee.getVotingPairs(candidateId);
+		assertEquals(2, pairs.size());
+		assertEquals(31, pairs.get(0).getVoteFor());
+		assertEquals(2, pairs.get(0).getLikes());
+		assertEquals(3, pairs.get(0).getOtherLikes());
+		assertEquals(32, pairs.get(1).getVoteFor());
+		assertEquals(1, pairs.get(1).getLikes());
+		assertEquals(0, pairs.get(1).getOtherLikes());
+	}
+
+	/**
+	 * Test method for {@link pb.persistence.impl.PbStorageImpl#vote(int, int, int)}
+	 */
+	public void testVote() {
+		final int maxLikes = 3;
+		final BufferedImage image = new BufferedImage(160, 160, BufferedImage.TYPE_3BYTE_BGR);
+		for (int id = 10; id < 13; ++id) {
+			testee.storeCandidate(new Candidate(id, image, "Candidate " + id, 20, "",
+					id % 2 == 0 ? Gender.MALE : Gender.FEMALE));
+			testee.storeCredit(new Credit(id, 10));
+		}
+		testee.storeCredit(new Credit(13, 0));
+
+		assertEquals(PbStorage.VoteResult.NOT_ENOUGH_CREDIT, testee.vote(13, 10, maxLikes));
+		assertEquals(PbStorage.VoteResult.UNKNOWN_CANDIDATE, testee.vote(10, 99, maxLikes));
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(12, 11, maxLikes));
+
+		for (int i = 1; i < maxLikes; ++i) {
+			assertEquals(PbStorage.VoteResult.VOTED, testee.vote(10, 11, maxLikes));
+			assertEquals(PbStorage.VoteResult.VOTED, testee.vote(11, 10, maxLikes));
+		}
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(10, 11, maxLikes));
+		assertEquals(10 - maxLikes, testee.getCredit(10).getCredit());
+		assertEquals(PbStorage.VoteResult.PAIRED, testee.vote(11, 10, maxLikes));
+
+		assertEquals(maxLikes, testee.getVote(new VotePK(10, 11)).getLikes());
+		assertEquals(maxLikes, testee.getVote(new VotePK(11, 10)).getLikes());
+		assertNull(testee.getVote(new VotePK(12, 11)));
+		assertEquals(0, testee.getCredit(10).getCredit());
+		assertEquals(0, testee.getCredit(11).getCredit());
+		assertFalse(testee.getCandidate(10).isAvailable());
+		assertFalse(testee.getCandidate(11).isAvailable());
+		assertEquals(PbStorage.VoteResult.ALREADY_PAIRED, testee.vote(12, 11, maxLikes));
+	}
+
+	/**
+	 * Two opposite votes that each bring their own row to maxLikes run in
+	 * parallel transactions. Each sees the other vote below maxLikes, so both
+	 * would report VOTED and the pair would never be found. They write a
+	 * common row, so at most one of them commits, the other one is a conflict.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void testOppositeVotesConflict() throws InterruptedException {
+		final int maxLikes = 2;
+		for (int id = 84; id < 86; ++id) {
+			assertTrue(testee.storeCandidate(new Candidate(id, Images.getMaleAvatar(),
+					"Candidate " + id, 20, "", Gender.MALE)));
+			assertTrue(testee.storeCredit(new Credit(id, 5)));
+		}
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(84, 85, maxLikes));
+		final int version = testee.getVote(new VotePK(84, 85)).getVersion();
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(85, 84, maxLikes));
+		// the vote writes the opposite one, though it only reads its likes
+		assertEquals(version + 1, testee.getVote(new VotePK(84, 85)).getVersion());
+
+		final EntityManagerFactory factory = testee.getEntityMgrFactory();
+		final EntityManager first = factory.createEntityManager();
+		final EntityManager second = factory.createEntityManager();
+		try {
+			first.getTransaction().begin();
+			second.getTransaction().begin();
+			assertEquals(PbStorage.VoteResult.VOTED, testee.vote(first, 84, 85, maxLikes));
+			assertEquals(PbStorage.VoteResult.VOTED, testee.vote(second, 85, 84, maxLikes));
+			first.flush();
+			second.flush();
+			// both commit at the same time
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicInteger committed = new AtomicInteger();
+			final AtomicReference<Throwable> conflict = new AtomicReference<>();
+			final List<Thread> threads = new ArrayList<>();
+			for (final EntityManager em : Arrays.asList(first, second)) {
+				final Thread thread = new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							em.getTransaction().commit();
+							committed.incrementAndGet();
+						} catch (final Throwable thr) {
+							conflict.set(thr);
+						}
+					}
+				};
+				thread.start();
+				threads.add(thread);
+			}
+			start.countDown();
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(1, committed.get());
+			assertTrue(String.valueOf(conflict.get()), testee.isConflicting(conflict.get()));
+		} finally {
+			for (final EntityManager em : Arrays.asList(first, second)) {
+				if (em.getTransaction().isActive()) {
+					em.getTransaction().rollback();
+				}
+				em.close();
+			}
+		}
+		// only one of the votes counts, read past the cache
+		final EntityManager em = factory.createEntityManager();
+		try {
+			assertEquals(maxLikes + 1, em.find(Vote.class, new VotePK(84, 85)).getLikes()
+					+ em.find(Vote.class, new VotePK(85, 84)).getLikes());
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link PbStorage#getCandidateListVersion()}, which only
+	 * grows with writes that change the candidate lists
+	 */
+	public void testCandidateListVersion() {
+		final int maxLikes = 1;
+		long version = testee.getCandidateListVersion();
+		assertTrue(testee.storeCandidate(new Candidate(20, Images.getMaleAvatar(), "Max", 20, "",
+				Gender.MALE)));
+		assertTrue(testee.storeCandidate(new Candidate(21, Images.getFemaleAvatar(), "Mia", 20,
+				"", Gender.FEMALE)));
+		assertTrue(version < testee.getCandidateListVersion());
+		version = testee.getCandidateListVersion();
+		assertTrue(testee.storeCredit(new Credit(20, 10)));
+		assertTrue(testee.storeCredit(new Credit(21, 10)));
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(20, 21, maxLikes));
+		assertEquals(version, testee.getCandidateListVersion());
+		assertEquals(PbStorage.VoteResult.PAIRED, testee.vote(21, 20, maxLikes));
+		assertTrue(version < testee.getCandidateListVersion());
+	}
+
 	public void testClientId() {
 		final int first = testee.getId("First");
 		final int second = testee.getId("Second");
@@ -174,6 +485,594 @@ public class PBStorageTestCase extends TestCase {
 		assertEquals(second, testee.getId("Second"));
 	}
 
+	/**
+	 * Concurrent first requests of the same ip must all get the same id.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void testClientIdConcurrentCreation() throws InterruptedException {
+		final int threads = 8;
+		final int ids[] = new int[threads];
+		final Thread workers[] = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int slot = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					ids[slot] = testee.getId("Concurrent");
+				}
+			};
+		}
+		for (final Thread worker : workers) {
+			worker.start();
+		}
+		for (final Thread worker : workers) {
+			worker.join();
+		}
+		assertTrue(ids[0] >= 0);
+		for (final int id : ids) {
+			assertEquals(ids[0], id);
+		}
+		assertEquals(ids[0], testee.getId("Concurrent"));
+	}
+
+	/**
+	 * The asynchronous storage runs independent lookups concurrently and
+	 * rejects calls when its executor is saturated.
+	 * 
+	 * @throws Exception
+	 */
+	public void testAsyncStorage() throws Exception {
+		final TestPbStorageAsyncImpl async = new TestPbStorageAsyncImpl();
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageAsyncImpl.THREADS_NAME, 2);
+		properties.put(PbStorageAsyncImpl.QUEUE_SIZE_NAME, 1);
+		async.activate(properties);
+		async.bind(testee);
+		try {
+			assertTrue(async.storeCredit(new Credit(60, 7)).get());
+			final CompletableFuture<Credit> credit = async.getCredit(60);
+			final CompletableFuture<Integer> id = async.getId("Async");
+			assertEquals(7, credit.get().getCredit());
+			assertEquals(testee.getId("Async"), id.get().intValue());
+
+			// occupy both database threads
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<CompletableFuture<Boolean>> blockers = new ArrayList<>();
+			for (int i = 0; i < 2; ++i) {
+				final CountDownLatch started = new CountDownLatch(1);
+				blockers.add(async.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws InterruptedException {
+						started.countDown();
+						release.await();
+						return true;
+					}
+				}));
+				started.await();
+			}
+			final CompletableFuture<Credit> queued = async.getCredit(60);
+			final CompletableFuture<Credit> rejected = async.getCredit(60);
+			try {
+				rejected.get();
+				fail("Saturated executor accepted the call");
+			} catch (final ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+			release.countDown();
+			for (final CompletableFuture<Boolean> blocker : blockers) {
+				assertTrue(blocker.get());
+			}
+			assertEquals(7, queued.get().getCredit());
+		} finally {
+			async.unbind(testee);
+			async.deactivate();
+		}
+	}
+
+	/**
+	 * A call that finds all database slots busy for longer than the admission
+	 * timeout is rejected with an overload instead of returning nothing.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void testAdmissionOverload() throws InterruptedException {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.ADMISSION_TIMEOUT_NAME, 20);
+		testee.activate(properties);
+		try {
+			assertTrue(testee.storeCredit(new Credit(80, 3)));
+			testee.occupySlots(Bulkhead.READ);
+			try {
+				try {
+					testee.getCredit(80);
+					fail("Call was admitted although all slots are busy");
+				} catch (final StorageOverloadException e) {
+					assertTrue(e.getRetryAfter() > 0);
+				}
+				// writes have their own bulkhead and are not starved by reads
+				assertTrue(testee.storeCredit(new Credit(81, 4)));
+			} finally {
+				testee.freeSlots(Bulkhead.READ);
+			}
+			assertEquals(3, testee.getCredit(80).getCredit());
+			final AdmissionStatistics statistics = testee.getAdmissionStatistics(Bulkhead.READ);
+			assertEquals(1, statistics.getAdmitted());
+			assertEquals(1, statistics.getRejected());
+			assertTrue(statistics.getMaxWaitNanos() <= statistics.getWaitNanos());
+			final AdmissionStatistics writes = testee.getAdmissionStatistics(Bulkhead.WRITE);
+			assertEquals(2, writes.getAdmitted());
+			assertEquals(0, writes.getRejected());
+		} finally {
+			testee.deactivate();
+		}
+	}
+
+	/**
+	 * The adaptive limit grows while the latency stays at the baseline and
+	 * backs off when the calls start to queue, and the slots follow it.
+	 */
+	public void testAdaptiveAdmission() {
+		final long fast = 1000000L;
+		final long slow = 10 * fast;
+		final AdaptiveAdmission admission = new AdaptiveAdmission(4, 2, 16);
+		admission.open();
+		for (int i = 0; i < 200; ++i) {
+			admission.sample(fast, admission.getLimit());
+		}
+		assertEquals(16, admission.getLimit());
+		for (int i = 0; i < 200; ++i) {
+			admission.sample(slow, admission.getLimit());
+		}
+		assertEquals(2, admission.getLimit());
+
+		assertTrue(admission.enter(0));
+		assertTrue(admission.enter(0));
+		assertFalse("Admitted more calls than the limit", admission.enter(0));
+		admission.leave();
+		admission.leave();
+		assertEquals(0, admission.getInFlight());
+		assertEquals(1, admission.getRejected());
+	}
+
+	/**
+	 * In write-behind mode stores are queued, coalesced and written in
+	 * batches, and unbinding the provider writes what is still queued.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void testWriteBehind() throws InterruptedException {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.WRITE_BEHIND_NAME, true);
+		properties.put(PbStorageImpl.WRITE_BEHIND_INTERVAL_NAME, 60000);
+		properties.put(PbStorageImpl.WRITE_BEHIND_BATCH_SIZE_NAME, 3);
+		testee.activate(properties);
+		try {
+			assertTrue(testee.storeCredit(new Credit(70, 5)));
+			assertEquals(5, testee.getCredit(70).getCredit());
+			final Vote vote = new Vote(70, 71);
+			vote.setLikes(1);
+			assertTrue(testee.storeVote(vote));
+			vote.setLikes(2);
+			assertTrue(testee.storeVote(vote));
+			assertEquals(2, testee.getVote(new VotePK(70, 71)).getLikes());
+			assertTrue("Queued vote was written", testee.getVotesByCandidateId(70).isEmpty());
+
+			assertEquals(2, testee.flush());
+			final List<Vote> votes = testee.getVotesByCandidateId(70);
+			assertEquals(1, votes.size());
+			assertEquals(2, votes.get(0).getLikes());
+			assertEquals(5, testee.getCredit(70).getCredit());
+
+			// a full batch wakes the flusher
+			for (int id = 72; id < 75; ++id) {
+				assertTrue(testee.storeCredit(new Credit(id, id)));
+			}
+			for (int wait = 0; wait < 100 && testee.getPendingCount() > 0; ++wait) {
+				Thread.sleep(50);
+			}
+			assertEquals(0, testee.getPendingCount());
+			assertEquals(73, testee.getCredit(73).getCredit());
+
+			final int written = testee.written.get();
+			assertTrue(testee.storeCredit(new Credit(75, 1)));
+			testee.unbind(persistenceProvider);
+			assertEquals(0, testee.getPendingCount());
+			assertEquals(written + 1, testee.written.get());
+		} finally {
+			testee.deactivate();
+		}
+	}
+
+	/**
+	 * A vote in write-behind mode does not run while a queued credit of its
+	 * candidates is left, which would overwrite the outcome of the vote when
+	 * it is written later.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void testWriteBehindVote() throws InterruptedException {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.WRITE_BEHIND_NAME, true);
+		properties.put(PbStorageImpl.WRITE_BEHIND_INTERVAL_NAME, 60000);
+		properties.put(PbStorageImpl.ADMISSION_TIMEOUT_NAME, 20);
+		testee.activate(properties);
+		try {
+			for (int id = 90; id < 92; ++id) {
+				assertTrue(testee.storeCandidate(new Candidate(id, Images.getMaleAvatar(),
+						"Voter " + id, 20, "", Gender.MALE)));
+				assertTrue(testee.storeCredit(new Credit(id, 5)));
+			}
+			testee.occupySlots(Bulkhead.WRITE);
+			try {
+				testee.vote(90, 91, 3);
+				fail("Vote ran while its credits were still queued");
+			} catch (final StorageOverloadException e) {
+				assertEquals(2, testee.getPendingCount());
+			} finally {
+				testee.freeSlots(Bulkhead.WRITE);
+			}
+			assertEquals(PbStorage.VoteResult.VOTED, testee.vote(90, 91, 3));
+			assertEquals(0, testee.getPendingCount());
+			testee.flush();
+			assertEquals(4, testee.getCredit(90).getCredit());
+		} finally {
+			testee.deactivate();
+		}
+	}
+
+	/**
+	 * Votes in write-behind mode aren't removed while queued ones of the
+	 * candidate are left, and unbinding writes the queue even when no write
+	 * slot is free.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void testWriteBehindShutdown() throws InterruptedException {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.WRITE_BEHIND_NAME, true);
+		properties.put(PbStorageImpl.WRITE_BEHIND_INTERVAL_NAME, 60000);
+		properties.put(PbStorageImpl.ADMISSION_TIMEOUT_NAME, 20);
+		testee.activate(properties);
+		try {
+			final Vote vote = new Vote(93, 94);
+			vote.setLikes(1);
+			assertTrue(testee.storeVote(vote));
+			testee.occupySlots(Bulkhead.WRITE);
+			try {
+				testee.removeAllVotes(94);
+				fail("Votes removed while one was still queued");
+			} catch (final StorageOverloadException e) {
+				assertEquals(1, testee.getPendingCount());
+			}
+			final int written = testee.written.get();
+			testee.unbind(persistenceProvider);
+			assertEquals(0, testee.getPendingCount());
+			assertEquals(written + 1, testee.written.get());
+			assertEquals(0, testee.getDroppedWrites());
+		} finally {
+			testee.freeSlots(Bulkhead.WRITE);
+			testee.deactivate();
+		}
+	}
+
+	/**
+	 * The storage runs on the configured connection pool, more parallel calls
+	 * than connections wait for a free one, and every connection is returned
+	 * afterwards, also by the writes that failed on a conflict.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void testConnectionPool() throws InterruptedException {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.CONNECTION_POOL_SIZE_NAME, 2);
+		properties.put(PbStorageImpl.STATEMENT_CACHE_SIZE_NAME, 16);
+		testee.activate(properties);
+		try {
+			final JdbcConnectionPool pool = testee.getConnectionPool();
+			assertEquals(2, pool.getMaxConnections());
+			assertEquals("false", testee.getEntityMgrFactory().getProperties()
+					.get("hibernate.show_sql"));
+			final int threads = 8;
+			final CountDownLatch done = new CountDownLatch(threads);
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
+			for (int i = 0; i < threads; ++i) {
+				final int id = 90 + i % 2;
+				new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int j = 0; j < 20; ++j) {
+								testee.storeCredit(new Credit(id, j));
+								assertNotNull(testee.getCredit(id));
+							}
+						} catch (final Throwable thr) {
+							failure.set(thr);
+						} finally {
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+			done.await();
+			assertNull(failure.get());
+			assertEquals(0, pool.getActiveConnections());
+		} finally {
+			testee.deactivate();
+		}
+	}
+
+	/**
+	 * Repeated lookups are served from the caches with copies the caller may
+	 * change, every write invalidates the entry, and the least recently used
+	 * entries make room when a cache is full.
+	 */
+	public void testEntityCache() {
+		final BufferedImage image = new BufferedImage(160, 160, BufferedImage.TYPE_3BYTE_BGR);
+		assertTrue(testee.storeCredit(new Credit(100, 5)));
+		final Credit credit = testee.getCredit(100);
+		credit.setCredit(99);
+		assertEquals(5, testee.getCredit(100).getCredit());
+		final CacheStatistics credits = testee.getCacheStatistics(Cache.CREDIT);
+		assertEquals(1, credits.getMisses());
+		assertEquals(1, credits.getHits());
+		// the cached copy keeps the version, so it can be stored again
+		final Credit cached = testee.getCredit(100);
+		cached.setCredit(6);
+		assertTrue(testee.storeCredit(cached));
+		credit.setCredit(7);
+		assertFalse("Stale credit was stored", testee.storeCredit(credit));
+		assertEquals(6, testee.getCredit(100).getCredit());
+		assertEquals(1, credits.getInvalidations());
+
+		testee.storeCandidate(new Candidate(101, image, "Anna", 20, "", Gender.FEMALE));
+		assertEquals("Anna", testee.getCandidateSummary(101).getName());
+		final Candidate candidate = testee.getCandidate(101);
+		candidate.setName("Berta");
+		assertTrue(testee.storeCandidate(candidate));
+		assertEquals("Berta", testee.getCandidateSummary(101).getName());
+		assertEquals("Berta", testee.getCandidateSummary(101).getName());
+		assertEquals(1, testee.getCacheStatistics(Cache.CANDIDATE).getHits());
+
+		final VotePK pk = new VotePK(101, 102);
+		testee.storeVote(new Vote(101, 102));
+		assertNotNull(testee.getVote(pk));
+		assertNotNull(testee.getVote(pk));
+		assertEquals(1, testee.getCacheStatistics(Cache.VOTE).getHits());
+		assertEquals(1, testee.removeAllVotes(101));
+		assertNull(testee.getVote(pk));
+
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.CACHE_SIZE_NAME, 2);
+		testee.activate(properties);
+		try {
+			for (int id = 110; id < 113; ++id) {
+				assertTrue(testee.storeCredit(new Credit(id, id)));
+				assertEquals(id, testee.getCredit(id).getCredit());
+			}
+			assertEquals(2, credits.getSize());
+			assertTrue(credits.getEvictions() > 0);
+		} finally {
+			testee.deactivate();
+		}
+	}
+
+	/**
+	 * Avatars are stored once per content, the candidates and their
+	 * summaries hold the hash, and a reopened store finds the images of all
+	 * its segments again.
+	 * 
+	 * @throws IOException
+	 */
+	public void testAvatarStore() throws IOException {
+		final File directory = File.createTempFile("avatars", "");
+		assertTrue(directory.delete());
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.AVATAR_DIRECTORY_NAME, directory.getPath());
+		properties.put(PbStorageImpl.AVATAR_SEGMENT_SIZE_NAME, 4096);
+		testee.activate(properties);
+		try {
+			final BufferedImage image = new BufferedImage(160, 160, BufferedImage.TYPE_3BYTE_BGR);
+			final Candidate first = new Candidate(120, image, "Anna", 20, "", Gender.FEMALE);
+			final Candidate second = new Candidate(121, image, "Bert", 20, "", Gender.MALE);
+			assertTrue(testee.storeCandidate(first));
+			assertTrue(testee.storeCandidate(second));
+			final String hash = first.getImageHash();
+			assertEquals(AvatarStore.hash(first.getNewImage()), hash);
+			assertEquals(hash, second.getImageHash());
+			assertEquals(hash, testee.getCandidate(121).getImageHash());
+			assertEquals(hash, testee.getCandidateSummary(120).getImageHash());
+			assertEquals(ByteBuffer.wrap(first.getNewImage()), testee.getAvatar(hash));
+			assertNull(testee.getAvatar(AvatarStore.hash(new byte[] { 1 })));
+
+			// fill more than one segment
+			final AvatarStore store = new AvatarStore(new File(directory, "raw"), 4096);
+			final List<String> hashes = new ArrayList<>();
+			for (int i = 0; i < 10; ++i) {
+				hashes.add(store.put(new byte[1000 + i]));
+			}
+			assertEquals(hashes.get(0), store.put(new byte[1000]));
+			assertEquals(10, store.getCount());
+			try {
+				new AvatarStore(new File(directory, "raw"), 4096);
+				fail("directory opened by two stores");
+			} catch (final IOException e) {
+				// expected
+			}
+			store.close();
+			try {
+				store.put(new byte[1010]);
+				fail("image stored after close");
+			} catch (final IOException e) {
+				// expected
+			}
+			final AvatarStore reopened = new AvatarStore(new File(directory, "raw"), 4096);
+			assertEquals(10, reopened.getCount());
+			assertEquals(1009, reopened.get(hashes.get(9)).remaining());
+			reopened.close();
+
+			// a store for an in-memory database is gone with it
+			final AvatarStore temporary = AvatarStore.createTemporary(4096);
+			temporary.put(new byte[10]);
+			temporary.close();
+			assertFalse(temporary.getDirectory().exists());
+		} finally {
+			testee.deactivate();
+			// back to the default directory, so the temporary one can go
+			testee.activate(new HashMap<String, Object>());
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Test method for {@link PbStorage#storeCandidates(java.util.Collection)}
+	 * and {@link PbStorage#storeCredits(java.util.Collection)} with new,
+	 * stored and repeated ids in more than one JDBC batch, read back with
+	 * {@link PbStorage#getCandidateIds(int, int)}
+	 */
+	public void testStoreBatches() {
+		assertTrue(testee.storeCandidate(new Candidate(140, Images.getMaleAvatar(), "Old", 30, "",
+				Gender.MALE)));
+		assertTrue(testee.storeCredit(new Credit(140, 1)));
+		final List<Candidate> candidates = new ArrayList<>();
+		final List<Credit> credits = new ArrayList<>();
+		for (int id = 140; id < 260; ++id) {
+			candidates.add(new Candidate(id, Images.getFemaleAvatar(), "Seed" + id, 18, "",
+					Gender.FEMALE));
+			credits.add(new Credit(id, id));
+		}
+		candidates.add(new Candidate(259, Images.getFemaleAvatar(), "Twice", 18, "",
+				Gender.FEMALE));
+		assertTrue(testee.storeCandidates(candidates));
+		assertTrue(testee.storeCredits(credits));
+		assertEquals(120, testee.getCandidateCount());
+		assertEquals(Arrays.asList(140, 141, 142), testee.getCandidateIds(130, 143));
+		assertTrue(testee.getCandidateIds(260, 300).isEmpty());
+		assertEquals("Seed140", testee.getCandidate(140).getName());
+		assertEquals("Twice", testee.getCandidate(259).getName());
+		assertEquals(140, testee.getCredit(140).getCredit());
+		assertEquals(200, testee.getCredit(200).getCredit());
+		// the default avatar is stored as is
+		final String hash = testee.getCandidateSummary(200).getImageHash();
+		assertEquals(AvatarStore.hash(Images.getFemaleAvatar()), hash);
+		assertEquals(ByteBuffer.wrap(Images.getFemaleAvatar()), testee.getAvatar(hash));
+
+		// a failing batch stores nothing
+		final List<Credit> conflicting = new ArrayList<>();
+		conflicting.add(new Credit(300, 1));
+		conflicting.add(testee.getCredit(141));
+		conflicting.add(new Credit(141, 2));
+		assertTrue(testee.storeCredit(new Credit(141, 3)));
+		assertFalse(testee.storeCredits(conflicting));
+		assertNull(testee.getCredit(300));
+		assertEquals(3, testee.getCredit(141).getCredit());
+	}
+
+	/**
+	 * Test method for
+	 * {@link pb.persistence.impl.PbStorageImpl#storeModelState(java.util.Collection, java.util.Collection, java.util.Collection)}
+	 * . Stored rows are overwritten whatever their version, the pairs lose
+	 * their other votes.
+	 */
+	public void testStoreModelState() {
+		for (int id = 150; id < 154; ++id) {
+			assertTrue(testee.storeCandidate(new Candidate(id, Images.getMaleAvatar(), "Model"
+					+ id, 20, "", Gender.MALE)));
+			assertTrue(testee.storeCredit(new Credit(id, 10)));
+		}
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(150, 151, 3));
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(152, 150, 3));
+		assertEquals(PbStorage.VoteResult.VOTED, testee.vote(152, 153, 3));
+		final long version = testee.getCandidateListVersion();
+
+		final List<Vote> votes = new ArrayList<>();
+		final Vote vote = new Vote(150, 151);
+		vote.setLikes(3);
+		votes.add(vote);
+		final Vote rVote = new Vote(151, 150);
+		rVote.setLikes(3);
+		votes.add(rVote);
+		final Vote other = new Vote(152, 153);
+		other.setLikes(2);
+		votes.add(other);
+		final List<Credit> credits = new ArrayList<>();
+		credits.add(new Credit(150, 0));
+		credits.add(new Credit(151, 0));
+		credits.add(new Credit(152, 8));
+		credits.add(new Credit(154, 10));
+		assertTrue(testee.storeModelState(Arrays.asList(150, 151), votes, credits));
+
+		assertEquals(3, testee.getVote(new VotePK(150, 151)).getLikes());
+		assertEquals(3, testee.getVote(new VotePK(151, 150)).getLikes());
+		assertNull(testee.getVote(new VotePK(152, 150)));
+		assertEquals(2, testee.getVote(new VotePK(152, 153)).getLikes());
+		assertEquals(0, testee.getCredit(150).getCredit());
+		assertEquals(8, testee.getCredit(152).getCredit());
+		assertEquals(10, testee.getCredit(154).getCredit());
+		assertFalse(testee.getCandidate(150).isAvailable());
+		assertFalse(testee.getCandidate(151).isAvailable());
+		assertTrue(testee.getCandidate(152).isAvailable());
+		assertTrue(version < testee.getCandidateListVersion());
+	}
+
+	/**
+	 * Test that a file database keeps candidates, credits and avatars over a
+	 * restart and that the existing schema is validated instead of dropped
+	 */
+	public void testFileDatabase() throws IOException {
+		final File directory = File.createTempFile("pbdb", "");
+		assertTrue(directory.delete());
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put(PbStorageImpl.DATABASE_FILE_NAME, new File(directory, "pb").getPath());
+		testee.activate(properties);
+		TestPbStorageImpl restarted = null;
+		try {
+			assertEquals(0, testee.getCandidateCount());
+			final BufferedImage image = new BufferedImage(160, 160, BufferedImage.TYPE_3BYTE_BGR);
+			final Candidate candidate = new Candidate(130, image, "Carla", 21, "", Gender.FEMALE);
+			assertTrue(testee.storeCandidate(candidate));
+			assertTrue(testee.storeCredit(new Credit(130, 42)));
+			assertTrue(new File(directory, "pb-avatars").isDirectory());
+			testee.deactivate();
+			testee.unbind(persistenceProvider);
+
+			restarted = new TestPbStorageImpl();
+			restarted.activate(properties);
+			restarted.bind(persistenceProvider);
+			assertNotNull("schema validation failed", restarted.getEntityMgrFactory());
+			assertEquals(1, restarted.getCandidateCount());
+			assertEquals("Carla", restarted.getCandidate(130).getName());
+			assertEquals(42, restarted.getCredit(130).getCredit());
+			assertEquals(ByteBuffer.wrap(candidate.getNewImage()),
+					restarted.getAvatar(restarted.getCandidateSummary(130).getImageHash()));
+		} finally {
+			if (restarted != null) {
+				restarted.deactivate();
+				restarted.unbind(persistenceProvider);
+			} else {
+				testee.deactivate();
+				testee.unbind(persistenceProvider);
+			}
+			// back to the in-memory database for tearDown
+			testee.activate(new HashMap<String, Object>());
+			testee.bind(persistenceProvider);
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Deletes a file or a directory with its content
+	 */
+	protected void delete(final File file) {
+		final File children[] = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
 	/**
 	 * Test Implementation of the PersistenceProvider
 	 * 
@@ -190,7 +1089,7 @@ public class PBStorageTestCase extends TestCase {
 		@SuppressWarnings("rawtypes")
 		@Override
 		public EntityManagerFactory createEntityManagerFactory(final String emName, final Map map) {
-			return Persistence.createEntityManagerFactory(emName);
+			return Persistence.createEntityManagerFactory(emName, map);
 		}
 
 		/*
@@ -224,6 +1123,115 @@ public class PBStorageTestCase extends TestCase {
 	 * @author oliver
 	 */
 	protected final class TestPbStorageImpl extends PbStorageImpl {
+		protected final AtomicInteger written = new AtomicInteger();
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.persistence.impl.PbStorageImpl#activate(java.util.Map)
+		 */
+		@Override
+		public void activate(final Map<String, ?> properties) {
+			super.activate(properties);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.persistence.impl.PbStorageImpl#deactivate()
+		 */
+		@Override
+		public void deactivate() {
+			super.deactivate();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.persistence.impl.PbStorageImpl#flush()
+		 */
+		@Override
+		public int flush() {
+			return super.flush();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.persistence.impl.PbStorageImpl#flush(boolean)
+		 */
+		@Override
+		protected int flush(final boolean admitted) {
+			final int ret = super.flush(admitted);
+			written.addAndGet(ret);
+			return ret;
+		}
+
+		/**
+		 * Takes all database slots of a bulkhead away, as a burst of long
+		 * calls would
+		 * 
+		 * @param bulkhead
+		 *            the bulkhead to block
+		 * @throws InterruptedException
+		 */
+		public void occupySlots(final Bulkhead bulkhead) throws InterruptedException {
+			((Admission) getAdmissionStatistics(bulkhead)).close();
+		}
+
+		/**
+		 * Gives the slots taken by {@link #occupySlots(Bulkhead)} back
+		 * 
+		 * @param bulkhead
+		 *            the blocked bulkhead
+		 */
+		public void freeSlots(final Bulkhead bulkhead) {
+			((Admission) getAdmissionStatistics(bulkhead)).open();
+		}
+
+		/**
+		 * @return the pool of the database connections
+		 */
+		public JdbcConnectionPool getConnectionPool() {
+			return connectionPool;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.persistence.impl.PbStorageImpl#vote(javax.persistence.
+		 * EntityManager, int, int, int)
+		 */
+		@Override
+		public VoteResult vote(final EntityManager em, final int voter, final int voteFor,
+				final int maxLikes) {
+			return super.vote(em, voter, voteFor, maxLikes);
+		}
+
+		/**
+		 * @param thr
+		 *            the exception thrown by the persistence layer
+		 * @return true when the operation may succeed when repeated
+		 */
+		public boolean isConflicting(final Throwable thr) {
+			return isConflict(thr);
+		}
+
+		/**
+		 * @return the factory of the bound provider
+		 */
+		public EntityManagerFactory getEntityMgrFactory() {
+			return entityMgrFactory;
+		}
+
+		/**
+		 * @return the number of queued entities
+		 */
+		public int getPendingCount() {
+			synchronized (pending) {
+				return pending.size();
+			}
+		}
 
 		/*
 		 * (non-Javadoc)
@@ -247,4 +1255,67 @@ public class PBStorageTestCase extends TestCase {
 			super.unbind(provider);
 		}
 	}
+
+	/**
+	 * Helper class that makes protected methods from PbStorageAsyncImpl
+	 * accessable.
+	 * 
+	 * @author oliver
+	 */
+	protected final class TestPbStorageAsyncImpl extends PbStorageAsyncImpl {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.persistence.impl.PbStorageAsyncImpl#activate(java.util.Map)
+		 */
+		@Override
+		public void activate(final Map<String, ?> properties) {
+			super.activate(properties);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see pb.persistence.impl.PbStorageAsyncImpl#deactivate()
+		 */
+		@Override
+		public void deactivate() {
+			super.deactivate();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * pb.persistence.impl.PbStorageAsyncImpl#submit(java.util.concurrent
+		 * .Callable)
+		 */
+		@Override
+		public <T> CompletableFuture<T> submit(final Callable<T> call) {
+			return super.submit(call);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * pb.persistence.impl.PbStorageAsyncImpl#bind(pb.persistence.PbStorage)
+		 */
+		@Override
+		public void bind(final PbStorage storage) {
+			super.bind(storage);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * pb.persistence.impl.PbStorageAsyncImpl#unbind(pb.persistence.PbStorage)
+		 */
+		@Override
+		public void unbind(final PbStorage storage) {
+			super.unbind(storage);
+		}
+	}
 }
@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.spi.PersistenceProvider;
+
+import org.hibernate.ejb.HibernatePersistence;
+
+import pb.persistence.entity.Candidate;
+import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.Credit;
+import pb.persistence.entity.Vote;
+import pb.persistence.impl.PbStorageImpl;
+import pb.persistence.impl.SchemaIndexes;
+
+/**
+ * Measures the latency of the storage queries and of a vote with and without
+ * the schema indexes for growing numbers of votes. Every candidate casts and
+ * receives about 50 votes. Not part of the test suite, run it with
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=pb.persistence.StorageBenchmark
+ *     -Dexec.classpathScope=test [-Dexec.args="10000 100000 1000000"]
+ * </pre>
+ * 
+ * @author oliver
+ */
+public class StorageBenchmark {
+
+	protected static final int votesPerCandidate = 50;
+	protected static final int rounds = 200;
+	protected static final int pageSize = 20;
+
+	protected final BenchmarkStorage storage = new BenchmarkStorage();
+	protected final Random random = new Random(4711);
+
+	public static void main(final String[] args) {
+		final String sizes[] = args.length > 0 ? args : new String[] { "10000", "100000",
+				"1000000" };
+		final StorageBenchmark benchmark = new StorageBenchmark();
+		benchmark.storage.bind(new BenchmarkPersistence());
+		try {
+			System.out.printf("%10s %-8s %12s %12s %12s %12s %12s %12s%n", "votes", "indexes",
+					"byVoter", "forCandidate", "votingPairs", "byGender", "genderPage", "vote");
+			for (final String size : sizes) {
+				benchmark.run(Integer.parseInt(size));
+			}
+		} finally {
+			benchmark.storage.unbind();
+		}
+	}
+
+	/**
+	 * Fills the database with the given number of votes and prints the mean
+	 * latencies without and with the indexes in microseconds.
+	 */
+	protected void run(final int votes) {
+		final int candidates = Math.max(votes / votesPerCandidate, 1);
+		fill(candidates, votes);
+		SchemaIndexes.drop(storage.getEntityMgrFactory());
+		print(votes, "without", candidates);
+		SchemaIndexes.create(storage.getEntityMgrFactory());
+		print(votes, "with", candidates);
+	}
+
+	protected void print(final int votes, final String indexes, final int candidates) {
+		// one untimed pass warms up the caches and the JIT
+		measure(candidates);
+		final double latencies[] = measure(candidates);
+		System.out.printf("%10d %-8s %12.1f %12.1f %12.1f %12.1f %12.1f %12.1f%n", votes,
+				indexes, latencies[0], latencies[1], latencies[2], latencies[3], latencies[4],
+				latencies[5]);
+	}
+
+	/**
+	 * @return the mean latency of each query in microseconds
+	 */
+	protected double[] measure(final int candidates) {
+		final long nanos[] = new long[6];
+		for (int i = 0; i < rounds; ++i) {
+			final int id = random.nextInt(candidates);
+			long start = System.nanoTime();
+			storage.getVotesByCandidateId(id);
+			nanos[0] += System.nanoTime() - start;
+			start = System.nanoTime();
+			storage.getVotesForCandidateId(id);
+			nanos[1] += System.nanoTime() - start;
+			start = System.nanoTime();
+			storage.getVotingPairs(id);
+			nanos[2] += System.nanoTime() - start;
+			// reading all candidates of a gender is much heavier, sample it less
+			if (i % 20 == 0) {
+				start = System.nanoTime();
+				storage.getCandidateByGender(i % 40 == 0 ? Gender.MALE : Gender.FEMALE);
+				nanos[3] += (System.nanoTime() - start) * 20;
+			}
+			// a page of the candidate list, as the web front ends read it
+			final Gender gender = i % 2 == 0 ? Gender.MALE : Gender.FEMALE;
+			start = System.nanoTime();
+			storage.getCandidateSummariesByGender(gender, id, pageSize);
+			nanos[4] += System.nanoTime() - start;
+			// likes never reach the limit, so no vote pairs and removes votes
+			start = System.nanoTime();
+			storage.vote(id, random.nextInt(candidates), Integer.MAX_VALUE);
+			nanos[5] += System.nanoTime() - start;
+		}
+		final double ret[] = new double[nanos.length];
+		for (int i = 0; i < nanos.length; ++i) {
+			ret[i] = nanos[i] / 1000.0 / rounds;
+		}
+		return ret;
+	}
+
+	/**
+	 * Replaces all candidates, credits and votes with generated ones.
+	 */
+	protected void fill(final int candidates, final int votes) {
+		final EntityManager em = storage.getEntityMgrFactory().createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.createNativeQuery("delete from " + Vote.TABLE_NAME).executeUpdate();
+			em.createNativeQuery("delete from " + Candidate.TABLE_NAME).executeUpdate();
+			em.createNativeQuery("delete from " + Credit.TABLE_NAME).executeUpdate();
+			em.createNativeQuery(
+					"insert into " + Candidate.TABLE_NAME + " (" + Candidate.COLUMN_ID + ", "
+							+ Candidate.COLUMN_IMAGE_COUNT + ", " + Candidate.COLUMN_NAME + ", "
+							+ Candidate.COLUMN_SD + ", " + Candidate.COLUMN_GENDER + ", "
+							+ Candidate.COLUMN_AGE + ", " + Candidate.COLUMN_AVAILABLE + ", "
+							+ Candidate.COLUMN_VERSION + ") select x, 0, 'Candidate ' || x, '', "
+							+ "case when mod(x, 2) = 0 then 'MALE' else 'FEMALE' end, 20, "
+							+ "mod(x, 10) > 0, 0 from system_range(0, " + (candidates - 1) + ")")
+					.executeUpdate();
+			em.createNativeQuery(
+					"insert into " + Credit.TABLE_NAME + " (" + Credit.COLUMN_ID + ", "
+							+ Credit.COLUMN_CREDIT + ", " + Credit.COLUMN_VERSION
+							+ ") select x, " + Integer.MAX_VALUE + ", 0 from system_range(0, "
+							+ (candidates - 1) + ")").executeUpdate();
+			// the prime factor spreads the votes of a voter over all candidates
+			em.createNativeQuery(
+					"insert into " + Vote.TABLE_NAME + " (" + Vote.COLUMN_VOTER_ID + ", "
+							+ Vote.COLUMN_VOTE_FOR_ID + ", " + Vote.COLUMN_LIKES + ", "
+							+ Vote.COLUMN_VERSION + ") select x / " + votesPerCandidate
+							+ ", mod(x * 7919, " + candidates + "), mod(x, 4), 0"
+							+ " from system_range(0, " + (votes - 1) + ")").executeUpdate();
+			em.getTransaction().commit();
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
+		}
+	}
+
+	/**
+	 * Storage giving access to its factory.
+	 * 
+	 * @author oliver
+	 */
+	protected static class BenchmarkStorage extends PbStorageImpl {
+
+		protected void bind(final PersistenceProvider persistence) {
+			super.bind(persistence);
+		}
+
+		protected void unbind() {
+			super.unbind(provider);
+		}
+
+		protected EntityManagerFactory getEntityMgrFactory() {
+			return entityMgrFactory;
+		}
+	}
+
+	/**
+	 * The test persistence unit without logging every statement.
+	 * 
+	 * @author oliver
+	 */
+	protected static class BenchmarkPersistence extends HibernatePersistence {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.hibernate.ejb.HibernatePersistence#createEntityManagerFactory
+		 * (java.lang.String, java.util.Map)
+		 */
+		@Override
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public EntityManagerFactory createEntityManagerFactory(final String name, final Map map) {
+			final Map<String, Object> properties = new HashMap<>();
+			if (map != null) {
+				properties.putAll(map);
+			}
+			properties.put("hibernate.show_sql", "false");
+			return super.createEntityManagerFactory(name, properties);
+		}
+	}
+}
@@ -54,12 +54,17 @@ public interface ProfileService extends RemoteService {
 	public Profile getProfileById(final int id) throws ServiceException;
 
 	/**
-	 * returns a list of possible partners for this user
+	 * returns a page of possible partners for this user, ordered by their id
 	 * 
+	 * @param afterId
+	 *            id of the last partner of the previous page, -1 for the first
+	 *            page
+	 * @param limit
+	 *            maximum number of partners to return
 	 * @return a List of possible partners
 	 * @throws Exception
 	 */
-	public Profile[] getCandidates() throws ServiceException;
+	public Profile[] getCandidates(int afterId, int limit) throws ServiceException;
 
 	/**
 	 * adds a vote to the candidate with the given id
@@ -19,6 +19,9 @@
  */
 package pb.web.gwt.client.comp;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.web.gwt.client.Messages;
 import pb.web.gwt.client.ProfileServiceAsync;
 import pb.web.gwt.client.VoteDialog;
@@ -51,7 +54,9 @@ public class CandidatesComposite extends Composite {
 
 	private static final int REFRESH_INTERVAL = 60000;
 	protected int page = 0;
-	protected Profile[] profiles = null;
+	// id after which each page visited so far starts, the first page starts
+	// after -1
+	protected final List<Integer> pageStarts = new ArrayList<Integer>();
 	protected int maxPerPage = 10;
 
 	final FlexTable candidatesFlexTable;
@@ -102,12 +107,10 @@ public class CandidatesComposite extends Composite {
 			 */
 			@Override
 			public void onClick(final ClickEvent event) {
-				--page;
-				if (profiles == null) {
-					refreshList();
-				} else {
-					updateTable(profiles);
+				if (page > 0) {
+					--page;
 				}
+				refreshList();
 			}
 		});
 
@@ -124,17 +127,16 @@ public class CandidatesComposite extends Composite {
 			 */
 			@Override
 			public void onClick(final ClickEvent event) {
-				++page;
-				if (profiles == null) {
-					refreshList();
-				} else {
-					updateTable(profiles);
+				if (page + 1 < pageStarts.size()) {
+					++page;
 				}
+				refreshList();
 			}
 		});
 
 		verticalPanel_2.setCellHorizontalAlignment(nextButton, HasHorizontalAlignment.ALIGN_RIGHT);
 
+		pageStarts.add(-1);
 		refreshList();
 
 		// setup timer to refresh list automatically
@@ -159,10 +161,12 @@ public class CandidatesComposite extends Composite {
 	}
 
 	/**
-	 * Requests the current list of available candidates and calls UpdateTable
-	 * when it arrived.
+	 * Requests the current page of available candidates and calls UpdateTable
+	 * when it arrived. One candidate more than shown is requested to know
+	 * whether there is a next page.
 	 */
 	protected void refreshList() {
+		final int requestedPage = page;
 		// Set up the callback object.
 		final AsyncCallback<Profile[]> callback = new AsyncCallback<Profile[]>() {
 			/**
@@ -174,40 +178,42 @@ public class CandidatesComposite extends Composite {
 			}
 
 			/**
-			 * if request succeded store the current list for page update and
-			 * refresh the Flextable
+			 * if request succeded refresh the Flextable, an empty page flips
+			 * back to the previous one
 			 * 
 			 * @param result
-			 *            the list of currently available candidates
+			 *            the page of currently available candidates
 			 */
 			@Override
 			public void onSuccess(final Profile[] result) {
-				profiles = result;
-				updateTable(result);
+				if (requestedPage != page) {
+					// the user flipped while the request was running
+					return;
+				}
+				if ((result.length == 0) && (page > 0)) {
+					--page;
+					refreshList();
+				} else {
+					updateTable(result);
+				}
 			}
 		};
-		profileService.getCandidates(callback);
+		profileService.getCandidates(pageStarts.get(page), maxPerPage + 1, callback);
 	}
 
 	/**
-	 * updates the flextable with the new list of Profiles. It also checks that
-	 * the page field shows to a valid page and resets the parameter if not.
+	 * updates the flextable with the new page of Profiles. It also records
+	 * where the next page starts when there is one.
 	 * 
 	 * @param profiles
-	 *            list of active profiles
+	 *            page of active profiles, one more than shown when there is a
+	 *            next page
 	 */
 	protected void updateTable(final Profile[] profiles) {
-		candidatesFlexTable.clear();
+		candidatesFlexTable.removeAllRows();
 
-		int pages = profiles.length / maxPerPage;
-		if (profiles.length % maxPerPage != 0) {
-			pages++;
-		}
-		int lPage = Math.min(page, pages - 1);
-		lPage = Math.max(lPage, 0);
-		page = lPage;
-
-		for (int i = lPage * maxPerPage; (i < profiles.length) && (i < (lPage + 1) * maxPerPage); i++) {
+		final int shown = Math.min(profiles.length, maxPerPage);
+		for (int i = 0; i < shown; i++) {
 			final Profile profile = profiles[i];
 			final PushButton button = new PushButton(new Image(profile.getAvatarUrl()));
 			button.setWidth("160px");
@@ -226,17 +232,17 @@ public class CandidatesComposite extends Composite {
 			verticalPanel.add(descriptionLabel);
 			candidatesFlexTable.setWidget(i, 1, verticalPanel);
 		}
-		if (lPage == 0) {
-			prevButton.setEnabled(false);
-		} else {
-			prevButton.setEnabled(true);
-		}
 
-		if (lPage >= pages - 1) {
-			nextButton.setEnabled(false);
-		} else {
-			nextButton.setEnabled(true);
+		// forget the starts behind this page, they may have moved
+		while (pageStarts.size() > page + 1) {
+			pageStarts.remove(pageStarts.size() - 1);
+		}
+		final boolean hasNext = profiles.length > maxPerPage;
+		if (hasNext) {
+			pageStarts.add(profiles[maxPerPage - 1].getId());
 		}
+		prevButton.setEnabled(page > 0);
+		nextButton.setEnabled(hasNext);
 	}
 
 	/**
@@ -0,0 +1,475 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.web.gwt.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses the responses of the web application for clients accepting
+ * gzip. Static files come from the gzipped variant the Precompress linker
+ * writes next to them, so they are compressed only once at build time. Other
+ * text responses are gzipped while they are written. Images and responses
+ * that are encoded already, like the larger RPC answers, pass unchanged.
+ * 
+ * @author oliver
+ */
+public class CompressionFilter implements Filter {
+
+	protected static final int bufferSize = 8192;
+	/** below this length the gzip header costs more than it saves */
+	protected static final int minimumLength = 256;
+
+	protected ServletContext context = null;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
+	 */
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		context = config.getServletContext();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest,
+	 * javax.servlet.ServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	public void doFilter(final ServletRequest req, final ServletResponse resp,
+			final FilterChain chain) throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest)) {
+			chain.doFilter(req, resp);
+			return;
+		}
+		final HttpServletRequest request = (HttpServletRequest) req;
+		final HttpServletResponse response = (HttpServletResponse) resp;
+		// caches must not hand a plain response to a gzip client or vice versa
+		response.addHeader("Vary", "Accept-Encoding");
+		if (!acceptsGzip(request)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		if ("GET".equals(request.getMethod()) && servePrecompressed(request, response)) {
+			return;
+		}
+		final GzipResponse gzipResponse = new GzipResponse(response);
+		try {
+			chain.doFilter(request, gzipResponse);
+		} finally {
+			gzipResponse.finish();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.servlet.Filter#destroy()
+	 */
+	@Override
+	public void destroy() {
+		context = null;
+	}
+
+	/**
+	 * Checks whether the client takes gzipped responses
+	 * 
+	 * @param request
+	 *            the request
+	 * @return true when gzip is accepted with a quality above 0
+	 */
+	protected static boolean acceptsGzip(final HttpServletRequest request) {
+		final String accepted = request.getHeader("Accept-Encoding");
+		if (accepted != null) {
+			for (final String coding : accepted.split(",")) {
+				final String parts[] = coding.split(";");
+				if (parts[0].trim().equalsIgnoreCase("gzip")) {
+					return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Answers with the gzipped variant of a static file when there is one. A
+	 * conditional request for an unchanged file is answered with 304 Not
+	 * Modified, like the default servlet does, so the host page and the
+	 * nocache scripts aren't sent again on every visit.
+	 * 
+	 * @param request
+	 *            the request of the file
+	 * @param response
+	 *            the response
+	 * @return true when the response was written
+	 * @throws IOException
+	 *             when the response can't be written
+	 */
+	protected boolean servePrecompressed(final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		final String path = request.getServletPath()
+				+ (request.getPathInfo() == null ? "" : request.getPathInfo());
+		if (path.endsWith("/") || path.endsWith(".gz")) {
+			return false;
+		}
+		final URL compressed = context.getResource(path + ".gz");
+		if (compressed == null) {
+			return false;
+		}
+		final URLConnection connection = compressed.openConnection();
+		// a file connection opens the stream to read the headers, so a 304 closes it too
+		try (InputStream in = connection.getInputStream()) {
+			final long lastModified = connection.getLastModified();
+			if (lastModified > 0) {
+				final String etag = "\"" + Long.toHexString(lastModified) + "-"
+						+ Integer.toHexString(connection.getContentLength()) + "-gzip\"";
+				response.setHeader("ETag", etag);
+				response.setDateHeader("Last-Modified", lastModified);
+				if (isNotModified(request, etag, lastModified)) {
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return true;
+				}
+			}
+			final String contentType = context.getMimeType(path);
+			if (contentType != null) {
+				response.setContentType(contentType);
+			}
+			response.setHeader("Content-Encoding", "gzip");
+			if (connection.getContentLength() >= 0) {
+				response.setContentLength(connection.getContentLength());
+			}
+			final OutputStream out = response.getOutputStream();
+			final byte buffer[] = new byte[bufferSize];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the conditional headers of a request. If-None-Match wins over
+	 * If-Modified-Since, as HTTP/1.1 requires.
+	 * 
+	 * @param request
+	 *            the request of the file
+	 * @param etag
+	 *            the entity tag of the file
+	 * @param lastModified
+	 *            the modification time of the file in ms
+	 * @return true when the client has the current file
+	 */
+	protected static boolean isNotModified(final HttpServletRequest request, final String etag,
+			final long lastModified) {
+		final String noneMatch = request.getHeader("If-None-Match");
+		if (noneMatch != null) {
+			for (final String tag : noneMatch.split(",")) {
+				final String trimmed = tag.trim();
+				if ("*".equals(trimmed) || etag.equals(trimmed.replaceFirst("^W/", ""))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long modifiedSince;
+		try {
+			modifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (final IllegalArgumentException e) {
+			// a malformed date is ignored
+			modifiedSince = -1;
+		}
+		// the header has second precision
+		return modifiedSince >= 0 && lastModified / 1000 <= modifiedSince / 1000;
+	}
+
+	/**
+	 * Checks whether a response of the given type is worth compressing
+	 * 
+	 * @param contentType
+	 *            the content type of the response, may be null
+	 * @return true for text, scripts and the RPC payloads
+	 */
+	protected static boolean isCompressible(final String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		final String type = contentType.toLowerCase();
+		return type.startsWith("text/") || type.contains("javascript") || type.contains("json")
+				|| type.contains("xml");
+	}
+
+	/**
+	 * Response deciding on compression when the body is opened. Until then a
+	 * content length is held back, since it changes with the compression.
+	 * 
+	 * @author oliver
+	 */
+	protected static class GzipResponse extends HttpServletResponseWrapper {
+
+		protected final HttpServletResponse response;
+		protected boolean encoded = false;
+		protected int contentLength = -1;
+		protected GzipStream stream = null;
+		protected ServletOutputStream plainStream = null;
+		protected PrintWriter writer = null;
+
+		/**
+		 * @param response
+		 *            the response to the client
+		 */
+		public GzipResponse(final HttpServletResponse response) {
+			super(response);
+			this.response = response;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see javax.servlet.ServletResponseWrapper#setContentLength(int)
+		 */
+		@Override
+		public void setContentLength(final int length) {
+			if (stream == null && plainStream == null) {
+				contentLength = length;
+			} else if (plainStream != null) {
+				super.setContentLength(length);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * javax.servlet.http.HttpServletResponseWrapper#setHeader(java.lang
+		 * .String, java.lang.String)
+		 */
+		@Override
+		public void setHeader(final String name, final String value) {
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				setContentLength(Integer.parseInt(value));
+			} else {
+				encoded |= "Content-Encoding".equalsIgnoreCase(name);
+				super.setHeader(name, value);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * javax.servlet.http.HttpServletResponseWrapper#addHeader(java.lang
+		 * .String, java.lang.String)
+		 */
+		@Override
+		public void addHeader(final String name, final String value) {
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				setContentLength(Integer.parseInt(value));
+			} else {
+				encoded |= "Content-Encoding".equalsIgnoreCase(name);
+				super.addHeader(name, value);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see javax.servlet.ServletResponseWrapper#getOutputStream()
+		 */
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (stream != null) {
+				return stream;
+			}
+			if (plainStream == null) {
+				if (!encoded && isCompressible(getContentType())
+						&& (contentLength < 0 || contentLength >= minimumLength)) {
+					stream = new GzipStream(response);
+					return stream;
+				}
+				if (contentLength >= 0) {
+					super.setContentLength(contentLength);
+				}
+				plainStream = super.getOutputStream();
+			}
+			return plainStream;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see javax.servlet.ServletResponseWrapper#getWriter()
+		 */
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(),
+						getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see javax.servlet.ServletResponseWrapper#flushBuffer()
+		 */
+		@Override
+		public void flushBuffer() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (stream != null) {
+				stream.flush();
+			}
+			super.flushBuffer();
+		}
+
+		/**
+		 * Writes the end of the gzip stream, when the body was compressed
+		 * 
+		 * @throws IOException
+		 *             when the response can't be written
+		 */
+		public void finish() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (stream != null) {
+				stream.finish();
+			} else if (plainStream == null && contentLength >= 0) {
+				// no body was written, the length still belongs to the response
+				super.setContentLength(contentLength);
+			}
+		}
+	}
+
+	/**
+	 * Gzip stream over the response. The header is only set and written with
+	 * the first byte, so a response without body stays without.
+	 * 
+	 * @author oliver
+	 */
+	protected static class GzipStream extends ServletOutputStream {
+
+		protected final HttpServletResponse response;
+		protected GZIPOutputStream gzip = null;
+
+		/**
+		 * @param response
+		 *            the response to the client
+		 */
+		public GzipStream(final HttpServletResponse response) {
+			super();
+			this.response = response;
+		}
+
+		/**
+		 * @return the gzip stream, opened with the first byte
+		 * @throws IOException
+		 *             when the response can't be written
+		 */
+		protected GZIPOutputStream gzip() throws IOException {
+			if (gzip == null) {
+				response.setHeader("Content-Encoding", "gzip");
+				gzip = new GZIPOutputStream(response.getOutputStream(), bufferSize);
+			}
+			return gzip;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write(final int b) throws IOException {
+			gzip().write(b);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (len > 0) {
+				gzip().write(b, off, len);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (gzip != null) {
+				gzip.flush();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			finish();
+			response.getOutputStream().close();
+		}
+
+		/**
+		 * Writes the end of the gzip stream, when anything was written
+		 * 
+		 * @throws IOException
+		 *             when the response can't be written
+		 */
+		public void finish() throws IOException {
+			if (gzip != null) {
+				gzip.finish();
+			}
+		}
+	}
+}
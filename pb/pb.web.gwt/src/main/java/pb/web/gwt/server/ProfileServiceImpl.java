@@ -21,16 +21,25 @@ package pb.web.gwt.server;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import pb.model.FavoriteModel;
 import pb.model.FavoriteModel.Voting;
 import pb.model.FavoriteModelException;
 import pb.persistence.PbStorage;
-import pb.persistence.entity.Candidate;
+import pb.persistence.PbStorageAsync;
+import pb.persistence.StorageOverloadException;
+import pb.persistence.entity.Credit;
 import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
 import pb.web.gwt.client.ProfileService;
 import pb.web.gwt.server.impl.Log;
 import pb.web.gwt.server.impl.ServiceRequester;
@@ -51,7 +60,10 @@ import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileService {
 
 	protected PbStorage storage = null;
+	protected PbStorageAsync storageAsync = null;
 	protected FavoriteModel model = null;
+	protected static final int maxPageSize = 100;
+	protected static final int creditTimeout = 2000;
 
 	/*
 	 * (non-Javadoc)
@@ -90,11 +102,12 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 	 * Converts a Candidate to an Profile object.
 	 * 
 	 * @param candidate
-	 *            the candidate that shall be presented in the Web page
+	 *            the summary of the candidate that shall be presented in the
+	 *            Web page
 	 * @return a profile containing the copied informations from the candidates
 	 *         object
 	 */
-	protected Profile convertCandidate(final Candidate candidate) {
+	protected Profile convertCandidate(final CandidateSummary candidate) {
 		if (candidate == null) {
 			return null;
 		}
@@ -115,7 +128,7 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 		if (storage == null) {
 			throw new ServiceException("Storage Service is not available");
 		} else {
-			final Candidate candidate = storage.getCandidate(id);
+			final CandidateSummary candidate = storage.getCandidateSummary(id);
 			if (candidate == null) {
 				Log.info("Someone requests unknown Profile %d ", id);
 			} else {
@@ -144,6 +157,79 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 		return ret;
 	}
 
+	/**
+	 * Waits up to creditTimeout ms for the credit read on the database
+	 * executor. When the executor was saturated and rejected the read, or
+	 * the async service isn't bound, the credit is read on the request thread.
+	 * 
+	 * @param id
+	 *            id of the candidate
+	 * @param pendingCredit
+	 *            the read on the database executor or null
+	 * @return the credit of the candidate
+	 * @throws StorageOverloadException
+	 *             when the read did not finish in time
+	 */
+	protected int awaitCredit(final int id, final CompletableFuture<Credit> pendingCredit)
+			throws InterruptedException, ExecutionException {
+		if (pendingCredit != null) {
+			try {
+				return pendingCredit.get(creditTimeout, TimeUnit.MILLISECONDS).getCredit();
+			} catch (final ExecutionException e) {
+				if (!(e.getCause() instanceof RejectedExecutionException)) {
+					throw e;
+				}
+				Log.debug("Database executor saturated, reading the credit of %d directly", id);
+			} catch (final TimeoutException e) {
+				pendingCredit.cancel(false);
+				throw new StorageOverloadException("Credit of " + id + " not read within "
+						+ creditTimeout + " ms");
+			}
+		}
+		return storage.getCredit(id).getCredit();
+	}
+
+	/**
+	 * Wraps a failure into the exception sent to the client. Overloads are
+	 * thrown as they are, so they end up in doUnexpectedFailure.
+	 * 
+	 * @param thr
+	 *            the failure
+	 * @return the exception for the client
+	 */
+	protected ServiceException failure(final Throwable thr) {
+		final StorageOverloadException overload = StorageOverloadException.find(thr);
+		if (overload != null) {
+			throw overload;
+		}
+		return new ServiceException(thr);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.google.gwt.user.server.rpc.RemoteServiceServlet#doUnexpectedFailure
+	 * (java.lang.Throwable)
+	 */
+	@Override
+	protected void doUnexpectedFailure(final Throwable e) {
+		final StorageOverloadException overload = StorageOverloadException.find(e);
+		if (overload == null) {
+			super.doUnexpectedFailure(e);
+		} else {
+			Log.warning("Request rejected: %s", overload.getMessage());
+			final HttpServletResponse response = getThreadLocalResponse();
+			try {
+				response.reset();
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.setHeader("Retry-After", Integer.toString(overload.getRetryAfter()));
+			} catch (final IllegalStateException ise) {
+				Log.error("Response already committed, can't send overload", ise);
+			}
+		}
+	}
+
 	/**
 	 * Bind method for the PBStorage instance. Is called by the ServiceBroker
 	 * 
@@ -166,6 +252,30 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 		}
 	}
 
+	/**
+	 * Bind method for the PBStorageAsync instance. Is called by the
+	 * ServiceBroker
+	 * 
+	 * @param storageAsync
+	 */
+	public void bind(final PbStorageAsync storageAsync) {
+		Log.info("Profile Service received PBStorageAsync");
+		this.storageAsync = storageAsync;
+	}
+
+	/**
+	 * Unbind method for the PBStorageAsync instance. Is called by the
+	 * ServiceBroker
+	 * 
+	 * @param storageAsync
+	 */
+	public void unbind(final PbStorageAsync storageAsync) {
+		if (storageAsync.equals(this.storageAsync)) {
+			Log.info("Profile Service lost PBStorageAsync");
+			this.storageAsync = null;
+		}
+	}
+
 	/**
 	 * Bind method for the FavoriteModel instance. Is called by the
 	 * ServiceBroker
@@ -193,10 +303,10 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see pb.web.gwt.client.ProfileService#getCandidates()
+	 * @see pb.web.gwt.client.ProfileService#getCandidates(int, int)
 	 */
 	@Override
-	public Profile[] getCandidates() throws ServiceException {
+	public Profile[] getCandidates(final int afterId, final int limit) throws ServiceException {
 		Profile ret[] = null;
 
 		final HttpServletRequest request = this.getThreadLocalRequest();
@@ -204,13 +314,14 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 			throw new ServiceException("Storage Service is not available");
 		} else {
 			final int id = storage.getId(request.getRemoteAddr());
-			final Candidate candidate = storage.getCandidate(id);
-			final List<Candidate> candidates = storage.getCandidateByGender(Gender.FEMALE
-					.equals(candidate.getGender()) ? Gender.MALE : Gender.FEMALE);
+			final CandidateSummary candidate = storage.getCandidateSummary(id);
+			final List<CandidateSummary> candidates = storage.getCandidateSummariesByGender(
+					Gender.FEMALE.equals(candidate.getGender()) ? Gender.MALE : Gender.FEMALE,
+					afterId, Math.max(1, Math.min(limit, maxPageSize)));
 			ret = new Profile[candidates.size()];
-			final Iterator<Candidate> iter = candidates.iterator();
+			final Iterator<CandidateSummary> iter = candidates.iterator();
 			for (int i = 0; i < ret.length && iter.hasNext(); ++i) {
-				final Candidate other = iter.next();
+				final CandidateSummary other = iter.next();
 				ret[i] = convertCandidate(other);
 			}
 		}
@@ -236,7 +347,7 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 			try {
 				model.voteForCandidate(myId, id);
 			} catch (final FavoriteModelException e) {
-				throw new ServiceException(e);
+				throw failure(e);
 			}
 		}
 	}
@@ -258,8 +369,13 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 		} else {
 			try {
 				final int id = storage.getId(request.getRemoteAddr());
-				credit = storage.getCredit(id).getCredit();
+				// the credit is read on the database executor while the model
+				// collects the votings
+				final PbStorageAsync async = storageAsync;
+				final CompletableFuture<Credit> pendingCredit = async == null ? null : async
+						.getCredit(id);
 				final List<Voting> votings = model.getVotings(id);
+				credit = awaitCredit(id, pendingCredit);
 				favorites = new Favorite[votings.size()];
 				for (int i = 0; i < favorites.length && i < votings.size(); ++i) {
 					final Voting voting = votings.get(i);
@@ -272,7 +388,12 @@ public class ProfileServiceImpl extends RemoteServiceServlet implements ProfileS
 					favorite.setAvatarUrl(getAvatarImageUrl(voting.getOtherId(), 0));
 				}
 			} catch (final FavoriteModelException e) {
+				throw failure(e);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
 				throw new ServiceException(e);
+			} catch (final ExecutionException e) {
+				throw failure(e.getCause());
 			}
 		}
 		return new FavoriteList(credit, favorites);
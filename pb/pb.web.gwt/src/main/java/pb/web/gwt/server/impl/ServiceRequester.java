@@ -27,6 +27,7 @@ import org.apache.felix.scr.annotations.References;
 
 import pb.model.FavoriteModel;
 import pb.persistence.PbStorage;
+import pb.persistence.PbStorageAsync;
 
 /**
  * Proxy that requests all required Services for the Servlet instance
@@ -36,6 +37,7 @@ import pb.persistence.PbStorage;
 @Component(name = "lb.web.gwt.sr", label = "lb.web.gwt.sr", immediate = true)
 @References(value = {
 		@Reference(name = "PBStorage", bind = "bind", unbind = "unbind", referenceInterface = PbStorage.class, cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC),
+		@Reference(name = "PBStorageAsync", bind = "bind", unbind = "unbind", referenceInterface = PbStorageAsync.class, cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC),
 		@Reference(name = "FavoriteModel", bind = "bind", unbind = "unbind", referenceInterface = FavoriteModel.class, cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC) })
 public class ServiceRequester {
 
@@ -65,6 +67,30 @@ public class ServiceRequester {
 		unbind(PbStorage.class, storage);
 	}
 
+	/**
+	 * Bind method for service component runtime to bind an asynchronous
+	 * Storage service to this proxy
+	 * 
+	 * @param storage
+	 *            instance of the asynchronous storage service
+	 */
+	protected void bind(final PbStorageAsync storage) {
+		Log.info("Requester received PBStorageAsync");
+		bind(PbStorageAsync.class, storage);
+	}
+
+	/**
+	 * Unbind method for service component runtime to unbind an asynchronous
+	 * Storage service from this proxy
+	 * 
+	 * @param storage
+	 *            instance of the asynchronous storage service
+	 */
+	protected void unbind(final PbStorageAsync storage) {
+		Log.info("Requester lost PBStorageAsync");
+		unbind(PbStorageAsync.class, storage);
+	}
+
 	/**
 	 * Bind method for service component runtime to bind a FavoriteModel service
 	 * to this proxy
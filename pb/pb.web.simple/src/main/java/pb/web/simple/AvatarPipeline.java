@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.web.simple;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import pb.persistence.PbStorage;
+import pb.persistence.entity.Candidate;
+
+/**
+ * Turns uploaded pictures into avatars on a few worker threads, so the
+ * request only has to receive the upload. The uploads wait in spool files, not
+ * on the heap. The picture is decoded from the file with subsampling straight
+ * to about twice the avatar size, then cropped, scaled and encoded. The avatar
+ * is published to the candidate when it is ready, unless a newer upload of the
+ * same candidate came in meanwhile.
+ * 
+ * @author oliver
+ */
+public class AvatarPipeline {
+
+	protected static final int idleTimeout = 60;
+	protected static final int maxPublishAttempts = 3;
+
+	protected final ThreadPoolExecutor workers;
+	protected final AtomicLong uploads = new AtomicLong();
+	/** the latest upload of each candidate, older ones are dropped */
+	protected final ConcurrentMap<Integer, Long> latest = new ConcurrentHashMap<>();
+
+	/**
+	 * @param threads
+	 *            the number of worker threads
+	 * @param queueSize
+	 *            the number of uploads waiting for a worker
+	 */
+	public AvatarPipeline(final int threads, final int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		workers = new ThreadPoolExecutor(threads, threads, idleTimeout, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable task) {
+						final Thread ret = new Thread(task, "pb.web.simple.avatar-"
+								+ count.incrementAndGet());
+						ret.setDaemon(true);
+						return ret;
+					}
+				});
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * One queued upload, it owns the spool file
+	 * 
+	 * @author oliver
+	 */
+	protected class Conversion implements Runnable {
+
+		protected final PbStorage storage;
+		protected final int id;
+		protected final long token;
+		protected final File upload;
+
+		public Conversion(final PbStorage storage, final int id, final long token,
+				final File upload) {
+			super();
+			this.storage = storage;
+			this.id = id;
+			this.token = token;
+			this.upload = upload;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				process(storage, id, token, upload);
+			} finally {
+				delete(upload);
+			}
+		}
+	}
+
+	/**
+	 * Queues an uploaded picture. The pipeline takes over the spool file and
+	 * deletes it when the upload is converted, dropped or rejected.
+	 * 
+	 * @param storage
+	 *            the storage the avatar is published to
+	 * @param id
+	 *            the id of the candidate
+	 * @param upload
+	 *            spool file with the picture as uploaded
+	 * @return false when all workers are busy and the queue is full
+	 */
+	public boolean submit(final PbStorage storage, final int id, final File upload) {
+		final long token = uploads.incrementAndGet();
+		latest.put(id, token);
+		try {
+			workers.execute(new Conversion(storage, id, token, upload));
+			return true;
+		} catch (final RejectedExecutionException e) {
+			latest.remove(id, token);
+			delete(upload);
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes a spool file
+	 * 
+	 * @param upload
+	 *            the file, may be null
+	 */
+	public static void delete(final File upload) {
+		if (upload != null && upload.exists() && !upload.delete()) {
+			Log.warning("Can't delete the upload %s", upload);
+		}
+	}
+
+	/**
+	 * Converts one upload and publishes it
+	 * 
+	 * @param storage
+	 *            the storage the avatar is published to
+	 * @param id
+	 *            the id of the candidate
+	 * @param token
+	 *            number of the upload
+	 * @param upload
+	 *            spool file with the picture as uploaded
+	 */
+	protected void process(final PbStorage storage, final int id, final long token,
+			final File upload) {
+		try {
+			if (!isLatest(id, token)) {
+				return;
+			}
+			final byte avatar[] = Candidate.toAvatar(decode(upload, 2 * Candidate.optImageSize));
+			for (int attempt = 0; attempt < maxPublishAttempts && isLatest(id, token); ++attempt) {
+				final Candidate candidate = storage.getCandidate(id);
+				if (candidate == null) {
+					Log.warning("Candidate %d is gone, dropping the avatar", id);
+					return;
+				}
+				candidate.setEncodedImage(avatar);
+				// fails when the profile was changed since it was read
+				if (storage.storeCandidate(candidate)) {
+					Log.info("Avatar of candidate %d published", id);
+					return;
+				}
+			}
+		} catch (final Throwable thr) {
+			Log.error("Error converting the avatar of candidate %d", thr, id);
+		} finally {
+			latest.remove(id, token);
+		}
+	}
+
+	/**
+	 * @return true while no newer upload of the candidate was submitted
+	 */
+	protected boolean isLatest(final int id, final long token) {
+		final Long current = latest.get(id);
+		return current != null && current == token;
+	}
+
+	/**
+	 * Decodes a picture, skipping pixels while reading so the decoded image
+	 * is not much bigger than needed. The file is read on demand, so the
+	 * encoded picture is never held in memory as a whole.
+	 * 
+	 * @param upload
+	 *            file with the encoded picture
+	 * @param size
+	 *            the smallest size of the shorter side worth decoding
+	 * @return the decoded picture
+	 * @throws IOException
+	 *             when the picture can't be decoded
+	 */
+	protected static BufferedImage decode(final File upload, final int size)
+			throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(upload)) {
+			if (in == null) {
+				throw new IOException("Can't read the upload " + upload);
+			}
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Unknown picture format");
+			}
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				final int shorter = Math.min(reader.getWidth(0), reader.getHeight(0));
+				final int step = Math.max(1, shorter / size);
+				final ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of uploads queued or in conversion
+	 */
+	public int getPending() {
+		return workers.getQueue().size() + workers.getActiveCount();
+	}
+
+	/**
+	 * Stops the workers, queued uploads are dropped with their spool files
+	 */
+	public void shutdown() {
+		for (final Runnable dropped : workers.shutdownNow()) {
+			if (dropped instanceof Conversion) {
+				delete(((Conversion) dropped).upload);
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.web.simple;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered UTF-8 output of an HTML page. The static parts of a page are
+ * encoded once into byte arrays and copied as they are, the dynamic text is
+ * encoded straight into the buffer. Nothing of the page is held besides the
+ * buffer, so a page of any length is written with the same memory. An
+ * instance belongs to one request, it is not thread safe.
+ * 
+ * @author oliver
+ */
+public class HtmlOutput extends BufferedOutputStream {
+
+	protected static final int bufferSize = 8192;
+
+	protected final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * @param out
+	 *            the stream the page is written to, usually the one of the
+	 *            response
+	 */
+	public HtmlOutput(final OutputStream out) {
+		super(out, bufferSize);
+	}
+
+	/**
+	 * Encodes a static part of a page
+	 * 
+	 * @param fragment
+	 *            the HTML text
+	 * @return the UTF-8 bytes to pass to {@link #print(byte[])}
+	 */
+	public static byte[] encode(final String fragment) {
+		return fragment.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a part encoded by {@link #encode(String)}
+	 * 
+	 * @param fragment
+	 *            the encoded part
+	 * @throws IOException
+	 *             when the page can't be written
+	 */
+	public void print(final byte[] fragment) throws IOException {
+		write(fragment, 0, fragment.length);
+	}
+
+	/**
+	 * Writes dynamic text, encoded to UTF-8 in the buffer
+	 * 
+	 * @param text
+	 *            the text to write, null is written as "null"
+	 * @throws IOException
+	 *             when the page can't be written
+	 */
+	public void print(final String text) throws IOException {
+		final CharBuffer chars = CharBuffer.wrap(String.valueOf(text));
+		encoder.reset();
+		CoderResult result;
+		do {
+			final ByteBuffer bytes = ByteBuffer.wrap(buf, count, buf.length - count);
+			result = encoder.encode(chars, bytes, true);
+			count = bytes.position();
+			if (result.isOverflow()) {
+				out.write(buf, 0, count);
+				count = 0;
+			}
+		} while (result.isOverflow());
+		// the UTF-8 encoder keeps no state to flush at the end
+	}
+
+	/**
+	 * Writes a number in decimal digits
+	 * 
+	 * @param value
+	 *            the number
+	 * @throws IOException
+	 *             when the page can't be written
+	 */
+	public void print(final int value) throws IOException {
+		print(Integer.toString(value));
+	}
+}
@@ -20,11 +20,17 @@
 package pb.web.simple;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -32,6 +38,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.fileupload.util.Streams;
@@ -47,9 +54,14 @@ import org.apache.felix.scr.annotations.Service;
 import pb.model.FavoriteModel;
 import pb.model.FavoriteModel.Voting;
 import pb.persistence.PbStorage;
+import pb.persistence.PbStorage.SummaryHandler;
+import pb.persistence.StorageOverloadException;
+import pb.persistence.avatar.Images;
 import pb.persistence.entity.Candidate;
 import pb.persistence.entity.Candidate.Gender;
+import pb.persistence.entity.CandidateSummary;
 import pb.persistence.entity.Credit;
+import pb.web.simple.PageCache.Page;
 
 /**
  * @author oliver
@@ -71,95 +83,262 @@ public class ListServlet extends HttpServlet {
 	protected ReentrantLock lock = new ReentrantLock();
 	protected PbStorage storage = null;
 	protected FavoriteModel model = null;
+	protected static final int pageSize = 20;
+	protected static final String htmlContentType = "text/html; charset=UTF-8";
+	protected static final int pageCacheSize = 256;
+	protected final PageCache pageCache = new PageCache(pageCacheSize);
+	/** phone pictures are a few MB, anything much bigger is no picture */
+	protected static final int maxUploadSize = 10 * 1024 * 1024;
+	/** attempts to store a profile the avatar pipeline changes concurrently */
+	protected static final int maxStoreAttempts = 3;
+	protected static final int avatarThreads = 2;
+	protected static final int avatarQueueSize = 8;
+	protected final AvatarPipeline avatarPipeline = new AvatarPipeline(avatarThreads,
+			avatarQueueSize);
+	/** tag of candidates without a stored image, which get the default avatar */
+	protected static final String defaultAvatarTag = "default";
+	/** the image count in the url changes with the image, so it never expires */
+	protected static final String versionedAvatarCaching = "public, max-age=31536000, immutable";
+	/** without the current image count the client has to ask, but usually gets a 304 */
+	protected static final String unversionedAvatarCaching = "no-cache";
+
+	protected static final byte listHead[] = HtmlOutput
+			.encode("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\">\r\n"
+					+ "<html>\r\n"
+					+ "<head>\r\n"
+					+ "  <meta content=\"text/html; charset=UTF-8\"\r\n"
+					+ " http-equiv=\"content-type\">\r\n"
+					+ "  <title>List of Candidates</title>\r\n"
+					+ "</head>\r\n"
+					+ "<body>\r\n"
+					+ "<center>\r\n"
+					+ "<table border=\"1\" width=\"90%\" cellspacing=\"0\" rules=\"all\">\r\n"
+					+ "<colgroup>\r\n"
+					+ "  <col width=\"160\">\r\n"
+					+ "  <col width=\"35%\">\r\n"
+					+ "  <col width=\"55%\">\r\n"
+					+ "  <col width=\"15%\">\r\n"
+					+ "</colgroup>\r\n");
+	protected static final byte candidateStart[] = HtmlOutput
+			.encode("<tr>\r\n <td><img src=\"avatar.png?id=");
+	protected static final byte candidateCount[] = HtmlOutput.encode("&count=");
+	protected static final byte candidateAlt[] = HtmlOutput.encode("\" alt=\"Candidate ");
+	protected static final byte candidateName[] = HtmlOutput
+			.encode("\" width=\"160\" height=\"160\"></td>\r\n <td>");
+	protected static final byte cellNext[] = HtmlOutput.encode("</td>\r\n <td>");
+	protected static final byte rowEnd[] = HtmlOutput.encode("</td>\r\n</tr>\r\n");
+	protected static final byte nextStart[] = HtmlOutput.encode("</table>\r\n<a href=\"");
+	protected static final byte nextEnd[] = HtmlOutput.encode("\">Next</a>\r\n");
+	protected static final byte tableEnd[] = HtmlOutput.encode("</table>\r\n");
+	protected static final byte pageEnd[] = HtmlOutput
+			.encode("</center>\r\n</body>\r\n</html>\r\n");
+	protected static final byte votingHead[] = HtmlOutput
+			.encode("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\">\r\n"
+					+ "<html>\r\n"
+					+ "<head>\r\n"
+					+ "  <meta content=\"text/html; charset=UTF-8\"\r\n"
+					+ " http-equiv=\"content-type\">\r\n"
+					+ "  <title>List of Votes</title>\r\n"
+					+ "</head>\r\n"
+					+ "<body>\r\n"
+					+ "<center>\r\n"
+					+ "<h1>Credits left ");
+	protected static final byte votingTable[] = HtmlOutput
+			.encode("</h1>\r\n"
+					+ "<table border=\"1\" width=\"90%\" cellspacing=\"0\" rules=\"all\">\r\n"
+					+ "<colgroup>\r\n"
+					+ "  <col width=\"160\">\r\n"
+					+ "  <col width=\"50%\">\r\n"
+					+ "  <col width=\"50%\">\r\n"
+					+ "</colgroup>\r\n");
+	// the rows of pairs are green
+	protected static final byte votingStart[][] = {
+			HtmlOutput.encode("<tr>\r\n <td bgcolor=\"#ffffff\"><img src=\"avatar.png?id="),
+			HtmlOutput.encode("<tr>\r\n <td bgcolor=\"#00ff00\"><img src=\"avatar.png?id=") };
+	protected static final byte votingLikes[][] = {
+			HtmlOutput.encode("\" alt=\"Candidate\" width=\"160\" height=\"160\"></td>\r\n"
+					+ " <td bgcolor=\"#ffffff\">"),
+			HtmlOutput.encode("\" alt=\"Candidate\" width=\"160\" height=\"160\"></td>\r\n"
+					+ " <td bgcolor=\"#00ff00\">") };
+	protected static final byte votingNext[][] = {
+			HtmlOutput.encode("</td>\r\n <td bgcolor=\"#ffffff\">"),
+			HtmlOutput.encode("</td>\r\n <td bgcolor=\"#00ff00\">") };
 
 	/**
-	 * returns a Html Page with a list of Candidates
+	 * writes the table row of a candidate
 	 * 
-	 * @param dataSet
-	 *            DataSet of candidates to display
-	 * @return string containing an HTML page
+	 * @param out
+	 *            the page to write the row to
+	 * @param candidate
+	 *            the candidate to display
+	 * @throws IOException
+	 *             when the page can't be written
 	 */
-	protected String getHtml(final List<Candidate> dataSet) {
-		final StringBuilder builder = new StringBuilder();
-		builder.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\">\r\n");
-		builder.append("<html>\r\n");
-		builder.append("<head>\r\n");
-		builder.append("  <meta content=\"text/html; charset=UTF-8\"\r\n");
-		builder.append(" http-equiv=\"content-type\">\r\n");
-		builder.append("  <title>List of Candidates</title>\r\n");
-		builder.append("</head>\r\n");
-		builder.append("<body>\r\n");
-		builder.append("<center>\r\n");
-		builder.append("<table border=\"1\" width=\"90%\" cellspacing=\"0\" rules=\"all\">\r\n");
-		builder.append("<colgroup>\r\n");
-		builder.append("  <col width=\"160\">\r\n");
-		builder.append("  <col width=\"35%\">\r\n");
-		builder.append("  <col width=\"55%\">\r\n");
-		builder.append("  <col width=\"15%\">\r\n");
-		builder.append("</colgroup>\r\n");
-
-		for (final Candidate candidate : dataSet) {
-			builder.append("<tr>\r\n");
-			builder.append(" <td><img src=\"avatar.png?id=" + candidate.getId()
-					+ "\" alt=\"Candidate " + candidate.getName()
-					+ "\" width=\"160\" height=\"160\"></td>\r\n");
-			builder.append(" <td>" + candidate.getName() + "</td>\r\n");
-			builder.append(" <td>" + candidate.getShortDescription() + "</td>\r\n");
-			builder.append(" <td>" + candidate.getAge() + "</td>\r\n");
-			builder.append("</tr>\r\n");
+	protected void writeCandidate(final HtmlOutput out, final CandidateSummary candidate)
+			throws IOException {
+		out.print(candidateStart);
+		out.print(candidate.getId());
+		out.print(candidateCount);
+		out.print(candidate.getImageCount());
+		out.print(candidateAlt);
+		out.print(candidate.getName());
+		out.print(candidateName);
+		out.print(candidate.getName());
+		out.print(cellNext);
+		out.print(candidate.getShortDescription());
+		out.print(cellNext);
+		out.print(candidate.getAge());
+		out.print(rowEnd);
+	}
+
+	/**
+	 * returns one page of the list of candidates with the given gender. The
+	 * page is the same for all requesters, so it is rendered once for every
+	 * version of the candidate lists.
+	 * 
+	 * @param gender
+	 *            the gender of the candidates to display
+	 * @param afterId
+	 *            the page starts after the candidate with this id
+	 * @return the rendered page
+	 * @throws IOException
+	 *             when the page can't be rendered
+	 */
+	protected Page getListPage(final Gender gender, final int afterId) throws IOException {
+		final String key = gender + "/" + afterId;
+		// read before the lists, a change while rendering makes the page stale
+		final long version = storage.getCandidateListVersion();
+		Page ret = pageCache.get(key, version);
+		if (ret == null) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final HtmlOutput out = new HtmlOutput(bytes);
+			writeHtml(out, gender, afterId);
+			out.flush();
+			ret = pageCache.put(key, version, bytes.toByteArray());
 		}
-		builder.append("</table>\r\n");
-		builder.append("</center>\r\n");
-		builder.append("</body>\r\n");
-		builder.append("</html>\r\n");
-		return builder.toString();
+		return ret;
 	}
 
 	/**
-	 * returns a Html Page with a list of the votes of a candidate
+	 * Checks whether the client takes gzipped responses
 	 * 
-	 * @param dataSet
-	 *            DataSet of candidates to display
-	 * @return string containing an HTML page
+	 * @param req
+	 *            the request
+	 * @return true when gzip is accepted with a quality above 0
 	 */
-	protected String getVotingHtml(final List<Voting> dataSet, final int credits) {
-		final StringBuilder builder = new StringBuilder();
-		builder.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\">\r\n");
-		builder.append("<html>\r\n");
-		builder.append("<head>\r\n");
-		builder.append("  <meta content=\"text/html; charset=UTF-8\"\r\n");
-		builder.append(" http-equiv=\"content-type\">\r\n");
-		builder.append("  <title>List of Votes</title>\r\n");
-		builder.append("</head>\r\n");
-		builder.append("<body>\r\n");
+	protected static boolean acceptsGzip(final HttpServletRequest req) {
+		final String accepted = req.getHeader("Accept-Encoding");
+		if (accepted != null) {
+			for (final String coding : accepted.split(",")) {
+				final String parts[] = coding.split(";");
+				if (parts[0].trim().equalsIgnoreCase("gzip")) {
+					return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+				}
+			}
+		}
+		return false;
+	}
 
-		builder.append("<center>\r\n");
-		builder.append("<h1>Credits left " + credits + "</h1>\r\n");
-		builder.append("<table border=\"1\" width=\"90%\" cellspacing=\"0\" rules=\"all\">\r\n");
-		builder.append("<colgroup>\r\n");
-		builder.append("  <col width=\"160\">\r\n");
-		builder.append("  <col width=\"50%\">\r\n");
-		builder.append("  <col width=\"50%\">\r\n");
-		builder.append("</colgroup>\r\n");
+	/**
+	 * Opens the body of a dynamic text response, gzipped on the fly when the
+	 * client takes it. Small pages like the error messages are not worth it,
+	 * the avatars are compressed already and the list pages come gzipped from
+	 * the page cache.
+	 * 
+	 * @param req
+	 *            the request
+	 * @param resp
+	 *            the response with its headers set
+	 * @return the stream for the body, it must be closed to finish the gzip
+	 *         stream
+	 * @throws IOException
+	 *             when the response can't be written
+	 */
+	protected OutputStream openBody(final HttpServletRequest req,
+			final HttpServletResponse resp) throws IOException {
+		resp.setHeader("Vary", "Accept-Encoding");
+		if (acceptsGzip(req)) {
+			resp.setHeader("Content-Encoding", "gzip");
+			return new GZIPOutputStream(resp.getOutputStream(), HtmlOutput.bufferSize);
+		}
+		return resp.getOutputStream();
+	}
 
+	/**
+	 * writes a Html Page with one page of Candidates, the rows are written
+	 * while they are read.
+	 * 
+	 * @param out
+	 *            the page
+	 * @param gender
+	 *            the gender of the candidates to display
+	 * @param afterId
+	 *            the page starts after the candidate with this id
+	 * @throws IOException
+	 *             when the page can't be written
+	 */
+	protected void writeHtml(final HtmlOutput out, final Gender gender, final int afterId)
+			throws IOException {
+		out.print(listHead);
+		final int lastId[] = new int[] { afterId };
+		// the handler can't throw, the storage would only log it
+		final IOException failure[] = new IOException[1];
+		final int count = storage.streamCandidateSummariesByGender(gender, afterId, pageSize,
+				new SummaryHandler() {
+					@Override
+					public void handle(final CandidateSummary summary) {
+						if (failure[0] == null) {
+							try {
+								writeCandidate(out, summary);
+							} catch (final IOException e) {
+								failure[0] = e;
+							}
+						}
+						lastId[0] = summary.getId();
+					}
+				});
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		if (count < pageSize) {
+			out.print(tableEnd);
+		} else {
+			out.print(nextStart);
+			out.print("candidates.html?gender=" + gender + "&after=" + lastId[0]);
+			out.print(nextEnd);
+		}
+		out.print(pageEnd);
+	}
+
+	/**
+	 * writes a Html Page with a list of the votes of a candidate
+	 * 
+	 * @param out
+	 *            the page
+	 * @param dataSet
+	 *            DataSet of candidates to display
+	 * @param credits
+	 *            the credits left to the candidate
+	 * @throws IOException
+	 *             when the page can't be written
+	 */
+	protected void writeVotingHtml(final HtmlOutput out, final List<Voting> dataSet,
+			final int credits) throws IOException {
+		out.print(votingHead);
+		out.print(credits);
+		out.print(votingTable);
 		for (final Voting voting : dataSet) {
-			String bgColor = "\"#ffffff\"";
-			if (voting.isPair()) {
-				bgColor = "\"#00ff00\"";
-			}
-			builder.append("<tr>\r\n");
-			builder.append(" <td bgcolor=" + bgColor + "><img src=\"avatar.png?id="
-					+ voting.getOtherId()
-					+ "\" alt=\"Candidate\" width=\"160\" height=\"160\"></td>\r\n");
-			builder.append(" <td bgcolor=" + bgColor + ">" + voting.getOwnLikes() + "</td>\r\n");
-			builder.append(" <td bgcolor=" + bgColor + ">" + voting.getOtherLikes() + "</td>\r\n");
-			builder.append("</tr>\r\n");
+			final int color = voting.isPair() ? 1 : 0;
+			out.print(votingStart[color]);
+			out.print(voting.getOtherId());
+			out.print(votingLikes[color]);
+			out.print(voting.getOwnLikes());
+			out.print(votingNext[color]);
+			out.print(voting.getOtherLikes());
+			out.print(rowEnd);
 		}
-		builder.append("</table>\r\n");
-		builder.append("</center>\r\n");
-		builder.append("</body>\r\n");
-		builder.append("</html>\r\n");
-		return builder.toString();
+		out.print(tableEnd);
+		out.print(pageEnd);
 	}
 
 	/**
@@ -225,51 +404,192 @@ public class ListServlet extends HttpServlet {
 	protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
 			throws ServletException, IOException {
 		try {
-			final int id = Integer.parseInt(req.getParameter("id"));
+			// the following pages of a list name the gender instead of the requester
+			final String genderName = req.getParameter("gender");
+			final int id = genderName == null ? Integer.parseInt(req.getParameter("id")) : -1;
 			if (req.getPathInfo().equalsIgnoreCase("/candidates.html")) {
 				if (storage == null) {
 					resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 				} else {
-					final Candidate requester = storage.getCandidate(id);
-					final List<Candidate> candidates = storage.getCandidateByGender(Gender.MALE
-							.equals(requester.getGender()) ? Gender.FEMALE : Gender.MALE);
-					resp.getOutputStream().write(getHtml(candidates).getBytes());
+					final String after = req.getParameter("after");
+					Gender gender;
+					if (genderName == null) {
+						final CandidateSummary requester = storage.getCandidateSummary(id);
+						if (requester == null) {
+							sendNotFound(resp, "Unknown Candidate");
+							return;
+						}
+						gender = Gender.MALE.equals(requester.getGender()) ? Gender.FEMALE
+								: Gender.MALE;
+					} else {
+						gender = Gender.valueOf(genderName);
+					}
+					final Page page = getListPage(gender,
+							after == null ? -1 : Integer.parseInt(after));
+					resp.setContentType(htmlContentType);
+					resp.setHeader("Vary", "Accept-Encoding");
+					resp.setStatus(HttpServletResponse.SC_OK);
+					byte body[] = page.getPlain();
+					if (acceptsGzip(req)) {
+						resp.setHeader("Content-Encoding", "gzip");
+						body = page.getGzipped();
+					}
+					resp.setContentLength(body.length);
+					resp.getOutputStream().write(body);
 				}
-				resp.setContentType("text/html");
-				resp.setStatus(HttpServletResponse.SC_OK);
 
 			} else if (req.getPathInfo().equalsIgnoreCase("/votes.html")) {
 				if ((model == null) || (storage == null)) {
 					resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 				} else {
 					final Credit credit = storage.getCredit(id);
+					if (credit == null) {
+						sendNotFound(resp, "Unknown Candidate");
+						return;
+					}
 					final List<Voting> votings = model.getVotings(id);
-					resp.getOutputStream().write(
-							getVotingHtml(votings, credit.getCredit()).getBytes());
+					resp.setContentType(htmlContentType);
+					resp.setStatus(HttpServletResponse.SC_OK);
+					final HtmlOutput out = new HtmlOutput(openBody(req, resp));
+					writeVotingHtml(out, votings, credit.getCredit());
+					out.close();
 				}
-				resp.setContentType("text/html");
-				resp.setStatus(HttpServletResponse.SC_OK);
 
 			} else if (req.getPathInfo().equalsIgnoreCase("/avatar.png")) {
-				final Candidate candidate = storage.getCandidate(id);
-				if ((storage == null) || (candidate == null)) {
+				// the summary is cached and the avatar mapped, no database call when hot
+				final CandidateSummary candidate = storage == null ? null : storage
+						.getCandidateSummary(id);
+				if (candidate == null) {
 					resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 				} else {
-					resp.getOutputStream().write(candidate.getImage());
+					// the content hash is the tag, a match is answered without the image
+					final String hash = candidate.getImageHash();
+					final String etag = "\"" + (hash == null ? defaultAvatarTag : hash) + "\"";
+					resp.setHeader("ETag", etag);
+					// a missing or stale count must not pin an image in the caches
+					resp.setHeader("Cache-Control", isCurrentImage(req.getParameter("count"),
+							candidate) ? versionedAvatarCaching : unversionedAvatarCaching);
+					if (matches(req.getHeader("If-None-Match"), etag)) {
+						resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						resp.getOutputStream().close();
+						return;
+					}
+					ByteBuffer avatar = hash == null ? null : storage.getAvatar(hash);
+					if (avatar == null) {
+						avatar = ByteBuffer.wrap(Images.getDefaultAvatar());
+					}
 					resp.setContentType("image/png");
+					resp.setContentLength(avatar.remaining());
+					final WritableByteChannel channel = Channels.newChannel(resp
+							.getOutputStream());
+					while (avatar.hasRemaining()) {
+						channel.write(avatar);
+					}
 				}
 			} else {
 				resp.setContentType("text/html");
-				resp.getOutputStream().write(getErrorMessage("Unknown Request").getBytes());
+				resp.getOutputStream().write(
+						getErrorMessage("Unknown Request").getBytes(StandardCharsets.UTF_8));
 				resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			}
 			resp.getOutputStream().close();
 		} catch (final Throwable e) {
-			Log.error("Error occured while Processing Request", e);
-			resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			resp.getOutputStream().write(getErrorMessage("Unknown Error Occured").getBytes());
-			resp.getOutputStream().close();
+			final StorageOverloadException overload = StorageOverloadException.find(e);
+			if (overload != null) {
+				Log.warning("Request rejected: %s", overload.getMessage());
+				sendOverload(resp, overload.getRetryAfter());
+			} else {
+				Log.error("Error occured while Processing Request", e);
+				resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				resp.getOutputStream().write(
+						getErrorMessage("Unknown Error Occured").getBytes(StandardCharsets.UTF_8));
+				resp.getOutputStream().close();
+			}
+		}
+	}
+
+	/**
+	 * Checks the image count of an avatar url against the current one, only
+	 * then the answer belongs to that url for good
+	 * 
+	 * @param count
+	 *            the count parameter of the request, may be null
+	 * @param candidate
+	 *            the summary of the candidate
+	 * @return true when the url names the current image
+	 */
+	protected static boolean isCurrentImage(final String count, final CandidateSummary candidate) {
+		if (count == null) {
+			return false;
+		}
+		try {
+			return Integer.parseInt(count.trim()) == candidate.getImageCount();
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks an If-None-Match header against the tag of the response, with the
+	 * weak comparison the header asks for
+	 * 
+	 * @param ifNoneMatch
+	 *            the header value, may be null
+	 * @param etag
+	 *            the quoted tag of the response
+	 * @return true when the client has the response already
+	 */
+	protected static boolean matches(final String ifNoneMatch, final String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
 		}
+		return false;
+	}
+
+	/**
+	 * Answers with 503, so the client retries instead of seeing an error
+	 * 
+	 * @param resp
+	 *            the response
+	 * @param retryAfter
+	 *            seconds after which the client should retry
+	 * @throws IOException
+	 */
+	protected void sendOverload(final HttpServletResponse resp, final int retryAfter)
+			throws IOException {
+		resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		resp.setHeader("Retry-After", Integer.toString(retryAfter));
+		resp.setContentType("text/html");
+		resp.getOutputStream().write(
+				getErrorMessage("Server busy, please retry").getBytes(StandardCharsets.UTF_8));
+		resp.getOutputStream().close();
+	}
+
+	/**
+	 * Answers with 404 for requests on candidates that don't exist
+	 * 
+	 * @param resp
+	 *            the response
+	 * @param message
+	 *            the message shown to the user
+	 * @throws IOException
+	 */
+	protected void sendNotFound(final HttpServletResponse resp, final String message)
+			throws IOException {
+		resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		resp.setContentType("text/html");
+		resp.getOutputStream().write(
+				getErrorMessage(message).getBytes(StandardCharsets.UTF_8));
+		resp.getOutputStream().close();
 	}
 
 	/**
@@ -303,76 +623,207 @@ public class ListServlet extends HttpServlet {
 			throws ServletException, IOException {
 		final String pathInfo = req.getPathInfo();
 		Log.info("Do Post received Request \"%s\"", pathInfo);
+		File upload = null;
 		try {
 			if (pathInfo.equalsIgnoreCase("/newProfile.html") && (storage != null)) {
 				final int id = storage.getId(req.getRemoteAddr());
-				Candidate candidate = storage.getCandidate(id);
-				if (candidate == null) {
-					candidate = new Candidate();
-					candidate.setId(id);
-				}
-
+				String name = null;
+				Integer age = null;
+				String description = null;
+				Gender gender = null;
 				final ServletFileUpload fileUpload = new ServletFileUpload();
+				fileUpload.setFileSizeMax(maxUploadSize);
 				for (final FileItemIterator iter = fileUpload.getItemIterator(req); iter.hasNext();) {
 					final FileItemStream item = iter.next();
 					if (item.isFormField()) {
 						final String value = Streams.asString(item.openStream());
 						final String key = item.getFieldName();
 						if ("Name".equals(key)) {
-							candidate.setName(removeHtml(value));
+							name = removeHtml(value);
 						} else if ("Age".equals(key)) {
 							try {
-								candidate.setAge(Integer.parseInt(value.trim()));
+								age = Integer.parseInt(value.trim());
 							} catch (final Throwable thr) {
 								Log.warning("Wrong Age Format", thr);
 							}
 						} else if ("Description".equals(key)) {
-							candidate.setShortDescription(removeHtml(value));
+							description = removeHtml(value);
 						} else if ("GenderGroup".equals(key)) {
 							if ("Male".equals(value)) {
-								candidate.setGender(Gender.MALE);
+								gender = Gender.MALE;
 							} else {
-								candidate.setGender(Gender.FEMALE);
+								gender = Gender.FEMALE;
 							}
 						}
 					} else {
 						Log.info("Content-type: %s", item.getContentType());
-						final InputStream is = item.openStream();
-						final ByteArrayOutputStream os = new ByteArrayOutputStream();
-						final byte b[] = new byte[12000];
-						int got = is.read(b);
-						while (got > 0) {
-							os.write(b, 0, got);
-							got = is.read(b);
-						}
-						is.close();
-						candidate.setImage(os.toByteArray());
+						AvatarPipeline.delete(upload);
+						upload = spool(item);
 					}
 				}
-				storage.storeCandidate(candidate);
+				// the profile is stored now, the avatar when it is converted
+				if (!storeProfile(id, name, age, description, gender)) {
+					Log.warning("Profile of candidate %d not stored", id);
+					resp.setStatus(HttpServletResponse.SC_CONFLICT);
+					resp.setContentType("text/html");
+					resp.getOutputStream().write(getErrorMessage(
+							"The profile could not be stored, please try again")
+							.getBytes(StandardCharsets.UTF_8));
+					resp.getOutputStream().close();
+					return;
+				}
 				Log.info("Candidate is stored");
+				String message = "Profile changed";
+				if (upload != null) {
+					final File submitted = upload;
+					// the pipeline deletes the file, even when it rejects it
+					upload = null;
+					if (!avatarPipeline.submit(storage, id, submitted)) {
+						// the profile is stored already, a 503 would tell the user otherwise
+						Log.warning("Avatar of candidate %d rejected, %d uploads pending", id,
+								avatarPipeline.getPending());
+						message = "Profile changed, but the picture was not accepted, "
+								+ "please upload it again later";
+					}
+				}
 				resp.setStatus(HttpServletResponse.SC_OK);
 				resp.setContentType("text/html");
 				final OutputStream os = resp.getOutputStream();
-				os.write(getSuccessMessage("Profile changed").getBytes());
+				os.write(getSuccessMessage(message).getBytes(StandardCharsets.UTF_8));
 				os.close();
 			} else {
 				resp.setContentType("text/html");
-				resp.getOutputStream().write(getErrorMessage("Unknown Request").getBytes());
+				resp.getOutputStream().write(
+						getErrorMessage("Unknown Request").getBytes(StandardCharsets.UTF_8));
 				resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 				resp.getOutputStream().close();
 			}
 		} catch (final Throwable e) {
-			Log.error("Error in doPost occured", e);
+			final StorageOverloadException overload = StorageOverloadException.find(e);
+			if (overload != null) {
+				Log.warning("Post rejected: %s", overload.getMessage());
+				sendOverload(resp, overload.getRetryAfter());
+			} else if (isTooLarge(e)) {
+				Log.warning("Upload rejected: %s", e.getMessage());
+				resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+				resp.setContentType("text/html");
+				resp.getOutputStream().write(getErrorMessage("The picture is too large")
+						.getBytes(StandardCharsets.UTF_8));
+				resp.getOutputStream().close();
+			} else {
+				Log.error("Error in doPost occured", e);
+			}
+		} finally {
+			AvatarPipeline.delete(upload);
 		}
 	}
 
+	/**
+	 * Writes an uploaded picture to a spool file, so it doesn't wait for the
+	 * avatar pipeline on the heap
+	 * 
+	 * @param item
+	 *            the file field of the form
+	 * @return the spool file or null when the upload is empty
+	 * @throws IOException
+	 *             when the file can't be written or the upload exceeds the
+	 *             maximum size
+	 */
+	protected static File spool(final FileItemStream item) throws IOException {
+		final File ret = File.createTempFile("pb-upload", ".tmp");
+		boolean written = false;
+		try {
+			// fails with a FileSizeLimitExceededException beyond the maximum
+			Streams.copy(item.openStream(), new FileOutputStream(ret), true);
+			written = ret.length() > 0;
+		} finally {
+			if (!written) {
+				AvatarPipeline.delete(ret);
+			}
+		}
+		return written ? ret : null;
+	}
+
+	/**
+	 * Applies the posted profile fields to the stored candidate. The avatar
+	 * pipeline writes the same row, so the candidate is read again and the
+	 * fields applied again when it was changed since it was read.
+	 * 
+	 * @param id
+	 *            the id of the candidate
+	 * @param name
+	 *            the new name or null to keep it
+	 * @param age
+	 *            the new age or null to keep it
+	 * @param description
+	 *            the new description or null to keep it
+	 * @param gender
+	 *            the new gender or null to keep it
+	 * @return true when the profile is stored, false when all attempts failed
+	 */
+	protected boolean storeProfile(final int id, final String name, final Integer age,
+			final String description, final Gender gender) {
+		for (int attempt = 0; attempt < maxStoreAttempts; ++attempt) {
+			Candidate candidate = storage.getCandidate(id);
+			if (candidate == null) {
+				candidate = new Candidate();
+				candidate.setId(id);
+			}
+			if (name != null) {
+				candidate.setName(name);
+			}
+			if (age != null) {
+				candidate.setAge(age);
+			}
+			if (description != null) {
+				candidate.setShortDescription(description);
+			}
+			if (gender != null) {
+				candidate.setGender(gender);
+			}
+			if (storage.storeCandidate(candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether an upload failed on the size limit
+	 * 
+	 * @param thr
+	 *            the error of the upload
+	 * @return true when a size limit exception is one of the causes
+	 */
+	protected static boolean isTooLarge(final Throwable thr) {
+		for (Throwable cause = thr; cause != null; cause = cause.getCause()) {
+			if (cause instanceof FileUploadBase.FileSizeLimitExceededException
+					|| cause instanceof FileUploadBase.SizeLimitExceededException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.servlet.GenericServlet#destroy()
+	 */
+	@Override
+	public void destroy() {
+		avatarPipeline.shutdown();
+		super.destroy();
+	}
+
 	/**
 	 * Bind Method for the Persistent Storage
 	 * 
 	 * @param storage
 	 */
 	protected void bind(final PbStorage storage) {
+		// versions of another storage don't compare
+		pageCache.clear();
 		this.storage = storage;
 	}
 
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2013 Oliver Schünemann
+ * 
+ * This program is free software; you can redistribute it and/or modify it under the terms of the 
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of 
+ * the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License along with this program; 
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, 
+ * Boston, MA 02110, USA 
+ * 
+ * @since 17.10.2026
+ * @version 1.0
+ * @author oliver
+ */
+package pb.web.simple;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of rendered pages that are the same for every reader. Each page is
+ * held encoded and gzipped, together with the version of the data it was
+ * rendered from. A page of an older version is no hit and is replaced by the
+ * next rendering. The least recently used pages are dropped beyond the
+ * capacity.
+ * 
+ * @author oliver
+ */
+public class PageCache {
+
+	/**
+	 * One rendered page
+	 * 
+	 * @author oliver
+	 */
+	public static class Page {
+		protected final long version;
+		protected final byte[] plain;
+		protected final byte[] gzipped;
+
+		/**
+		 * @param version
+		 *            version of the data the page was rendered from
+		 * @param plain
+		 *            the encoded page
+		 * @param gzipped
+		 *            the encoded page gzipped
+		 */
+		public Page(final long version, final byte[] plain, final byte[] gzipped) {
+			this.version = version;
+			this.plain = plain;
+			this.gzipped = gzipped;
+		}
+
+		/**
+		 * @return version of the data the page was rendered from
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the encoded page, must not be changed
+		 */
+		public byte[] getPlain() {
+			return plain;
+		}
+
+		/**
+		 * @return the encoded page gzipped, must not be changed
+		 */
+		public byte[] getGzipped() {
+			return gzipped;
+		}
+	}
+
+	protected final Map<String, Page> pages;
+
+	/**
+	 * @param capacity
+	 *            the most pages held
+	 */
+	public PageCache(final int capacity) {
+		pages = new LinkedHashMap<String, Page>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Page> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * returns the page rendered from the given version of the data
+	 * 
+	 * @param key
+	 *            name of the page
+	 * @param version
+	 *            the current version of the data
+	 * @return the page or null when it has to be rendered
+	 */
+	public synchronized Page get(final String key, final long version) {
+		final Page ret = pages.get(key);
+		return ret == null || ret.getVersion() != version ? null : ret;
+	}
+
+	/**
+	 * Gzips a rendered page and keeps it for the following readers
+	 * 
+	 * @param key
+	 *            name of the page
+	 * @param version
+	 *            the version of the data that was read before rendering
+	 * @param plain
+	 *            the encoded page
+	 * @return the page
+	 * @throws IOException
+	 *             when the page can't be compressed
+	 */
+	public Page put(final String key, final long version, final byte[] plain)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(plain);
+		}
+		final Page ret = new Page(version, plain, bytes.toByteArray());
+		synchronized (this) {
+			final Page current = pages.get(key);
+			// a slower rendering of older data must not replace a newer one
+			if (current == null || current.getVersion() <= version) {
+				pages.put(key, ret);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Drops all pages
+	 */
+	public synchronized void clear() {
+		pages.clear();
+	}
+
+	/**
+	 * @return the number of pages held
+	 */
+	public synchronized int getSize() {
+		return pages.size();
+	}
+}